@@ -0,0 +1,367 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class Ast {
+	// node kinds
+	public static final byte NUMBER = 0; // a = constant index
+	public static final byte VAR = 1; // a = name id, c = frame slot
+	public static final byte ASSIGN = 2; // a = name id, b = value, c = slot
+	public static final byte ADD = 3; // a = left, b = right
+	public static final byte SUB = 4;
+	public static final byte MUL = 5;
+	public static final byte DIV = 6;
+	public static final byte LESS = 7;
+	public static final byte GREATER = 8;
+	public static final byte EQUAL = 9;
+	public static final byte AND = 10;
+	public static final byte OR = 11;
+	public static final byte IF = 12; // a = condition, b = then, c = else or -1
+	public static final byte WHILE = 13; // a = condition, b = body
+	public static final byte BLOCK = 14; // a = first child in lists, b = count
+	public static final byte CALL = 15; // a = function, b = first arg, c = count
+	public static final byte FUNCTION = 16; // a = function
+	public static final byte TAIL_CALL = 17; // a CALL of its own function
+
+	private static final String[] KIND_NAMES = { "number", "var", "assign",
+			"+", "-", "*", "/", "<", ">", "=", "&", "|", "if", "while",
+			"block", "call", "function", "tailcall" };
+
+	// one entry per node, stored in parallel arrays
+	public byte[] kind = new byte[64];
+	public int[] a = new int[64];
+	public int[] b = new int[64];
+	public int[] c = new int[64];
+
+	// source position of every node
+	public int[] pos = new int[64];
+	public int size = 0;
+
+	public double[] constants = new double[16];
+	public int constantCount = 0;
+
+	// children of blocks and arguments of calls, back to back
+	public int[] lists = new int[64];
+	public int listCount = 0;
+
+	// one entry per function, the parameter name ids are kept in lists
+	public int[] functionName = new int[8];
+	public int[] functionParams = new int[8];
+	public int[] functionParamCount = new int[8];
+	public int[] functionBody = new int[8];
+	public int[] functionSlotCount = new int[8];
+	public int functionCount = 0;
+
+	// block of all top level statements
+	public int root = -1;
+	public int rootSlotCount = 0;
+
+	public final Names names;
+
+	public Ast(Names names) {
+		this.names = names;
+	}
+
+	public int add(byte nodeKind, int nodeA, int nodeB, int nodeC,
+			int sourcePos) {
+		if (size == kind.length) {
+			int newLength = size * 2;
+			kind = Arrays.copyOf(kind, newLength);
+			a = Arrays.copyOf(a, newLength);
+			b = Arrays.copyOf(b, newLength);
+			c = Arrays.copyOf(c, newLength);
+			pos = Arrays.copyOf(pos, newLength);
+		}
+		kind[size] = nodeKind;
+		a[size] = nodeA;
+		b[size] = nodeB;
+		c[size] = nodeC;
+		pos[size] = sourcePos;
+		size++;
+		return size - 1;
+	}
+
+	public int addNumber(double value, int sourcePos) {
+		if (constantCount == constants.length) {
+			constants = Arrays.copyOf(constants, constantCount * 2);
+		}
+		constants[constantCount] = value;
+		constantCount++;
+		return add(NUMBER, constantCount - 1, 0, 0, sourcePos);
+	}
+
+	public void setNumber(int node, double value) {
+		// a node becomes a constant, its children are not used anymore
+		if (constantCount == constants.length) {
+			constants = Arrays.copyOf(constants,
+					Math.max(16, constantCount * 2));
+		}
+		constants[constantCount] = value;
+		constantCount++;
+		kind[node] = NUMBER;
+		a[node] = constantCount - 1;
+	}
+
+	public void replace(int node, int by) {
+		// a node takes the place of its parent, the position stays
+		kind[node] = kind[by];
+		a[node] = a[by];
+		b[node] = b[by];
+		c[node] = c[by];
+	}
+
+	public int addList(int[] items, int from, int count) {
+		if (listCount + count > lists.length) {
+			lists = Arrays.copyOf(lists, Math.max(lists.length * 2, listCount
+					+ count));
+		}
+		System.arraycopy(items, from, lists, listCount, count);
+		listCount += count;
+		return listCount - count;
+	}
+
+	public int addFunction(int nameId, int params, int paramCount) {
+		if (functionCount == functionName.length) {
+			int newLength = functionCount * 2;
+			functionName = Arrays.copyOf(functionName, newLength);
+			functionParams = Arrays.copyOf(functionParams, newLength);
+			functionParamCount = Arrays.copyOf(functionParamCount, newLength);
+			functionBody = Arrays.copyOf(functionBody, newLength);
+			functionSlotCount = Arrays.copyOf(functionSlotCount, newLength);
+		}
+		functionName[functionCount] = nameId;
+		functionParams[functionCount] = params;
+		functionParamCount[functionCount] = paramCount;
+		functionBody[functionCount] = -1;
+		functionSlotCount[functionCount] = paramCount;
+		functionCount++;
+		return functionCount - 1;
+	}
+
+	public double number(int node) {
+		return constants[a[node]];
+	}
+
+	public int child(int node, int index) {
+		// n-th statement of a block
+		return lists[a[node] + index];
+	}
+
+	public int childCount(int node) {
+		// the number of subtrees of any node, see childAt
+		switch (kind[node]) {
+		case NUMBER:
+		case VAR:
+		case FUNCTION:
+			return 0;
+		case ASSIGN:
+			return 1;
+		case IF:
+			return c[node] >= 0 ? 3 : 2;
+		case BLOCK:
+			return b[node];
+		case CALL:
+		case TAIL_CALL:
+			return c[node];
+		default:
+			// while loops and operators
+			return 2;
+		}
+	}
+
+	public int childAt(int node, int index) {
+		// the subtrees in the order they run, for passes which visit the
+		// whole tree: the value of an assignment, condition, then and else
+		// of an if, condition and body of a loop, the statements of a
+		// block, the arguments of a call and the operands of an operator
+		switch (kind[node]) {
+		case ASSIGN:
+			return b[node];
+		case IF:
+			return index == 0 ? a[node] : index == 1 ? b[node] : c[node];
+		case BLOCK:
+			return lists[a[node] + index];
+		case CALL:
+		case TAIL_CALL:
+			return lists[b[node] + index];
+		default:
+			return index == 0 ? a[node] : b[node];
+		}
+	}
+
+	public int arg(int node, int index) {
+		return lists[b[node] + index];
+	}
+
+	public int param(int function, int index) {
+		return lists[functionParams[function] + index];
+	}
+
+	public String functionName(int function) {
+		return names.name(functionName[function]);
+	}
+
+	public int mark() {
+		return size;
+	}
+
+	public void reset(int mark, int constantMark, int listMark) {
+		// drop the nodes of a statement which already ran
+		size = mark;
+		constantCount = constantMark;
+		listCount = listMark;
+	}
+
+	public void trim() {
+		// cut the arrays to their content before the tree is kept
+		kind = Arrays.copyOf(kind, size);
+		a = Arrays.copyOf(a, size);
+		b = Arrays.copyOf(b, size);
+		c = Arrays.copyOf(c, size);
+		pos = Arrays.copyOf(pos, size);
+		constants = Arrays.copyOf(constants, constantCount);
+		lists = Arrays.copyOf(lists, listCount);
+		functionName = Arrays.copyOf(functionName, functionCount);
+		functionParams = Arrays.copyOf(functionParams, functionCount);
+		functionParamCount = Arrays.copyOf(functionParamCount, functionCount);
+		functionBody = Arrays.copyOf(functionBody, functionCount);
+		functionSlotCount = Arrays.copyOf(functionSlotCount, functionCount);
+	}
+
+	public Ast copy() {
+		// a tree which the parser does not change anymore, e.g. for a
+		// compiler on another thread
+		Ast copy = new Ast(names.copy());
+		copy.kind = Arrays.copyOf(kind, size);
+		copy.a = Arrays.copyOf(a, size);
+		copy.b = Arrays.copyOf(b, size);
+		copy.c = Arrays.copyOf(c, size);
+		copy.pos = Arrays.copyOf(pos, size);
+		copy.size = size;
+		copy.constants = Arrays.copyOf(constants, constantCount);
+		copy.constantCount = constantCount;
+		copy.lists = Arrays.copyOf(lists, listCount);
+		copy.listCount = listCount;
+		copy.functionName = Arrays.copyOf(functionName, functionCount);
+		copy.functionParams = Arrays.copyOf(functionParams, functionCount);
+		copy.functionParamCount = Arrays.copyOf(functionParamCount,
+				functionCount);
+		copy.functionBody = Arrays.copyOf(functionBody, functionCount);
+		copy.functionSlotCount = Arrays.copyOf(functionSlotCount,
+				functionCount);
+		copy.functionCount = functionCount;
+		copy.root = root;
+		copy.rootSlotCount = rootSlotCount;
+		return copy;
+	}
+
+	public int copyTree(int node) {
+		// new nodes for a subtree of this tree, e.g. to keep the original
+		// of a statement which is rewritten
+		switch (kind[node]) {
+		case NUMBER:
+		case VAR:
+		case FUNCTION:
+			return add(kind[node], a[node], b[node], c[node], pos[node]);
+		case ASSIGN:
+			return add(ASSIGN, a[node], copyTree(b[node]), c[node], pos[node]);
+		case IF:
+			return add(IF, copyTree(a[node]), copyTree(b[node]),
+					c[node] >= 0 ? copyTree(c[node]) : -1, pos[node]);
+		case BLOCK:
+			return add(BLOCK, copyList(a[node], b[node]), b[node], 0,
+					pos[node]);
+		case CALL:
+		case TAIL_CALL:
+			return add(kind[node], a[node], copyList(b[node], c[node]),
+					c[node], pos[node]);
+		default:
+			// while loops and operators
+			return add(kind[node], copyTree(a[node]), copyTree(b[node]),
+					c[node], pos[node]);
+		}
+	}
+
+	private int copyList(int first, int count) {
+		int[] items = new int[count];
+		for (int i = 0; i < count; i++) {
+			items[i] = copyTree(lists[first + i]);
+		}
+		return addList(items, 0, count);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int f = 0; f < functionCount; f++) {
+			sb.append("function ").append(functionName(f)).append(" (");
+			for (int i = 0; i < functionParamCount[f]; i++) {
+				sb.append(i > 0 ? " " : "").append(names.name(param(f, i)));
+			}
+			sb.append(") ");
+			append(sb, functionBody[f]);
+			sb.append('\n');
+		}
+		if (root >= 0) {
+			append(sb, root);
+		}
+		return sb.toString();
+	}
+
+	private void append(StringBuilder sb, int node) {
+		switch (kind[node]) {
+		case NUMBER:
+			sb.append(number(node));
+			break;
+		case VAR:
+			sb.append(names.name(a[node]));
+			break;
+		case ASSIGN:
+			sb.append(names.name(a[node])).append(" = ");
+			append(sb, b[node]);
+			break;
+		case IF:
+			sb.append("if ");
+			append(sb, a[node]);
+			sb.append(' ');
+			append(sb, b[node]);
+			if (c[node] >= 0) {
+				sb.append(" else ");
+				append(sb, c[node]);
+			}
+			break;
+		case WHILE:
+			sb.append("while ");
+			append(sb, a[node]);
+			sb.append(' ');
+			append(sb, b[node]);
+			break;
+		case BLOCK:
+			sb.append("{ ");
+			for (int i = 0; i < b[node]; i++) {
+				append(sb, child(node, i));
+				sb.append(' ');
+			}
+			sb.append('}');
+			break;
+		case CALL:
+		case TAIL_CALL:
+			sb.append(functionName(a[node])).append('(');
+			for (int i = 0; i < c[node]; i++) {
+				sb.append(i > 0 ? " " : "");
+				append(sb, arg(node, i));
+			}
+			sb.append(')');
+			break;
+		case FUNCTION:
+			sb.append("function ").append(functionName(a[node]));
+			break;
+		default:
+			sb.append('(');
+			append(sb, a[node]);
+			sb.append(' ').append(KIND_NAMES[kind[node]]).append(' ');
+			append(sb, b[node]);
+			sb.append(')');
+			break;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package compiler;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class BatchRunner {
+	// rows below this count are run by the calling thread
+	public static final int SPLIT_ROWS = 16384;
+
+	private static final ForkJoinPool POOL = new ForkJoinPool();
+
+	// runs a script for the rows from up to to, one input column per
+	// variable, the results go to out
+	public interface Kernel {
+		void run(double[][] columns, double[] out, int from, int to);
+	}
+
+	public static void run(Kernel kernel, double[][] columns, double[] out,
+			int inputCount) {
+		if (columns.length != inputCount) {
+			throw new IllegalArgumentException("Program expects "
+					+ inputCount + " input columns");
+		}
+		for (double[] column : columns) {
+			if (column.length < out.length) {
+				throw new IllegalArgumentException("Input column has "
+						+ column.length + " rows, expected " + out.length);
+			}
+		}
+
+		if (out.length <= SPLIT_ROWS) {
+			kernel.run(columns, out, 0, out.length);
+		} else {
+			POOL.invoke(new Task(kernel, columns, out, 0, out.length));
+		}
+	}
+
+	private static class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Kernel kernel;
+		private final double[][] columns;
+		private final double[] out;
+		private final int from;
+		private final int to;
+
+		Task(Kernel kernel, double[][] columns, double[] out, int from, int to) {
+			this.kernel = kernel;
+			this.columns = columns;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SPLIT_ROWS) {
+				kernel.run(columns, out, from, to);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Task(kernel, columns, out, from, middle),
+						new Task(kernel, columns, out, middle, to));
+			}
+		}
+	}
+}
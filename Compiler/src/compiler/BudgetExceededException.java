@@ -0,0 +1,21 @@
+package compiler;
+
+public class BudgetExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	// the limit which stopped the run
+	public enum Kind {
+		STACK, INSTRUCTIONS, TIME, DEPTH, CANCELLED
+	}
+
+	private final Kind kind;
+
+	public BudgetExceededException(Kind kind, String message) {
+		super(message);
+		this.kind = kind;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+}
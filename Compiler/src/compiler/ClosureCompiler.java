@@ -0,0 +1,577 @@
+package compiler;
+
+public class ClosureCompiler {
+	// a compiled node of the tree, evaluated on the frame at base
+	public static abstract class Node {
+		public abstract double eval(FrameStack frames, int base);
+
+		public boolean isTrue(FrameStack frames, int base) {
+			return eval(frames, base) != 0;
+		}
+	}
+
+	public static final class Function {
+		public Node body;
+		public int frameSize;
+	}
+
+	private final Ast ast;
+	private Function[] functions = new Function[0];
+	private MemoCache[] memoCaches;
+
+	// null, or loops and calls are counted
+	private final ExecutionBudget budget;
+
+	public ClosureCompiler(Ast ast) {
+		this(ast, null);
+	}
+
+	public ClosureCompiler(Ast ast, ExecutionBudget budget) {
+		this.ast = ast;
+		this.budget = budget;
+	}
+
+	public Node compileStatement(int node, MemoCache[] caches) {
+		memoCaches = caches;
+		compileFunctions();
+		return compile(node);
+	}
+
+	private void compileFunctions() {
+		int first = functions.length;
+		if (first == ast.functionCount) {
+			return;
+		}
+
+		// all functions exist before any body, so calls can be resolved
+		Function[] newFunctions = new Function[ast.functionCount];
+		System.arraycopy(functions, 0, newFunctions, 0, first);
+		for (int function = first; function < ast.functionCount; function++) {
+			newFunctions[function] = new Function();
+			newFunctions[function].frameSize = ast.functionSlotCount[function];
+		}
+		functions = newFunctions;
+
+		for (int function = first; function < ast.functionCount; function++) {
+			functions[function].body = compile(ast.functionBody[function]);
+		}
+	}
+
+	private Node compile(int node) {
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+			return new Const(ast.number(node));
+		case Ast.VAR:
+			return new Local(ast.c[node]);
+		case Ast.ASSIGN:
+			return new Assign(ast.c[node], compile(ast.b[node]));
+		case Ast.ADD:
+		case Ast.SUB: {
+			int left = ast.a[node];
+			int right = ast.b[node];
+			if (ast.kind[right] == Ast.NUMBER) {
+				// a - k is the same as a + -k
+				double k = ast.kind[node] == Ast.ADD ? ast.number(right)
+						: -ast.number(right);
+				if (ast.kind[left] == Ast.VAR) {
+					return new AddLocalConst(ast.c[left], k);
+				}
+				return new AddConst(compile(left), k);
+			}
+			if (ast.kind[node] == Ast.ADD) {
+				return new Add(compile(left), compile(right));
+			}
+			return new Sub(compile(left), compile(right));
+		}
+		case Ast.MUL:
+			return new Mul(compile(ast.a[node]), compile(ast.b[node]));
+		case Ast.DIV:
+			return new Div(compile(ast.a[node]), compile(ast.b[node]));
+		case Ast.LESS:
+			if (ast.kind[ast.a[node]] == Ast.VAR
+					&& ast.kind[ast.b[node]] == Ast.NUMBER) {
+				return new LocalLessConst(ast.c[ast.a[node]],
+						ast.number(ast.b[node]));
+			}
+			return new Less(compile(ast.a[node]), compile(ast.b[node]));
+		case Ast.GREATER:
+			return new Greater(compile(ast.a[node]), compile(ast.b[node]));
+		case Ast.EQUAL:
+			return new Equal(compile(ast.a[node]), compile(ast.b[node]));
+		case Ast.AND:
+			return new And(compile(ast.a[node]), compile(ast.b[node]));
+		case Ast.OR:
+			return new Or(compile(ast.a[node]), compile(ast.b[node]));
+		case Ast.IF:
+			return new If(compile(ast.a[node]), compile(ast.b[node]),
+					ast.c[node] >= 0 ? compile(ast.c[node]) : new Const(0));
+		case Ast.WHILE:
+			if (budget != null) {
+				return new CheckedWhile(compile(ast.a[node]),
+						compile(ast.b[node]), budget);
+			}
+			return new While(compile(ast.a[node]), compile(ast.b[node]));
+		case Ast.BLOCK: {
+			if (ast.b[node] == 1) {
+				return compile(ast.child(node, 0));
+			}
+			Node[] statements = new Node[ast.b[node]];
+			for (int i = 0; i < statements.length; i++) {
+				statements[i] = compile(ast.child(node, i));
+			}
+			return new Block(statements);
+		}
+		case Ast.TAIL_CALL: {
+			Node[] args = new Node[ast.c[node]];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = compile(ast.arg(node, i));
+			}
+			Node tailCall = new TailCall(functions[ast.a[node]], args);
+			return budget != null ? new CheckedTailCall(tailCall, budget)
+					: tailCall;
+		}
+		case Ast.CALL: {
+			Node[] args = new Node[ast.c[node]];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = compile(ast.arg(node, i));
+			}
+			MemoCache cache = memoCaches[ast.a[node]];
+			Node call = cache != null ? new MemoCall(functions[ast.a[node]],
+					args, cache) : new Call(functions[ast.a[node]], args);
+			return budget != null ? new CheckedCall(call, budget) : call;
+		}
+		default:
+			// a function declaration has the value 0
+			return new Const(0);
+		}
+	}
+
+	static final class Const extends Node {
+		private final double value;
+
+		Const(double value) {
+			this.value = value;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return value;
+		}
+	}
+
+	static final class Local extends Node {
+		private final int slot;
+
+		Local(int slot) {
+			this.slot = slot;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return frames.slots[base + slot];
+		}
+	}
+
+	static final class Assign extends Node {
+		private final int slot;
+		private final Node value;
+
+		Assign(int slot, Node value) {
+			this.slot = slot;
+			this.value = value;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			double result = value.eval(frames, base);
+			frames.slots[base + slot] = result;
+			return result;
+		}
+	}
+
+	static final class AddLocalConst extends Node {
+		private final int slot;
+		private final double k;
+
+		AddLocalConst(int slot, double k) {
+			this.slot = slot;
+			this.k = k;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return frames.slots[base + slot] + k;
+		}
+	}
+
+	static final class AddConst extends Node {
+		private final Node a;
+		private final double k;
+
+		AddConst(Node a, double k) {
+			this.a = a;
+			this.k = k;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return a.eval(frames, base) + k;
+		}
+	}
+
+	static final class Add extends Node {
+		private final Node a;
+		private final Node b;
+
+		Add(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return a.eval(frames, base) + b.eval(frames, base);
+		}
+	}
+
+	static final class Sub extends Node {
+		private final Node a;
+		private final Node b;
+
+		Sub(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return a.eval(frames, base) - b.eval(frames, base);
+		}
+	}
+
+	static final class Mul extends Node {
+		private final Node a;
+		private final Node b;
+
+		Mul(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return a.eval(frames, base) * b.eval(frames, base);
+		}
+	}
+
+	static final class Div extends Node {
+		private final Node a;
+		private final Node b;
+
+		Div(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return a.eval(frames, base) / b.eval(frames, base);
+		}
+	}
+
+	static final class LocalLessConst extends Node {
+		private final int slot;
+		private final double k;
+
+		LocalLessConst(int slot, double k) {
+			this.slot = slot;
+			this.k = k;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return isTrue(frames, base) ? 1 : 0;
+		}
+
+		public boolean isTrue(FrameStack frames, int base) {
+			return frames.slots[base + slot] < k;
+		}
+	}
+
+	static final class Less extends Node {
+		private final Node a;
+		private final Node b;
+
+		Less(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return isTrue(frames, base) ? 1 : 0;
+		}
+
+		public boolean isTrue(FrameStack frames, int base) {
+			return a.eval(frames, base) < b.eval(frames, base);
+		}
+	}
+
+	static final class Greater extends Node {
+		private final Node a;
+		private final Node b;
+
+		Greater(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return isTrue(frames, base) ? 1 : 0;
+		}
+
+		public boolean isTrue(FrameStack frames, int base) {
+			return a.eval(frames, base) > b.eval(frames, base);
+		}
+	}
+
+	static final class Equal extends Node {
+		private final Node a;
+		private final Node b;
+
+		Equal(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return isTrue(frames, base) ? 1 : 0;
+		}
+
+		public boolean isTrue(FrameStack frames, int base) {
+			return a.eval(frames, base) == b.eval(frames, base);
+		}
+	}
+
+	static final class And extends Node {
+		private final Node a;
+		private final Node b;
+
+		And(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return isTrue(frames, base) ? 1 : 0;
+		}
+
+		public boolean isTrue(FrameStack frames, int base) {
+			// the second operand runs only if the first does not decide
+			return a.isTrue(frames, base) && b.isTrue(frames, base);
+		}
+	}
+
+	static final class Or extends Node {
+		private final Node a;
+		private final Node b;
+
+		Or(Node a, Node b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			return isTrue(frames, base) ? 1 : 0;
+		}
+
+		public boolean isTrue(FrameStack frames, int base) {
+			return a.isTrue(frames, base) || b.isTrue(frames, base);
+		}
+	}
+
+	static final class If extends Node {
+		private final Node condition;
+		private final Node thenNode;
+		private final Node elseNode;
+
+		If(Node condition, Node thenNode, Node elseNode) {
+			this.condition = condition;
+			this.thenNode = thenNode;
+			this.elseNode = elseNode;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			if (condition.isTrue(frames, base)) {
+				return thenNode.eval(frames, base);
+			}
+			return elseNode.eval(frames, base);
+		}
+	}
+
+	static final class While extends Node {
+		private final Node condition;
+		private final Node body;
+
+		While(Node condition, Node body) {
+			this.condition = condition;
+			this.body = body;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			double result = 0;
+			while (condition.isTrue(frames, base)) {
+				result = body.eval(frames, base);
+			}
+			return result;
+		}
+	}
+
+	static final class CheckedWhile extends Node {
+		private final Node condition;
+		private final Node body;
+		private final ExecutionBudget budget;
+
+		CheckedWhile(Node condition, Node body, ExecutionBudget budget) {
+			this.condition = condition;
+			this.body = body;
+			this.budget = budget;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			double result = 0;
+			while (condition.isTrue(frames, base)) {
+				result = body.eval(frames, base);
+				budget.tick();
+			}
+			return result;
+		}
+	}
+
+	static final class Block extends Node {
+		private final Node[] statements;
+
+		Block(Node[] statements) {
+			this.statements = statements;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			double result = 0;
+			for (Node statement : statements) {
+				result = statement.eval(frames, base);
+			}
+			return result;
+		}
+	}
+
+	static final class Call extends Node {
+		private final Function function;
+		private final Node[] args;
+
+		Call(Function function, Node[] args) {
+			this.function = function;
+			this.args = args;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			int callee = frames.push(function.frameSize);
+
+			// the parameters are the first slots of the frame
+			for (int i = 0; i < args.length; i++) {
+				double value = args[i].eval(frames, base);
+				frames.slots[callee + i] = value;
+			}
+
+			double result;
+			do {
+				frames.tailCall = false;
+				result = function.body.eval(frames, callee);
+			} while (frames.tailCall);
+			frames.pop(callee);
+			return result;
+		}
+	}
+
+	static final class MemoCall extends Node {
+		private final Function function;
+		private final Node[] args;
+		private final MemoCache cache;
+
+		MemoCall(Function function, Node[] args, MemoCache cache) {
+			this.function = function;
+			this.args = args;
+			this.cache = cache;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			// the arguments are copied behind the frame as the cache key
+			int callee = frames.push(function.frameSize + args.length);
+
+			for (int i = 0; i < args.length; i++) {
+				double value = args[i].eval(frames, base);
+				frames.slots[callee + i] = value;
+			}
+
+			int entry = cache.find(frames.slots, callee);
+			if (entry >= 0) {
+				frames.pop(callee);
+				return cache.value(entry);
+			}
+			int key = callee + function.frameSize;
+			System.arraycopy(frames.slots, callee, frames.slots, key,
+					args.length);
+
+			double result;
+			do {
+				frames.tailCall = false;
+				result = function.body.eval(frames, callee);
+			} while (frames.tailCall);
+			cache.put(frames.slots, key, result);
+			frames.pop(callee);
+			return result;
+		}
+	}
+
+	static final class TailCall extends Node {
+		private final Function function;
+		private final Node[] args;
+
+		TailCall(Function function, Node[] args) {
+			this.function = function;
+			this.args = args;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			// the calling Call node runs the body again on the same frame
+			int first = frames.push(args.length);
+			for (int i = 0; i < args.length; i++) {
+				double value = args[i].eval(frames, base);
+				frames.slots[first + i] = value;
+			}
+			frames.tailCall(base, args.length, function.frameSize);
+			return 0;
+		}
+	}
+
+	static final class CheckedCall extends Node {
+		private final Node call;
+		private final ExecutionBudget budget;
+
+		CheckedCall(Node call, ExecutionBudget budget) {
+			this.call = call;
+			this.budget = budget;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			// a hit in the cache counts as a call as well
+			budget.enter();
+			double result = call.eval(frames, base);
+			budget.exit();
+			return result;
+		}
+	}
+
+	static final class CheckedTailCall extends Node {
+		private final Node tailCall;
+		private final ExecutionBudget budget;
+
+		CheckedTailCall(Node tailCall, ExecutionBudget budget) {
+			this.tailCall = tailCall;
+			this.budget = budget;
+		}
+
+		public double eval(FrameStack frames, int base) {
+			budget.tick();
+			return tailCall.eval(frames, base);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class ColumnEvaluator {
+	// rows which are evaluated together, one node at a time
+	public static final int CHUNK_ROWS = 1024;
+
+	private final Ast ast;
+	private final int inputCount;
+
+	public ColumnEvaluator(Ast ast, int inputCount) {
+		this.ast = ast;
+		this.inputCount = inputCount;
+	}
+
+	public static boolean supports(Ast ast) {
+		// straight line scripts: assignments and expressions at the top
+		// level, if only as a choice between two expressions
+		for (int i = 0; i < ast.b[ast.root]; i++) {
+			int statement = ast.child(ast.root, i);
+			if (ast.kind[statement] == Ast.ASSIGN) {
+				statement = ast.b[statement];
+			}
+			if (!isExpression(ast, statement)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isExpression(Ast ast, int node) {
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+		case Ast.VAR:
+			return true;
+		case Ast.IF:
+			return isExpression(ast, ast.a[node])
+					&& isSingleExpression(ast, ast.b[node])
+					&& (ast.c[node] < 0 || isSingleExpression(ast, ast.c[node]));
+		case Ast.ADD:
+		case Ast.SUB:
+		case Ast.MUL:
+		case Ast.DIV:
+		case Ast.LESS:
+		case Ast.GREATER:
+		case Ast.EQUAL:
+		case Ast.AND:
+		case Ast.OR:
+			return isExpression(ast, ast.a[node])
+					&& isExpression(ast, ast.b[node]);
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isSingleExpression(Ast ast, int block) {
+		return ast.b[block] == 1 && isExpression(ast, ast.child(block, 0));
+	}
+
+	// a column of CHUNK_ROWS values for every variable and temporary value
+	private double[][] variables;
+	private double[][] temps = new double[8][];
+	private int tempCount;
+
+	public void run(double[][] columns, double[] out, int from, int to) {
+		variables = new double[ast.rootSlotCount][CHUNK_ROWS];
+
+		for (int start = from; start < to; start += CHUNK_ROWS) {
+			int rows = Math.min(CHUNK_ROWS, to - start);
+
+			for (int slot = 0; slot < variables.length; slot++) {
+				if (slot < inputCount) {
+					System.arraycopy(columns[slot], start, variables[slot], 0,
+							rows);
+				} else {
+					Arrays.fill(variables[slot], 0);
+				}
+			}
+
+			double[] result = null;
+			for (int i = 0; i < ast.b[ast.root]; i++) {
+				tempCount = 0;
+				int statement = ast.child(ast.root, i);
+				if (ast.kind[statement] == Ast.ASSIGN) {
+					result = variables[ast.c[statement]];
+					double[] value = eval(ast.b[statement], rows);
+					if (value != result) {
+						System.arraycopy(value, 0, result, 0, rows);
+					}
+				} else {
+					result = eval(statement, rows);
+				}
+			}
+
+			if (result != null) {
+				System.arraycopy(result, 0, out, start, rows);
+			} else {
+				Arrays.fill(out, start, start + rows, 0);
+			}
+		}
+	}
+
+	private double[] eval(int node, int rows) {
+		// returns the column of the node, a variable column must not be
+		// written by the caller
+		double[] r;
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+			r = newTemp();
+			Arrays.fill(r, 0, rows, ast.number(node));
+			return r;
+		case Ast.VAR:
+			return variables[ast.c[node]];
+		case Ast.IF: {
+			double[] condition = eval(ast.a[node], rows);
+			double[] thenValue = eval(ast.child(ast.b[node], 0), rows);
+			double[] elseValue = null;
+			if (ast.c[node] >= 0) {
+				elseValue = eval(ast.child(ast.c[node], 0), rows);
+			}
+			r = newTemp();
+			for (int i = 0; i < rows; i++) {
+				r[i] = condition[i] != 0 ? thenValue[i]
+						: elseValue != null ? elseValue[i] : 0;
+			}
+			return r;
+		}
+		default:
+			break;
+		}
+
+		double[] a = eval(ast.a[node], rows);
+		double[] b = eval(ast.b[node], rows);
+		r = newTemp();
+
+		switch (ast.kind[node]) {
+		case Ast.ADD:
+			for (int i = 0; i < rows; i++) {
+				r[i] = a[i] + b[i];
+			}
+			break;
+		case Ast.SUB:
+			for (int i = 0; i < rows; i++) {
+				r[i] = a[i] - b[i];
+			}
+			break;
+		case Ast.MUL:
+			for (int i = 0; i < rows; i++) {
+				r[i] = a[i] * b[i];
+			}
+			break;
+		case Ast.DIV:
+			for (int i = 0; i < rows; i++) {
+				r[i] = a[i] / b[i];
+			}
+			break;
+		case Ast.LESS:
+			for (int i = 0; i < rows; i++) {
+				r[i] = a[i] < b[i] ? 1 : 0;
+			}
+			break;
+		case Ast.GREATER:
+			for (int i = 0; i < rows; i++) {
+				r[i] = a[i] > b[i] ? 1 : 0;
+			}
+			break;
+		case Ast.EQUAL:
+			for (int i = 0; i < rows; i++) {
+				r[i] = a[i] == b[i] ? 1 : 0;
+			}
+			break;
+		case Ast.AND:
+			for (int i = 0; i < rows; i++) {
+				r[i] = a[i] != 0 && b[i] != 0 ? 1 : 0;
+			}
+			break;
+		default:
+			for (int i = 0; i < rows; i++) {
+				r[i] = a[i] != 0 || b[i] != 0 ? 1 : 0;
+			}
+			break;
+		}
+		return r;
+	}
+
+	private double[] newTemp() {
+		// the temporary columns are reused by the next statement
+		if (tempCount == temps.length) {
+			temps = Arrays.copyOf(temps, tempCount * 2);
+		}
+		if (temps[tempCount] == null) {
+			temps[tempCount] = new double[CHUNK_ROWS];
+		}
+		tempCount++;
+		return temps[tempCount - 1];
+	}
+}
@@ -0,0 +1,7 @@
+package compiler;
+
+public interface CompiledFunction {
+	// a function in a class of its own, generated by
+	// Compiler.compileFunction; the arguments are slots[base] and on
+	double call(double[] slots, int base);
+}
@@ -1,22 +1,33 @@
 package compiler;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.generic.ArrayType;
 import org.apache.bcel.generic.BranchInstruction;
 import org.apache.bcel.generic.ClassGen;
 import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.FieldGen;
+import org.apache.bcel.generic.IINC;
+import org.apache.bcel.generic.Instruction;
 import org.apache.bcel.generic.InstructionConstants;
 import org.apache.bcel.generic.InstructionFactory;
 import org.apache.bcel.generic.InstructionHandle;
 import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.LDC2_W;
 import org.apache.bcel.generic.MethodGen;
 import org.apache.bcel.generic.ObjectType;
 import org.apache.bcel.generic.PUSH;
@@ -27,16 +38,6 @@ import org.junit.Test;
 import static org.apache.bcel.Constants.*;
 
 public class Compiler {
-	private static final char E = 'E';
-	private static final char E_S = 'e';
-	private static final char EXP = '7';
-	private static final char DOT = '.';
-	private static final char NUMBER = '9';
-	private static final char START = 's';
-	private static final char MANTISSA = '8';
-	private int readPos;
-	private int lookAheadPos;
-	private Token currentToken = new Token();
 	private String text;
 
 	@Test
@@ -310,15 +311,450 @@ public class Compiler {
 		doTest(testText, 720);
 	}
 
-	public static int runningNumber = 0;
+	@Test
+	public void testShortCircuit() throws Exception {
+		// spin never returns, so its call must not run
+		testText = "function spin (n) { while 1 > 0 { } n } ";
+		doTest(testText + "0 & spin(1)", 0);
+		doTest(testText + "1 | spin(1)", 1);
+		doTest(testText + "if 2 < 1 & spin(1) { 5 } else { 7 }", 7);
+
+		// comparisons with NaN are false, NaN itself is true
+		testText = "x = 0 / 0 ";
+		doTest(testText + "if x < 1 | x > 1 | x = x { 1 } else { 2 }", 2);
+		doTest(testText + "if x { 1 } else { 2 }", 1);
+		doTest(testText + "(x < 1) | (x = x)", 0);
+
+		testText = "a = 1 b = 0 ";
+		doTest(testText + "(a | b) & (b | a) & (a & b | a)", 1);
+		doTest(testText + "a & (b | b & a)", 0);
+		doTest(testText
+				+ "i = 0 n = 0 while i < 10 { if i < 3 | i > 5 & i < 8 { n = n + 1 } i = i + 1 } n",
+				5);
+
+		// the loop condition jumps straight to the body, no 0/1 values
+		testText = "i = 0 n = 0 while i < 10 & (i < 3 | i > 5) { n = n + i i = i + 1 } n";
+		doTest(testText, 3);
+		String code = generatedCode("exec");
+		Assert.assertFalse(code, code.contains("iand"));
+		Assert.assertFalse(code, code.contains("ior"));
+		Assert.assertEquals(code, 3, code.split("\\n\\d+:\\s+if").length - 1);
+		Assert.assertEquals(code, 1, code.split("\\n\\d+:\\s+goto").length - 1);
+	}
+
+	@Test
+	public void testConstantFolding() throws Exception {
+		doTest("2 * 3.1415927", 2 * 3.1415927);
+		Assert.assertFalse(generatedCode("exec").contains("dmul"));
+		Assert.assertEquals(7, parse("1 + 2 * 3"), 0.0);
+		Assert.assertEquals(0, parse("x = 2 x * 3"), 0.0);
+
+		// a call of a pure function with constant arguments
+		doTest("function fact (x) { if x = 1 { x } else { x*fact ( x-1 ) } } fact(6)",
+				720);
+		String code = generatedCode("exec");
+		Assert.assertTrue(code, code.contains("720.0"));
+		Assert.assertFalse(code, code.contains("invokestatic"));
+
+		// x * 1, x / 1 and x - 0 are x
+		doTest("x = 5 y = x * 1 + x / 1 - 0 y", 10);
+		code = generatedCode("exec");
+		Assert.assertFalse(code, code.contains("dmul") || code.contains("ddiv")
+				|| code.contains("dsub"));
+
+		// x + 0 is not x for x = -0, and -0 stays -0
+		doTest("x = 0 * (0 - 1) 1 / (x + 0)", Double.POSITIVE_INFINITY);
+		doTest("x = 0 * (0 - 1) 1 / (x * 1)", Double.NEGATIVE_INFINITY);
+		doTest("1 / (0 * (0 - 1))", Double.NEGATIVE_INFINITY);
+
+		// a call which does not finish stays
+		Ast ast = Parser
+				.parse("function spin (n) { while 1 > 0 { } n } x = 1 y = 1 & 0 | x < 2 & 1 spin(3)");
+		Assert.assertEquals(4, ConstantFolder.fold(ast));
+		Assert.assertEquals("{ function spin x = 1.0 y = (x < 2.0) spin(3.0) }", ast.toString()
+				.substring(ast.toString().indexOf('\n') + 1));
+	}
+
+	@Test
+	public void testControlFlowSimplification() throws Exception {
+		doTest("if 3 > 2 { 5 } else { 7 }", 5);
+		String code = generatedCode("exec");
+		Assert.assertFalse(code, code.contains("7.0") || code.contains("if"));
+
+		doTest("x = 4 while false { x = 1 } x", 4);
+		code = generatedCode("exec");
+		Assert.assertFalse(code, code.contains("goto") || code.contains("if"));
+
+		// f is declared but never called, h moves to the place of f
+		setInlineSize(0);
+		doTest("function g (a) { a * 3 } function f (a) { g(a) } "
+				+ "function h (a) { g(a) + 1 } x = 2 h(x)", 7);
+		Assert.assertNull(generatedCode("f"));
+		Assert.assertNotNull(generatedCode("h"));
+		setInlineSize(Inliner.DEFAULT_MAX_SIZE);
+
+		// a declaration as the last statement still has the value 0
+		doTest("x = 5 function f (a) { a }", 0);
+
+		// nothing after an endless loop runs, the effects before it stay
+		Ast ast = Parser.parse("x = 1 y = 2 x while 1 { x = x + 1 } x = 5 x");
+		Assert.assertEquals(3, ControlFlowSimplifier.simplify(ast));
+		Assert.assertEquals(3, ast.b[ast.root]);
+	}
+
+	@Test
+	public void testLocalSlots() throws Exception {
+		// only the last value of x is read, the other stores go
+		doTest("x = 5 x = 6 x", 6);
+		String code = generatedCode("exec");
+		Assert.assertEquals(code, 1, count(code, "dstore"));
+
+		// the temporaries follow each other and share one slot
+		testText = "a = 1 b = a + 1 c = b * 2 d = c + 3 e = d * d e";
+		setOptimization(false);
+		doTest(testText, 49);
+		Assert.assertTrue(generatedCode("exec").contains("max_locals = 10"));
+		setOptimization(true);
+		doTest(testText, 49);
+		Assert.assertTrue(generatedCode("exec").contains("max_locals = 2"));
+
+		// read before an assignment on some paths, so the 0 stays, also
+		// after a tail call
+		doTest("function z (n acc) { if n > 100 { t = 5 } t = t + 1 if n = 0 { acc + t } else { z(n - 1 acc) } } z(5 0)",
+				1);
+		doTest("i = 0 s = 0 while i < 10 { t = i * i s = s + t i = i + 1 } s",
+				285);
+	}
+
+	@Test
+	public void testLoopInvariantMotion() throws Exception {
+		// 2 * r * r is computed once, the loop reads its variable
+		testText = "r = 3 i = 0 s = 0 while i < 1000 { s = s + 2 * r * r i = i + 1 } s";
+		doTest(testText, 18000);
+		Ast ast = Parser.parse(testText);
+		Assert.assertEquals(1, LoopInvariantMotion.hoist(ast));
+		Assert.assertEquals(4, ast.rootSlotCount);
+
+		// a pure call runs once, but only if the loop does; spin never
+		// returns
+		testText = "function spin (n) { while 1 > 0 { } n } function sq (x) { x * x } ";
+		doTest(testText + "k = 4 i = 0 s = 0 while i < 3 { s = s + sq(k) i = i + 1 } s",
+				48);
+		doTest(testText + "i = 5 while i < 3 { i = i + spin(1) } i", 5);
+
+		// the right operand of & may be skipped, its call stays in the loop
+		doTest(testText + "z = 0 i = 0 while i < 3 & (z & spin(1)) = 0 { i = i + 1 } i",
+				3);
+
+		// invariant in the inner loop and then in the outer one
+		doTest("n = 3 i = 0 s = 0 while i < n { j = 0 while j < n { s = s + n * n j = j + 1 } i = i + 1 } s",
+				81);
+	}
+
+	@Test
+	public void testValueNumbering() throws Exception {
+		// a * b is computed once, also when written as b * a
+		testText = "a = 3 b = 4 c = 2 (a * b + c) / (b * a - c)";
+		doTest(testText, 1.4);
+		Assert.assertEquals(1, count(generatedCode("exec"), "dmul"));
+
+		// the value is reused in a later statement and in a branch, an
+		// assignment in between means it is computed again
+		testText = "a = 3 b = 4 x = a * b if x > 0 { y = a * b } a = 5 x + y + a * b";
+		doTest(testText, 44);
+		Ast ast = Parser.parse(testText);
+		Assert.assertEquals(1, ValueNumbering.eliminate(ast));
+
+		// a pure call with the same arguments runs once, one in a loop
+		// sees the variables the loop changes
+		testText = "function sq (x) { x * x } k = 3 s = sq(k) + sq(k) i = 0 while i < 3 { s = s + sq(i) + sq(i) i = i + 1 } s";
+		doTest(testText, 28);
+		ast = Parser.parse(testText);
+		Assert.assertEquals(2, ValueNumbering.eliminate(ast));
+
+		// nested values are assigned inner first
+		doTest("a = 2 b = 3 x = a * b + 1 y = a * b + 1 z = a * b z + x + y",
+				20);
+
+		// a copy has the value of its variable; a value of the loop body
+		// is not known after the loop, which may not run it
+		testText = "function f (a b) { c = a c * b + a * b } f(3 4)";
+		doTest(testText, 24);
+		ast = Parser.parse(testText);
+		Assert.assertEquals(1, ValueNumbering.eliminate(ast));
+		doTest("function f (p) { i = 0 s = 0 while i < p { s = s + i * 2 i = i + 1 } s + i * 2 } f(4)",
+				20);
+	}
+
+	@Test
+	public void testInlining() throws Exception {
+		// min and pi are replaced by their bodies and folded, no method
+		// is left
+		testText = "function pi () { 3.1415927 } function min (a b) { if a < b { a } else { b } } "
+				+ "r = 2 min(r 23) * pi()";
+		doTest(testText, 2 * 3.1415927);
+		Assert.assertNull(generatedCode("min"));
+		Assert.assertNull(generatedCode("pi"));
+		Assert.assertFalse(generatedCode("exec").contains("invokestatic"));
+
+		// a parameter which is assigned gets its own variable, the other
+		// variables start with 0 on every call
+		testText = "function f (n) { n = n + 1 if n > 5 { t = 1 } t + n } i = 0 s = 0 "
+				+ "while i < 8 { s = s + f(i) i = i + 1 } s";
+		doTest(testText, 39);
+		Assert.assertNull(generatedCode("f"));
+
+		// recursive functions and large bodies are still called
+		testText = "function fact (x) { if x = 1 { 1 } else { x * fact(x - 1) } } "
+				+ "function twice (x) { fact(x) + fact(x) } k = 5 twice(k)";
+		doTest(testText, 240);
+		Assert.assertNotNull(generatedCode("fact"));
+		Assert.assertNull(generatedCode("twice"));
+		setInlineSize(3);
+		doTest(testText, 240);
+		Assert.assertNotNull(generatedCode("twice"));
+		setInlineSize(Inliner.DEFAULT_MAX_SIZE);
+
+		// an inlined body in an expression, its loop runs inside
+		doTest("function sum (n) { s = 0 while n > 0 { s = s + n n = n - 1 } s } x = 4 x = 1 + sum(x) * 2 x",
+				21);
+	}
+
+	@Test
+	public void testInductionVariables() throws Exception {
+		// the sum is computed without the loop, the loop stays for a start
+		// which is not an integer
+		testText = "i = 0 s = 0 while i < 100000 { s = s + i i = i + 1 } s";
+		doTest(testText, 4999950000.0);
+		Ast ast = Parser.parse(testText);
+		Assert.assertEquals(1, InductionVariables.reduce(ast));
+		doTest("i = 0.5 s = 0 while i < 3 { s = s + i i = i + 1 } s", 4.5);
+		doTest("i = 5 s = 1 while i < 3 { s = s + i i = i + 1 } s", 1);
+
+		// counting down with sums before and after the step, the loop has
+		// the value of its last statement
+		doTest("n = 0 i = 10 s = 0 t = 7 while i > n { s = s + i * 3 i = i - 1 t = t - 2 } s + t",
+				152);
+		doTest("i = 0 s = 0 while i < 5 { s = s + 2 i = i + 1 }", 5);
+		doTest("i = 0 s = 0 * (0 - 1) while i < 3 { s = s + 0 i = i + 1 } 1 / s",
+				Double.POSITIVE_INFINITY);
+
+		// a product with the counter becomes a sum of its own
+		testText = "function f (x) { x } i = 0 s = 0 while i < 10 { s = s + f(i * 4) i = i + 2 } s";
+		doTest(testText, 80);
+		ast = Parser.parse(testText);
+		Assert.assertEquals(1, InductionVariables.reduce(ast));
+		doTest("function f (x) { x } i = 0.5 s = 0 while i < 3 { s = s + f(i * 4) i = i + 1 } s",
+				18);
+	}
+
+	@Test
+	public void testPassManager() throws Exception {
+		// a pass of its own runs after the usual ones, the IR is printed
+		// before and after every pass
+		final int[] runs = new int[1];
+		PassManager manager = PassManager.optimizations(Inliner.DEFAULT_MAX_SIZE);
+		manager.add(new Pass() {
+			public String name() {
+				return "count";
+			}
+
+			public int run(Ast ast) {
+				runs[0]++;
+				return 0;
+			}
+		});
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manager.setDump(new PrintStream(out));
+		setPasses(manager);
+		testText = "i = 0 s = 0 while i < 10 { s = s + i i = i + 1 } s";
+		doTest(testText, 45);
+		setPasses(null);
+		Assert.assertEquals(1, runs[0]);
+		Assert.assertEquals(7, count(out.toString(), "; before "));
+		Assert.assertTrue(out.toString().contains("; after induction, 1 changes"));
+
+		// the counter, the sum and the value of the loop have a phi in the
+		// header, which is reached from the entry and the body
+		Ssa ssa = Ssa.build(Parser.parse(testText), -1);
+		Assert.assertEquals(4, ssa.blocks.size());
+		Assert.assertEquals(3, count(ssa.toString(), "phi"));
+		Assert.assertEquals(2, ssa.blocks.get(1).predecessors.size());
+
+		// & branches to a block of its own, an if without else joins 0
+		ssa = Ssa.build(Parser.parse("function f (a b) { if a > 0 & b > 0 { a } } f(1 2)"), 0);
+		Assert.assertEquals(5, ssa.blocks.size());
+		Assert.assertEquals(2, count(ssa.toString(), "param"));
+		Assert.assertEquals(1, count(ssa.toString(), "phi"));
+	}
+
+	private static int count(String text, String part) {
+		int count = 0;
+		for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void testSharedAst() {
+		// the tree is parsed once and run by both backends
+		Ast ast = Parser
+				.parse("function sq (x) { x * x } i = 0 s = 0 while i < 4 { s = s + sq(i) i = i + 1 } s");
+
+		class_name = "ExecExpr" + runningNumber.incrementAndGet();
+		compile(ast);
+
+		Assert.assertEquals(14.0, new Interpreter().execute(ast), 0.0);
+		Assert.assertEquals(14.0, exec(), 0.0);
+	}
+
+	@Test
+	public void testTailCalls() {
+		// far deeper than the Java stack allows
+		testText = "function count (n acc) { if n = 0 { acc } else { count(n - 1 acc + n) } } count(1000000 0)";
+		doTest(testText, 500000500000.0);
+
+		// the arguments are evaluated before the parameters change
+		testText = "function fib (a b n) { if n = 0 { a } else { fib(b a + b n - 1) } } fib(0 1 50)";
+		doTest(testText, 12586269025.0);
+
+		// the other variables start with 0 on every pass
+		testText = "function z (n acc) { if n > 100 { t = 5 } t = t + 1 if n = 0 { acc + t } else { z(n - 1 acc) } } z(5 0)";
+		doTest(testText, 1);
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		int rows = 50000;
+		double[] x = new double[rows];
+		double[] y = new double[rows];
+		for (int row = 0; row < rows; row++) {
+			x[row] = row * 0.5;
+			y[row] = rows - row;
+		}
+
+		class_name = "ExecExpr" + runningNumber.incrementAndGet();
+		compile(Parser.parse("d = x - y if d > 0 { d } else { 0 - d }", "x",
+				"y"), 2);
+		Class<?> program = getClass().getClassLoader().loadClass(class_name);
+
+		double[] out = new double[rows];
+		BatchRunner.run(batchKernel(program), new double[][] { x, y }, out, 2);
+		for (int row = 0; row < rows; row++) {
+			Assert.assertEquals(Math.abs(x[row] - y[row]), out[row], 0.0);
+		}
+
+		// a memoized function with two parameters, on more rows than one
+		// thread takes; the rows do not use the cache of exec
+		rows = BatchRunner.SPLIT_ROWS * 8;
+		x = new double[rows];
+		for (int row = 0; row < rows; row++) {
+			x[row] = row % 1000;
+		}
+		class_name = "ExecExpr" + runningNumber.incrementAndGet();
+		compile(Parser.parse("function g (a b) { if a < 1 { b } else { g(a - 1 b + 1) } } "
+				+ "function f (x) { g(x 2) } f(x) + f(x * 2)", "x"), 1);
+		program = getClass().getClassLoader().loadClass(class_name);
+		Assert.assertFalse(generatedCode("g$batch").contains("MemoCache"));
+
+		out = new double[rows];
+		BatchRunner.run(batchKernel(program), new double[][] { x }, out, 1);
+		for (int row = 0; row < rows; row++) {
+			Assert.assertEquals(x[row] * 3 + 4, out[row], 0.0);
+		}
+	}
+
+	@Test
+	public void testMemoization() throws Exception {
+		// the calls run in the generated class, not in the compiler
+		setOptimization(false);
+		testText = "function fi (n) { if n < 2 { n } else { fi(n - 1) + fi(n - 2) } } fi(60)";
+		doTest(testText, 1548008755920.0);
+
+		MemoCache[] caches = (MemoCache[]) getClass().getClassLoader()
+				.loadClass(class_name).getField("memo").get(null);
+		Assert.assertEquals(58, MemoCache.hits(caches));
+		Assert.assertEquals(61, MemoCache.misses(caches));
+
+		setMemoization(false);
+		testText = "function fi (n) { if n < 2 { n } else { fi(n - 1) + fi(n - 2) } } fi(20)";
+		doTest(testText, 6765);
+		setMemoization(true);
+		setOptimization(true);
+	}
+
+	@Test
+	public void testExecutionBudget() throws Exception {
+		ExecutionBudget budget = new ExecutionBudget();
+		budget.setMaxInstructions(10000);
+		budget.setMaxDepth(100);
+		setBudgetChecks(true);
+
+		// without a budget in the field the code runs unlimited
+		testText = "i = 0 while i < 20000 { i = i + 1 } i";
+		doTest(testText, 20000);
+
+		Class<?> program = compileBudgeted(
+				"i = 0 while 1 > 0 { i = i + 1 } i", budget);
+		assertExceeded(program, BudgetExceededException.Kind.INSTRUCTIONS);
+		Assert.assertEquals(10001, budget.getInstructions());
+
+		program = compileBudgeted(
+				"function f (n) { if n < 1 { 0 } else { 1 + f(n - 1) } } f(1000)",
+				budget);
+		assertExceeded(program, BudgetExceededException.Kind.DEPTH);
+
+		program = compileBudgeted(
+				"function count (n acc) { if n = 0 { acc } else { count(n - 1 acc + n) } } count(1000000 0)",
+				budget);
+		assertExceeded(program, BudgetExceededException.Kind.INSTRUCTIONS);
+
+		setBudgetChecks(false);
+	}
+
+	private Class<?> compileBudgeted(String script, ExecutionBudget budget)
+			throws Exception {
+		class_name = "ExecExpr" + runningNumber.incrementAndGet();
+		compile(Parser.parse(script));
+		Class<?> program = getClass().getClassLoader().loadClass(class_name);
+		program.getField("budget").set(null, budget);
+		return program;
+	}
+
+	private void assertExceeded(Class<?> program,
+			BudgetExceededException.Kind kind) throws Exception {
+		ExecutionBudget budget = (ExecutionBudget) program.getField("budget")
+				.get(null);
+		budget.start();
+		try {
+			program.getMethod("exec").invoke(null);
+			Assert.fail("budget exceeded");
+		} catch (InvocationTargetException e) {
+			Assert.assertEquals(kind,
+					((BudgetExceededException) e.getCause()).getKind());
+		}
+	}
+
+	private String generatedCode(String methodName) throws IOException {
+		// the byte code of a method of the last generated class
+		JavaClass generated = new ClassParser("bin/" + class_name + ".class")
+				.parse();
+		for (org.apache.bcel.classfile.Method method : generated.getMethods()) {
+			if (method.getName().equals(methodName)) {
+				return method.getCode().toString();
+			}
+		}
+		return null;
+	}
+
+	// every generated class gets its own name, also across threads
+	private static final AtomicInteger runningNumber = new AtomicInteger();
 
 	private void doTest(String parseText, double expected) {
-		double result = 0.0;
 		// generate instruction list
 
-		runningNumber++;
-
-		class_name = "ExecExpr" + runningNumber;
+		class_name = "ExecExpr" + runningNumber.incrementAndGet();
 
 		try {
 			parse(parseText);
@@ -326,6 +762,16 @@ public class Compiler {
 			System.err.println("Unable to parse Expression");
 		}
 
+		double result = exec();
+
+		// check result
+		Assert.assertEquals("Wrong result: ", expected, result,
+				expected * 0.0000001);
+	}
+
+	private double exec() {
+		double result = 0.0;
+
 		// load class
 		ClassLoader classLoader = this.getClass().getClassLoader();
 
@@ -355,42 +801,239 @@ public class Compiler {
 			System.err.println("Could not invoke method (exec) in class: "
 					+ class_name);
 		}
-
-		// check result
-		Assert.assertEquals("Wrong result: ", expected, result,
-				expected * 0.0000001);
+		return result;
 	}
 
 	public double parse(String newText) {
 
-		prepareClassFile();
-
 		text = newText;
 		// parse the text
 
-		double result = 0;
-		readPos = 0;
-		lookAheadPos = 0;
+		return parse(new Lexer(text, new Names()));
+	}
 
-		symbolTable = new LinkedHashMap<String, Double>();
-		localVarAdressTable = new LinkedHashMap<String, Integer>();
-		functionTable = new LinkedHashMap<String, FuncEntry>();
+	public double parse(Reader reader) {
+		// the source is compiled while it is read
+		text = null;
+		return parse(new Lexer(reader, new Names()));
+	}
+
+	private double parse(Lexer lexer) {
+		Ast ast = new Ast(lexer.getNames());
 
 		try {
-			nextToken();
-			nextToken();
+			new Parser(lexer, ast).parseProgram();
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+
+			// an empty program, exec returns 0
+			ast = new Ast(lexer.getNames());
+			ast.root = ast.add(Ast.BLOCK, 0, 0, 0, 0);
+		}
 
-			result = parseStatList();
+		compile(ast);
 
-			if (currentToken.kind != Character.MIN_VALUE) {
-				parserError("end of text", text.length());
+		// the value of the script if the compiler knows it without running
+		// the class, e.g. a constant expression; 0 otherwise
+		int root = this.ast.root;
+		if (this.ast.kind[root] == Ast.BLOCK && this.ast.b[root] > 0) {
+			int last = this.ast.child(root, this.ast.b[root] - 1);
+			if (this.ast.kind[last] == Ast.NUMBER) {
+				return this.ast.number(last);
 			}
-		} catch (Exception e) {
-			System.err.println(e.getMessage());
 		}
+		return 0;
+	}
+
+	public void compile(Ast newAst) {
+		compile(newAst, 0);
+	}
+
+	public void compile(Ast newAst, int inputs) {
+		// generates the class of a program which has been parsed before,
+		// the first variables are the inputs of execBatch
+		ast = newAst;
+		inputCount = inputs;
+		localBase = 0;
+
+		if (optimization) {
+			(passes != null ? passes : PassManager.optimizations(inlineSize))
+					.run(ast);
+		}
+
+		prepareClassFile();
+
+		// calls of pure functions with one to three parameters go through
+		// a cache in the static field memo
+		boolean[] memoizable = Purity.memoizable(ast);
+		memoized = new boolean[ast.functionCount];
+		for (int function = 0; function < ast.functionCount; function++) {
+			int paramCount = ast.functionParamCount[function];
+			memoized[function] = memoization && memoizable[function]
+					&& paramCount >= 1 && paramCount <= 3;
+		}
+		generateMemoCaches();
+		generateBudgetField();
+
+		for (int function = 0; function < ast.functionCount; function++) {
+			generateFunction(function);
+			if (memoized[function]) {
+				generateMemoizedCall(function);
+			}
+		}
+
+		generateBatch();
+
+		il = new InstructionList();
+		generateLocals(ast.rootSlotCount, 0);
+		generate(ast.root);
 
 		closeClassFile();
-		return result;
+	}
+
+	public byte[] compileFunction(Ast newAst, int function,
+			MemoCache[] memoCaches, String className) {
+		// the class of a hot function for the TieredCompiler: all functions
+		// of the tree and CompiledFunction.call for the hot one; the caches
+		// of the interpreter go to the field memo of the loaded class, the
+		// budget to the field budget
+		ast = newAst;
+		class_name = className;
+		localBase = 0;
+
+		_cg = new ClassGen(class_name, "java.lang.Object", "ExecExpr.java",
+				ACC_PUBLIC | ACC_SUPER,
+				new String[] { "compiler.CompiledFunction" });
+		_cp = _cg.getConstantPool();
+		_factory = new InstructionFactory(_cg, _cp);
+		generateConstructor();
+
+		memoized = new boolean[ast.functionCount];
+		for (int other = 0; other < ast.functionCount; other++) {
+			int paramCount = ast.functionParamCount[other];
+			memoized[other] = other < memoCaches.length
+					&& memoCaches[other] != null && paramCount >= 1
+					&& paramCount <= 3;
+		}
+		generateMemoField();
+		generateBudgetField();
+
+		for (int other = 0; other < ast.functionCount; other++) {
+			generateFunction(other);
+			if (memoized[other]) {
+				generateMemoizedCall(other);
+			}
+		}
+		generateCallAdapter(function);
+
+		return _cg.getJavaClass().getBytes();
+	}
+
+	private void generateCallAdapter(int function) {
+		// double call(double[] slots, int base) runs the body, the cache
+		// has been asked by the caller already
+		il = new InstructionList();
+		MethodGen method = new MethodGen(ACC_PUBLIC, Type.DOUBLE, new Type[] {
+				new ArrayType(Type.DOUBLE, 1), Type.INT }, new String[] {
+				"slots", "base" }, "call", class_name, il, _cp);
+
+		int paramCount = ast.functionParamCount[function];
+		Type[] formParamTypes = new Type[paramCount];
+		for (int i = 0; i < paramCount; i++) {
+			formParamTypes[i] = Type.DOUBLE;
+			il.append(_factory.createLoad(Type.OBJECT, 1));
+			il.append(_factory.createLoad(Type.INT, 2));
+			il.append(new PUSH(_cp, i));
+			il.append(InstructionConstants.IADD);
+			il.append(InstructionConstants.DALOAD);
+		}
+		String name = memoized[function] ? methodName(function) + "$body"
+				: methodName(function);
+		il.append(_factory.createInvoke(class_name, name, Type.DOUBLE,
+				formParamTypes, Constants.INVOKESTATIC));
+		il.append(_factory.createReturn(Type.DOUBLE));
+
+		addMethod(method);
+	}
+
+	private void generateBatch() {
+		// static void execBatch(double[][] columns, double[] out, int from,
+		// int to) runs the main program once per row; the caches in memo
+		// are not shared by the threads of a BatchRunner, so the rows call
+		// copies of the functions named $batch which do not use them
+		for (int function = 0; function < ast.functionCount; function++) {
+			batchCalls = batchCalls || memoized[function];
+		}
+		if (batchCalls) {
+			for (int function = 0; function < ast.functionCount; function++) {
+				generateFunction(function, methodName(function) + "$batch");
+			}
+		}
+
+		il = new InstructionList();
+		MethodGen method = new MethodGen(ACC_PUBLIC | ACC_STATIC, Type.VOID,
+				new Type[] { new ArrayType(Type.DOUBLE, 2),
+						new ArrayType(Type.DOUBLE, 1), Type.INT, Type.INT },
+				new String[] { "columns", "out", "from", "to" }, "execBatch",
+				class_name, il, _cp);
+
+		int rowAdress = 4;
+		localBase = 5;
+
+		il.append(_factory.createLoad(Type.INT, 2));
+		il.append(_factory.createStore(Type.INT, rowAdress));
+		InstructionHandle loop = il.append(_factory.createLoad(Type.INT,
+				rowAdress));
+		il.append(_factory.createLoad(Type.INT, 3));
+		BranchInstruction ifEnd = _factory.createBranchInstruction(
+				Constants.IF_ICMPGE, null);
+		il.append(ifEnd);
+
+		// the inputs come from the columns, the other variables start with 0
+		for (int input = 0; input < inputCount; input++) {
+			il.append(_factory.createLoad(Type.OBJECT, 0));
+			il.append(new PUSH(_cp, input));
+			il.append(InstructionConstants.AALOAD);
+			il.append(_factory.createLoad(Type.INT, rowAdress));
+			il.append(InstructionConstants.DALOAD);
+			il.append(_factory.createStore(Type.DOUBLE, localBase + input * 2));
+		}
+		generateLocals(ast.rootSlotCount, inputCount);
+
+		// out[row] = value of the program
+		il.append(_factory.createLoad(Type.OBJECT, 1));
+		il.append(_factory.createLoad(Type.INT, rowAdress));
+		generate(ast.root);
+		il.append(InstructionConstants.DASTORE);
+
+		il.append(new IINC(rowAdress, 1));
+		il.append(_factory.createBranchInstruction(Constants.GOTO, loop));
+		InstructionHandle end = il.append(_factory.createReturn(Type.VOID));
+		ifEnd.setTarget(end);
+
+		addMethod(method);
+
+		localBase = 0;
+		batchCalls = false;
+	}
+
+	public static BatchRunner.Kernel batchKernel(Class<?> program)
+			throws NoSuchMethodException {
+		// runs execBatch of a generated class for the BatchRunner
+		final Method method = program.getMethod("execBatch", double[][].class,
+				double[].class, int.class, int.class);
+
+		return new BatchRunner.Kernel() {
+			public void run(double[][] columns, double[] out, int from, int to) {
+				try {
+					method.invoke(null, columns, out, from, to);
+				} catch (IllegalAccessException e) {
+					throw new RuntimeException(e);
+				} catch (InvocationTargetException e) {
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		};
 	}
 
 	private InstructionFactory _factory;
@@ -404,42 +1047,35 @@ public class Compiler {
 		_cp = _cg.getConstantPool();
 		_factory = new InstructionFactory(_cg, _cp);
 
-		il = new InstructionList();
-		MethodGen method = new MethodGen(ACC_PUBLIC, Type.VOID, Type.NO_ARGS,
-				new String[] {}, "<init>", class_name, il, _cp);
-
-		InstructionHandle ih_0 = il.append(_factory.createLoad(Type.OBJECT, 0));
-		il.append(_factory.createInvoke("java.lang.Object", "<init>",
-				Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL));
-		InstructionHandle ih_4 = il.append(_factory.createReturn(Type.VOID));
-		method.setMaxStack();
-		method.setMaxLocals();
-		_cg.addMethod(method.getMethod());
-		il.dispose();
-
-		il = new InstructionList();
+		generateConstructor();
 
 		il = new InstructionList();
-		method = new MethodGen(ACC_PUBLIC | ACC_STATIC, Type.VOID,
+		MethodGen method = new MethodGen(ACC_PUBLIC | ACC_STATIC, Type.VOID,
 				new Type[] { new ArrayType(Type.STRING, 1) },
 				new String[] { "arg0" }, "main", "kassel.ExecExpr", il, _cp);
 
-		ih_0 = il.append(_factory.createInvoke(class_name, "exec", Type.DOUBLE,
+		il.append(_factory.createInvoke(class_name, "exec", Type.DOUBLE,
 				Type.NO_ARGS, Constants.INVOKESTATIC));
 		il.append(_factory.createStore(Type.DOUBLE, 1));
-		ih_4 = il.append(_factory.createFieldAccess("java.lang.System", "out",
+		il.append(_factory.createFieldAccess("java.lang.System", "out",
 				new ObjectType("java.io.PrintStream"), Constants.GETSTATIC));
 		il.append(_factory.createLoad(Type.DOUBLE, 1));
 		il.append(_factory.createInvoke("java.io.PrintStream", "println",
 				Type.VOID, new Type[] { Type.DOUBLE }, Constants.INVOKEVIRTUAL));
-		InstructionHandle ih_11 = il.append(_factory.createReturn(Type.VOID));
-		method.setMaxStack();
-		method.setMaxLocals();
-		_cg.addMethod(method.getMethod());
-		il.dispose();
+		il.append(_factory.createReturn(Type.VOID));
+		addMethod(method);
+	}
 
+	private void generateConstructor() {
 		il = new InstructionList();
-		il.append(new PUSH(_cp, 0.0));
+		MethodGen method = new MethodGen(ACC_PUBLIC, Type.VOID, Type.NO_ARGS,
+				new String[] {}, "<init>", class_name, il, _cp);
+
+		il.append(_factory.createLoad(Type.OBJECT, 0));
+		il.append(_factory.createInvoke("java.lang.Object", "<init>",
+				Type.VOID, Type.NO_ARGS, Constants.INVOKESPECIAL));
+		il.append(_factory.createReturn(Type.VOID));
+		addMethod(method);
 	}
 
 	private void closeClassFile() {
@@ -448,10 +1084,7 @@ public class Compiler {
 				Type.NO_ARGS, new String[] {}, "exec", class_name, il, _cp);
 
 		InstructionHandle ih_3 = il.append(_factory.createReturn(Type.DOUBLE));
-		method.setMaxStack();
-		method.setMaxLocals();
-		_cg.addMethod(method.getMethod());
-		il.dispose();
+		addMethod(method);
 		// } catch (Exception e1) {
 		// System.err.println("Could not generate method: " + "bin/"
 		// + class_name + ".class");
@@ -468,641 +1101,523 @@ public class Compiler {
 		}
 	}
 
-	private double parseStatList() {
-		double result = 0;
-
-		// statList ::= (assignment | expression | ifStat | whileStat |
-		// funtionDecl)*
-
-		while (currentToken.kind != Character.MIN_VALUE
-				&& currentToken.kind != '}') {
-			if (lookAheadToken.kind == '=') {
-				result = parseAssignment();
-			} else if (currentWord().equals("if")) {
-				result = parseIfStat();
-			} else if (currentWord().equals("while")) {
-				result = parseWhileStat();
-			} else if (currentWord().equals("function")) {
-				result = parseFunctionDecl();
-			} else {
-				result = parseExpression();
-			}
-		}
-
-		return result;
+	private void generateFunction(int function) {
+		// a memoized function keeps its body in a method of its own
+		generateFunction(function, memoized[function] ? methodName(function)
+				+ "$body" : methodName(function));
 	}
 
-	private double parseFunctionDecl() {
+	private void generateFunction(int function, String name) {
 		InstructionList parentIl = il;
 		il = new InstructionList();
 
-		double result = 0;
-
 		// functionDecl ::= function name (formParam*) {statList}
-		skip("function");
-
-		String funcName = currentWord();
-
-		nextToken();
-
-		FuncEntry funcEntry = new FuncEntry();
-
-		skip('(');
-
-		// replace symboltable
-		LinkedHashMap<String, Double> origSymbolTable = symbolTable;
-		symbolTable = new LinkedHashMap<String, Double>();
-		LinkedHashMap<String, Integer> origLocalVarAddressTable = localVarAdressTable;
-		localVarAdressTable = new LinkedHashMap<String, Integer>();
-		ArrayList<Type> formParamTypes = new ArrayList<Type>();
-
-		while (currentToken.kind == 'v') {
-			String paramName = currentWord();
-			funcEntry.formParams.add(paramName);
-
-			formParamTypes.add(Type.DOUBLE);
-
-			localVarAdressTable.put(paramName, localVarAdressTable.size() * 2);
-
-			nextToken();
+		int paramCount = ast.functionParamCount[function];
+		Type[] formParamTypes = new Type[paramCount];
+		String[] formParamNames = new String[paramCount];
+		for (int i = 0; i < paramCount; i++) {
+			formParamTypes[i] = Type.DOUBLE;
+			formParamNames[i] = ast.names.name(ast.param(function, i));
 		}
 
-		skip(')');
-
 		MethodGen method = new MethodGen(ACC_PUBLIC | ACC_STATIC, Type.DOUBLE,
-				formParamTypes.toArray(Type.NO_ARGS),
-				funcEntry.formParams.toArray(new String[] {}), funcName,
-				class_name, il, _cp);
-		functionTable.put(funcName, funcEntry);
-
-		skip('{');
-		parseStatList();
-		skip('}');
+				formParamTypes, formParamNames, name, class_name, il, _cp);
 
-		functionTable.put(funcName, funcEntry);
+		// a tail call stores its arguments and jumps back to the start
+		generateBudgetCall("enter");
+		functionStart = il.append(InstructionConstants.NOP);
+		generateLocals(ast.functionSlotCount[function], paramCount);
+		generate(ast.functionBody[function]);
 
+		generateBudgetCall("exit");
 		il.append(_factory.createReturn(Type.DOUBLE));
 
-		method.setMaxStack();
-		method.setMaxLocals();
-		_cg.addMethod(method.getMethod());
-		il.dispose();
+		addMethod(method);
 
 		il = parentIl;
-		symbolTable = origSymbolTable;
-		localVarAdressTable = origLocalVarAddressTable;
-		return result;
 	}
 
-	public String currentWord() {
-		return currentToken.text.toString();
-	}
-
-	private double parseWhileStat() {
-		double result = 0;
-
-		// whileStat ::= while boolExpr {statlist}
-		skip("while");
-
-		int conditionPos = readPos - 1;
+	private static final ObjectType MEMO_CACHE = new ObjectType(
+			"compiler.MemoCache");
 
-		InstructionHandle startNop = il.append(InstructionFactory.NOP);
+	private static final ObjectType EXECUTION_BUDGET = new ObjectType(
+			"compiler.ExecutionBudget");
 
-		parseExpression();
-		BranchInstruction condJump = _factory.createBranchInstruction(
-				Constants.IFLE, null);
-		il.append(condJump);
-
-		skip('{');
-		result = parseStatList();
-		skip('}');
+	private void generateBudgetField() {
+		// static ExecutionBudget budget, set by the caller or null
+		if (budgetChecks) {
+			_cg.addField(new FieldGen(ACC_PUBLIC | ACC_STATIC,
+					EXECUTION_BUDGET, "budget", _cp).getField());
+		}
+	}
 
-		// jump back to boolean condition
-		BranchInstruction gotoNop = _factory.createBranchInstruction(
+	private void generateBudgetCall(String method) {
+		// if (budget != null) budget.method(), the stack is left as it is
+		if (!budgetChecks) {
+			return;
+		}
+		il.append(_factory.createFieldAccess(class_name, "budget",
+				EXECUTION_BUDGET, Constants.GETSTATIC));
+		il.append(InstructionConstants.DUP);
+		BranchInstruction ifNull = _factory.createBranchInstruction(
+				Constants.IFNULL, null);
+		il.append(ifNull);
+		il.append(_factory.createInvoke(EXECUTION_BUDGET.getClassName(),
+				method, Type.VOID, Type.NO_ARGS, Constants.INVOKEVIRTUAL));
+		BranchInstruction gotoEnd = _factory.createBranchInstruction(
 				Constants.GOTO, null);
-		il.append(gotoNop);
-
-		gotoNop.setTarget(startNop);
-
-		InstructionHandle endNop = il.append(InstructionFactory.NOP);
-		condJump.setTarget(endNop);
-
-		return result;
+		il.append(gotoEnd);
+		ifNull.setTarget(il.append(InstructionConstants.POP));
+		gotoEnd.setTarget(il.append(InstructionConstants.NOP));
 	}
 
-	public void jumpTo(int conditionPos) {
-		lookAheadPos = conditionPos;
-		nextToken();
-		nextToken();
+	private void generateMemoField() {
+		// static MemoCache[] memo, one cache for every memoized function
+		_cg.addField(new FieldGen(ACC_PUBLIC | ACC_STATIC, new ArrayType(
+				MEMO_CACHE, 1), "memo", _cp).getField());
 	}
 
-	private double parseIfStat() {
-		double result = 0;
+	private void generateMemoCaches() {
+		generateMemoField();
 
-		// ifStat ::= if boolExpr {statlist} (else {statlist})?
-		skip("if");
-
-		double boolResult = parseExpression();
-
-		// jump on result
-		BranchInstruction condJump = _factory.createBranchInstruction(
-				Constants.IFLE, null);
-		il.append(condJump);
-
-		skip('{');
-		result = parseStatList();
-		skip('}');
+		il = new InstructionList();
+		MethodGen method = new MethodGen(ACC_STATIC, Type.VOID, Type.NO_ARGS,
+				new String[] {}, "<clinit>", class_name, il, _cp);
+
+		il.append(new PUSH(_cp, ast.functionCount));
+		il.append(_factory.createNewArray(MEMO_CACHE, (short) 1));
+		il.append(_factory.createFieldAccess(class_name, "memo",
+				new ArrayType(MEMO_CACHE, 1), Constants.PUTSTATIC));
+
+		for (int function = 0; function < ast.functionCount; function++) {
+			if (memoized[function]) {
+				il.append(_factory.createFieldAccess(class_name, "memo",
+						new ArrayType(MEMO_CACHE, 1), Constants.GETSTATIC));
+				il.append(new PUSH(_cp, function));
+				il.append(_factory.createNew(MEMO_CACHE));
+				il.append(InstructionConstants.DUP);
+				il.append(new PUSH(_cp, ast.functionParamCount[function]));
+				il.append(new PUSH(_cp, memoCapacity));
+				il.append(_factory.createInvoke(MEMO_CACHE.getClassName(),
+						"<init>", Type.VOID,
+						new Type[] { Type.INT, Type.INT },
+						Constants.INVOKESPECIAL));
+				il.append(InstructionConstants.AASTORE);
+			}
+		}
+		il.append(_factory.createReturn(Type.VOID));
 
-		// create goto command
-		BranchInstruction gotoNop = _factory.createBranchInstruction(
-				Constants.GOTO, null);
-		il.append(gotoNop);
+		addMethod(method);
+	}
 
-		InstructionHandle startOfElse = il.append(InstructionConstants.NOP);
-		condJump.setTarget(startOfElse);
+	private void generateMemoizedCall(int function) {
+		il = new InstructionList();
 
-		if (currentWord().equals("else")) {
-			skip("else");
-			skip('{');
+		int paramCount = ast.functionParamCount[function];
+		Type[] formParamTypes = new Type[paramCount];
+		String[] formParamNames = new String[paramCount];
+		for (int i = 0; i < paramCount; i++) {
+			formParamTypes[i] = Type.DOUBLE;
+			formParamNames[i] = ast.names.name(ast.param(function, i));
+		}
+		Type[] putTypes = new Type[paramCount + 1];
+		Arrays.fill(putTypes, Type.DOUBLE);
 
-			result = parseStatList();
+		MethodGen method = new MethodGen(ACC_PUBLIC | ACC_STATIC, Type.DOUBLE,
+				formParamTypes, formParamNames, methodName(function),
+				class_name, il, _cp);
 
-			skip('}');
-		} else {
-			// handle case without else
+		int cacheAdress = paramCount * 2;
+		int entryAdress = cacheAdress + 1;
+		int resultAdress = cacheAdress + 2;
+
+		// cache = memo[function]
+		il.append(_factory.createFieldAccess(class_name, "memo",
+				new ArrayType(MEMO_CACHE, 1), Constants.GETSTATIC));
+		il.append(new PUSH(_cp, function));
+		il.append(InstructionConstants.AALOAD);
+		il.append(_factory.createStore(Type.OBJECT, cacheAdress));
+
+		// entry = cache.findN(params); if (entry >= 0) return value(entry)
+		il.append(_factory.createLoad(Type.OBJECT, cacheAdress));
+		for (int i = 0; i < paramCount; i++) {
+			il.append(_factory.createLoad(Type.DOUBLE, i * 2));
 		}
+		il.append(_factory.createInvoke(MEMO_CACHE.getClassName(), "find"
+				+ paramCount, Type.INT, formParamTypes,
+				Constants.INVOKEVIRTUAL));
+		il.append(InstructionConstants.DUP);
+		il.append(_factory.createStore(Type.INT, entryAdress));
+		BranchInstruction ifMiss = _factory.createBranchInstruction(
+				Constants.IFLT, null);
+		il.append(ifMiss);
+		il.append(_factory.createLoad(Type.OBJECT, cacheAdress));
+		il.append(_factory.createLoad(Type.INT, entryAdress));
+		il.append(_factory.createInvoke(MEMO_CACHE.getClassName(), "value",
+				Type.DOUBLE, new Type[] { Type.INT }, Constants.INVOKEVIRTUAL));
+		il.append(_factory.createReturn(Type.DOUBLE));
 
-		// add nop command
-		InstructionHandle nopCmd = il.append(InstructionConstants.NOP);
-
-		// adjust jump adresses
-		gotoNop.setTarget(nopCmd);
+		// result = body(params); cache.putN(params, result)
+		InstructionHandle miss = il.append(InstructionConstants.NOP);
+		ifMiss.setTarget(miss);
+		for (int i = 0; i < paramCount; i++) {
+			il.append(_factory.createLoad(Type.DOUBLE, i * 2));
+		}
+		il.append(_factory.createInvoke(class_name, methodName(function)
+				+ "$body", Type.DOUBLE, formParamTypes,
+				Constants.INVOKESTATIC));
+		il.append(_factory.createStore(Type.DOUBLE, resultAdress));
+		il.append(_factory.createLoad(Type.OBJECT, cacheAdress));
+		for (int i = 0; i < paramCount; i++) {
+			il.append(_factory.createLoad(Type.DOUBLE, i * 2));
+		}
+		il.append(_factory.createLoad(Type.DOUBLE, resultAdress));
+		il.append(_factory.createInvoke(MEMO_CACHE.getClassName(), "put"
+				+ paramCount, Type.VOID, putTypes, Constants.INVOKEVIRTUAL));
+		il.append(_factory.createLoad(Type.DOUBLE, resultAdress));
+		il.append(_factory.createReturn(Type.DOUBLE));
 
-		return result;
+		addMethod(method);
 	}
 
-	private void skip(String string) {
-		if (currentWord().equals(string)) {
-			nextToken();
-		} else {
-			parserError(string + " is missing", readPos - 1);
+	private void addMethod(MethodGen method) {
+		// dead stores are removed and variables which are never live at
+		// the same time share a local
+		if (optimization) {
+			LocalSlotAllocator.optimize(method);
 		}
+		method.setMaxStack();
+		method.setMaxLocals();
+		_cg.addMethod(method.getMethod());
+		il.dispose();
 	}
 
-	private LinkedHashMap<String, Double> symbolTable;
-	private LinkedHashMap<String, Integer> localVarAdressTable;
-	private LinkedHashMap<String, FuncEntry> functionTable;
-
-	private double parseAssignment() {
-		double result = 0;
-
-		// assignment = varName = expression
-		String varName = currentWord();
-
-		nextToken();
-		skip('=');
+	private String methodName(int function) {
+		String name = ast.functionName(function);
 
-		result = parseExpression();
-
-		symbolTable.put(varName, result);
-		Integer address = localVarAdressTable.get(varName);
-		if (address == null) {
-			address = localVarAdressTable.size() * 2;
-			localVarAdressTable.put(varName, address);
+		// exec and main are taken, a redeclared function gets a new method
+		boolean unique = !name.equals("exec") && !name.equals("main");
+		for (int other = 0; other < ast.functionCount; other++) {
+			if (other != function && ast.functionName[other] == ast.functionName[function]) {
+				unique = false;
+			}
 		}
-		il.append(_factory.createStore(Type.DOUBLE, address));
-
-		return result;
+		return unique ? name : name + "$" + function;
 	}
 
-	private double parseExpression() {
-		// expression ::= term [+|-|&|| term]*
-		double result = 0;
-		result = parseTerm();
-
-		while ("+-&|".indexOf(currentToken.kind) >= 0) {
-
-			// skip +|-
-			char op = currentToken.kind;
-			nextToken();
+	private int nextLocalVarAdress;
 
-			double second = parseTerm();
-
-			if (op == '+') {
-				result += second;
-				il.append(InstructionConstants.DADD);
-			} else if (op == '-') {
-				result -= second;
-				il.append(InstructionConstants.DSUB);
-			} else if (op == '&') {
-				il.append(InstructionConstants.IAND);
-			} else if (op == '|') {
-				il.append(InstructionConstants.IOR);
-			}
+	private void generateLocals(int slotCount, int paramCount) {
+		// every frame slot is a double local, the parameters come first
+		for (int slot = paramCount; slot < slotCount; slot++) {
+			// a variable starts with 0, so the verifier accepts reads on
+			// paths without an assignment
+			il.append(new PUSH(_cp, 0.0));
+			il.append(_factory.createStore(Type.DOUBLE, localBase + slot * 2));
 		}
-		return result;
+		nextLocalVarAdress = localBase + slotCount * 2;
 	}
 
-	private double parseTerm() {
-		// term ::= factor [ * | / | < | > | = factor]*
-		double result = 0;
-
-		result = parseFactor();
-		while ("*/<>=".indexOf(currentToken.kind) >= 0) {
-
-			// skip *|/
-			char op = currentToken.kind;
-			nextToken();
-
-			if (op == '*') {
-				result *= parseFactor();
-				il.append(InstructionConstants.DMUL);
-			} else if (op == '/') {
-				result /= parseFactor();
-				il.append(InstructionConstants.DDIV);
-			} else if (op == '<') {
-				parseFactor();
-
-				// add compare command
-				il.append(InstructionConstants.DCMPG);
-				BranchInstruction ifge_9 = _factory.createBranchInstruction(
-						Constants.IFGE, null);
-				il.append(ifge_9);
-				il.append(new PUSH(_cp, 1));
-				BranchInstruction goto_13 = _factory.createBranchInstruction(
-						Constants.GOTO, null);
-				il.append(goto_13);
-				InstructionHandle ih_16 = il.append(new PUSH(_cp, 0));
-				InstructionHandle nop = il.append(InstructionFactory.NOP);
-
-				ifge_9.setTarget(ih_16);
-				goto_13.setTarget(nop);
-			} else if (op == '>') {
-				parseFactor();
-
-				// add compare command
-				il.append(InstructionConstants.DCMPG);
-				BranchInstruction ifge_23 = _factory.createBranchInstruction(
-						Constants.IFLE, null);
-				il.append(ifge_23);
-				il.append(new PUSH(_cp, 1));
-				BranchInstruction goto_27 = _factory.createBranchInstruction(
-						Constants.GOTO, null);
-				il.append(goto_27);
-				InstructionHandle ih_30 = il.append(new PUSH(_cp, 0));
-				InstructionHandle nop = il.append(InstructionFactory.NOP);
-
-				ifge_23.setTarget(ih_30);
-				goto_27.setTarget(nop);
-
-			} else if (op == '=') {
-				if (result == parseFactor()) {
-					result = 1;
-				} else {
-					result = 0;
+	private void generate(int node) {
+		// every node leaves its double value on the stack
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+			if (Double.doubleToRawLongBits(ast.number(node)) == Long.MIN_VALUE) {
+				// PUSH would give DCONST_0 for -0
+				il.append(new LDC2_W(_cp.addDouble(-0.0)));
+			} else {
+				il.append(new PUSH(_cp, ast.number(node)));
+			}
+			break;
+		case Ast.VAR:
+			il.append(_factory.createLoad(Type.DOUBLE, localBase + ast.c[node]
+					* 2));
+			break;
+		case Ast.ASSIGN:
+			// assignment = varName = expression
+			generate(ast.b[node]);
+			il.append(InstructionConstants.DUP2);
+			il.append(_factory.createStore(Type.DOUBLE, localBase
+					+ ast.c[node] * 2));
+			break;
+		case Ast.ADD:
+			generate(ast.a[node]);
+			generate(ast.b[node]);
+			il.append(InstructionConstants.DADD);
+			break;
+		case Ast.SUB:
+			generate(ast.a[node]);
+			generate(ast.b[node]);
+			il.append(InstructionConstants.DSUB);
+			break;
+		case Ast.MUL:
+			generate(ast.a[node]);
+			generate(ast.b[node]);
+			il.append(InstructionConstants.DMUL);
+			break;
+		case Ast.DIV:
+			generate(ast.a[node]);
+			generate(ast.b[node]);
+			il.append(InstructionConstants.DDIV);
+			break;
+		case Ast.LESS:
+		case Ast.GREATER:
+		case Ast.EQUAL:
+		case Ast.AND:
+		case Ast.OR:
+			generateBoolean(node);
+			break;
+		case Ast.IF:
+			generateIfStat(node);
+			break;
+		case Ast.WHILE:
+			generateWhileStat(node);
+			break;
+		case Ast.BLOCK:
+			// statList ::= (assignment | expression | ifStat | whileStat |
+			// funtionDecl)*
+			if (ast.b[node] == 0) {
+				il.append(new PUSH(_cp, 0.0));
+			}
+			for (int i = 0; i < ast.b[node]; i++) {
+				if (i > 0) {
+					// only the value of the last statement is kept
+					il.append(InstructionConstants.POP2);
 				}
-
-				// add compare command
-				il.append(InstructionConstants.DCMPG);
-				BranchInstruction ifge_9 = _factory.createBranchInstruction(
-						Constants.IFNE, null);
-				il.append(ifge_9);
-				il.append(new PUSH(_cp, 1));
-				BranchInstruction goto_13 = _factory.createBranchInstruction(
-						Constants.GOTO, null);
-				il.append(goto_13);
-				InstructionHandle ih_16 = il.append(new PUSH(_cp, 0));
-				InstructionHandle nop = il.append(InstructionFactory.NOP);
-
-				ifge_9.setTarget(ih_16);
-				goto_13.setTarget(nop);
-
+				generate(ast.child(node, i));
+			}
+			break;
+		case Ast.CALL:
+			generateFunctionCall(node);
+			break;
+		case Ast.TAIL_CALL:
+			for (int i = 0; i < ast.c[node]; i++) {
+				generate(ast.arg(node, i));
+			}
+			for (int i = ast.c[node] - 1; i >= 0; i--) {
+				il.append(_factory.createStore(Type.DOUBLE, i * 2));
 			}
+			generateBudgetCall("tick");
+			il.append(_factory.createBranchInstruction(Constants.GOTO,
+					functionStart));
+			break;
+		case Ast.FUNCTION:
+			// the method has been generated already
+			il.append(new PUSH(_cp, 0.0));
+			break;
+		default:
+			break;
 		}
-		return result;
 	}
 
-	private double parseFactor() {
-		// factor ::= number | (expression) | varName | true | false |
-		// functionCall
-		double result = 0;
-
-		if (currentToken.kind == '(') {
-			// parse expression
-			// skip (
-			nextToken();
-
-			result = parseExpression();
-
-			// should be a )
-			repair(')');
-		} else if (currentWord().equals("true")) {
-			nextToken();
-			result = 1;
-		} else if (currentWord().equals("false")) {
-			nextToken();
-			result = 0;
-		} else if (Character.isLetter(currentToken.kind)) {
-			// function
-			FuncEntry funcEntry = functionTable.get(currentWord());
-
-			// variable
-			Integer tableValue = localVarAdressTable.get(currentWord());
-
-			if (funcEntry != null) {
-				result = parseFunctionCall(funcEntry);
-			} else if (tableValue == null) {
-				parserError("variable " + currentToken.text + " has no value",
-						text.indexOf(currentWord()));
-				nextToken();
-			} else {
-				result = tableValue;
-
-				// create load command
-				Integer address = localVarAdressTable.get(currentWord());
+	private void generateBoolean(int node) {
+		// 1.0 or 0.0, the second operand runs only if the first does not
+		// decide
+		List<BranchInstruction> falseJumps = new ArrayList<BranchInstruction>();
+		generateJumps(node, false, falseJumps);
+		il.append(new PUSH(_cp, 1.0));
+		BranchInstruction gotoNop = _factory.createBranchInstruction(
+				Constants.GOTO, null);
+		il.append(gotoNop);
+		setTargets(falseJumps, il.append(new PUSH(_cp, 0.0)));
+		gotoNop.setTarget(il.append(InstructionFactory.NOP));
+	}
 
-				il.append(_factory.createLoad(Type.DOUBLE, address));
-				nextToken();
-			}
-		} else if (currentToken.kind == NUMBER || currentToken.kind == MANTISSA
-				|| currentToken.kind == EXP) {
-			result = parseNumber();
-		} else {
-			// funcName
-			FuncEntry funcEntry = functionTable.get(currentWord());
-
-			// var ::= (_|l)(l|_|d)* _ = underscore; l = letter; d = digit
-			Integer tableValue = localVarAdressTable.get(currentWord());
-
-			if (funcEntry != null) {
-				result = parseFunctionCall(funcEntry);
-			} else if (tableValue == null) {
-				parserError("Assignment Error: Variable " + currentToken.text
-						+ " has no value", text.indexOf(currentWord()));
-				nextToken();
+	private void generateJumps(int node, boolean jumpIf,
+			List<BranchInstruction> jumps) {
+		// jumps if the condition is jumpIf, falls through otherwise; the
+		// targets are set by the caller
+		switch (ast.kind[node]) {
+		case Ast.LESS:
+			// NaN compares as greater with DCMPG, a < NaN is false
+			generateCompareJump(node, InstructionConstants.DCMPG,
+					jumpIf ? Constants.IFLT : Constants.IFGE, jumps);
+			break;
+		case Ast.GREATER:
+			// NaN compares as less with DCMPL, a > NaN is false
+			generateCompareJump(node, InstructionConstants.DCMPL,
+					jumpIf ? Constants.IFGT : Constants.IFLE, jumps);
+			break;
+		case Ast.EQUAL:
+			generateCompareJump(node, InstructionConstants.DCMPG,
+					jumpIf ? Constants.IFEQ : Constants.IFNE, jumps);
+			break;
+		case Ast.AND:
+		case Ast.OR:
+			if ((ast.kind[node] == Ast.AND) != jumpIf) {
+				// a false first operand of & or a true one of | decides
+				generateJumps(ast.a[node], jumpIf, jumps);
+				generateJumps(ast.b[node], jumpIf, jumps);
 			} else {
-				result = tableValue;
-
-				// create a load command
-				Integer address = localVarAdressTable.get(currentWord());
-
-				il.append(_factory.createLoad(Type.DOUBLE, address));
-				nextToken();
+				// otherwise the second operand decides
+				List<BranchInstruction> decided = new ArrayList<BranchInstruction>();
+				generateJumps(ast.a[node], !jumpIf, decided);
+				generateJumps(ast.b[node], jumpIf, jumps);
+				setTargets(decided, il.append(InstructionFactory.NOP));
 			}
-
+			break;
+		default:
+			// NaN is not 0, so it is true
+			generate(node);
+			il.append(new PUSH(_cp, 0.0));
+			il.append(InstructionConstants.DCMPL);
+			BranchInstruction jump = _factory.createBranchInstruction(
+					jumpIf ? Constants.IFNE : Constants.IFEQ, null);
+			il.append(jump);
+			jumps.add(jump);
+			break;
 		}
+	}
 
-		return result;
+	private void generateCompareJump(int node, Instruction compare,
+			short branch, List<BranchInstruction> jumps) {
+		generate(ast.a[node]);
+		generate(ast.b[node]);
+		il.append(compare);
+		BranchInstruction jump = _factory.createBranchInstruction(branch, null);
+		il.append(jump);
+		jumps.add(jump);
 	}
 
-	private double parseFunctionCall(FuncEntry funcEntry) {
-		double result = 0;
+	private static void setTargets(List<BranchInstruction> jumps,
+			InstructionHandle target) {
+		for (BranchInstruction jump : jumps) {
+			jump.setTarget(target);
+		}
+	}
 
-		// funcCall ::= name ( expression* )
+	private void generateWhileStat(int node) {
+		// whileStat ::= while boolExpr {statlist}
+		int resultAdress = nextLocalVarAdress;
+		nextLocalVarAdress += 2;
 
-		String funcName = currentWord();
+		// the value of the last pass, 0 if the body never runs
+		il.append(new PUSH(_cp, 0.0));
+		il.append(_factory.createStore(Type.DOUBLE, resultAdress));
+
+		// the condition is tested at the end, a pass takes one branch
+		BranchInstruction gotoCondition = _factory.createBranchInstruction(
+				Constants.GOTO, null);
+		il.append(gotoCondition);
 
-		nextToken();
-		skip('(');
+		InstructionHandle body = il.append(InstructionFactory.NOP);
+		generate(ast.b[node]);
+		il.append(_factory.createStore(Type.DOUBLE, resultAdress));
+		generateBudgetCall("tick");
 
-		ArrayList<Type> formParamTypeList = new ArrayList<Type>();
-		LinkedHashMap<String, Double> funcSymbolTable = new LinkedHashMap<String, Double>();
+		gotoCondition.setTarget(il.append(InstructionFactory.NOP));
+		List<BranchInstruction> bodyJumps = new ArrayList<BranchInstruction>();
+		generateJumps(ast.a[node], true, bodyJumps);
+		setTargets(bodyJumps, body);
 
-		int i = 0;
-		while (currentToken.kind != ')'
-				&& currentToken.kind != Character.MIN_VALUE) {
-			double actParamValue = parseExpression();
+		il.append(_factory.createLoad(Type.DOUBLE, resultAdress));
+	}
 
-			formParamTypeList.add(Type.DOUBLE);
+	private void generateIfStat(int node) {
+		// ifStat ::= if boolExpr {statlist} (else {statlist})?
+		List<BranchInstruction> elseJumps = new ArrayList<BranchInstruction>();
+		generateJumps(ast.a[node], false, elseJumps);
 
-			String formParamName = funcEntry.formParams.get(i);
-			i++;
+		generate(ast.b[node]);
 
-			funcSymbolTable.put(formParamName, actParamValue);
-		}
+		// create goto command
+		BranchInstruction gotoNop = _factory.createBranchInstruction(
+				Constants.GOTO, null);
+		il.append(gotoNop);
 
-		skip(')');
+		InstructionHandle startOfElse;
+		if (ast.c[node] >= 0) {
+			startOfElse = il.append(InstructionConstants.NOP);
+			generate(ast.c[node]);
+		} else {
+			// handle case without else
+			startOfElse = il.append(new PUSH(_cp, 0.0));
+		}
+		setTargets(elseJumps, startOfElse);
 
-		// call function
-		InstructionHandle ih_0 = il.append(_factory.createInvoke(class_name,
-				funcName, Type.DOUBLE, formParamTypeList.toArray(Type.NO_ARGS),
-				Constants.INVOKESTATIC));
+		// add nop command
+		InstructionHandle nopCmd = il.append(InstructionConstants.NOP);
 
-		return result;
+		// adjust jump adresses
+		gotoNop.setTarget(nopCmd);
 	}
 
-	private double parseNumber() {
-		double result = 0;
-
-		if (Character.isDigit(currentToken.kind)) {
+	private void generateFunctionCall(int node) {
+		int function = ast.a[node];
 
-			result = currentToken.value;
+		// funcCall ::= name ( expression* )
+		Type[] formParamTypes = new Type[ast.c[node]];
+		for (int i = 0; i < ast.c[node]; i++) {
+			generate(ast.arg(node, i));
+			formParamTypes[i] = Type.DOUBLE;
+		}
 
-			il.append(new PUSH(_cp, currentToken.value));
+		// call function
+		String name = batchCalls ? methodName(function) + "$batch"
+				: methodName(function);
+		il.append(_factory.createInvoke(class_name, name, Type.DOUBLE,
+				formParamTypes, Constants.INVOKESTATIC));
+	}
 
-			nextToken();
-		} else {
-			parserError("Number expected", readPos - 1);
-		}
-		return result;
+	public void setMemoization(boolean enabled) {
+		memoization = enabled;
 	}
 
-	private void repair(char c) {
-		if (currentToken.kind == c) {
-			nextToken();
-		} else {
-			StringBuilder sb = new StringBuilder(text);
-			if (readPos >= text.length()) {
-				text = sb.append(c).toString();
-				nextToken();
-			} else {
-				text = sb.insert(--readPos, " " + c + " ").toString();
-				lookAheadPos += 3;
-			}
-			System.out.println(text + "\nMissing char " + c + " appended");
+	public void setMemoCapacity(int capacity) {
+		// entries per cached function, memoization is turned off with
+		// setMemoization
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Memo capacity " + capacity
+					+ " is below 1");
 		}
+		memoCapacity = capacity;
 	}
 
-	private void skip(char c) {
-		if (currentToken.kind == c) {
-			nextToken();
-		} else {
-			parserError(c + " is missing", readPos - 1);
-		}
+	public void setBudgetChecks(boolean enabled) {
+		// loops and calls count against the static field budget of the
+		// generated class
+		budgetChecks = enabled;
 	}
 
-	private void parserError(String Error, int errorPos) {
-		StringBuffer blanks = new StringBuffer();
-		for (int i = 0; i < errorPos && i < text.length(); i++) {
-			blanks.append(' ');
-		}
-		throw new RuntimeException(Error + ": \n" + text + "\n"
-				+ blanks.toString() + "^");
+	public void setOptimization(boolean enabled) {
+		// small functions are inlined, constant expressions and calls are
+		// computed, dead branches and functions removed, counting loops
+		// reduced, invariants moved out of loops and repeated values
+		// computed once before the code is generated, dead stores and
+		// unneeded locals after
+		optimization = enabled;
 	}
 
-	private Token lookAheadToken = new Token();
-	private InstructionList il;
-	private String class_name = "ExecExpr" + runningNumber;
-
-	private void nextToken() {
-		Token tmp = currentToken;
-		currentToken = lookAheadToken;
-		lookAheadToken = tmp;
-		lookAheadToken.text.setLength(0);
-
-		readPos = lookAheadPos;
-
-		int mantissaPos = 0;
-		double exponent = 0;
-		boolean expSign = true; // true means +, false -
-		char currentChar = nextChar();
-		lookAheadToken.kind = START;
-		while (true) {
-			switch (lookAheadToken.kind) {
-			case START:
-				if (Character.isWhitespace(currentChar)) {
-					// skip
-				} else if (Character.isDigit(currentChar)) {
-					lookAheadToken.kind = NUMBER;
-					lookAheadToken.value = currentChar - '0';
-				} else if ("()*/+-=&|><{}".indexOf(currentChar) >= 0) {
-					// Operator detected
-					lookAheadToken.kind = currentChar;
-					return; // <======================= RETURN
-				} else if (Character.isLetter(currentChar)) {
-					lookAheadToken.kind = 'v';
-				}
-				break;
-
-			case 'v':
-				if (Character.isLetter(currentChar)
-						|| Character.isDigit(currentChar)) {
-					// go on
-				} else {
-					// varName has ended
-					if (currentChar != Character.MIN_VALUE) {
-						lookAheadPos--;
-					}
-					return; // <======================= RETURN
-				}
-				break;
-			case NUMBER:
-				if (Character.isDigit(currentChar)) {
-					lookAheadToken.value = lookAheadToken.value * 10
-							+ currentChar - '0';
-				} else if (currentChar == DOT) {
-					lookAheadToken.kind = DOT;
-				} else if (currentChar == E || currentChar == E_S) {
-					lookAheadToken.kind = E;
-				} else {
-					// number has ended
-					if (currentChar != Character.MIN_VALUE) {
-						lookAheadPos--;
-					}
-					return; // <======================= RETURN
-				}
-				break;
-			case DOT:
-				if (Character.isDigit(currentChar)) {
-					lookAheadToken.kind = MANTISSA;
-					mantissaPos++;
-					lookAheadToken.value = lookAheadToken.value
-							+ ((currentChar - '0') / Math.pow(10, mantissaPos));
-				} else {
-					// number expected
-					parserError("Digit expected", lookAheadPos - 1);
-					return; // <======================= RETURN
-				}
-				break;
-			case MANTISSA:
-				if (Character.isDigit(currentChar)) {
-					mantissaPos++;
-					lookAheadToken.value = lookAheadToken.value
-							+ ((currentChar - '0') / Math.pow(10, mantissaPos));
-				} else if (currentChar == E || currentChar == E_S) {
-					lookAheadToken.kind = E;
-				} else {
-					// number has ended
-					if (currentChar == ' ') {
-						lookAheadPos--;
-					} else if (Character.isLetter(currentChar)) {
-						lookAheadPos--;
-						// digit expected
-						parserError("Digit expected", lookAheadPos - 1);
-					} else if (currentChar != Character.MIN_VALUE) {
-						lookAheadPos--;
-					}
-					return; // <======================= RETURN
-				}
-				break;
-			case E:
-				if (Character.isDigit(currentChar)) {
-					exponent = exponent * 10 + currentChar - '0';
-					lookAheadToken.kind = EXP;
-				} else if ("+-".indexOf(currentChar) >= 0) {
-					if (currentChar == '-') {
-						// change exponents sign
-						expSign = false;
-					}
-					lookAheadToken.kind = EXP;
-				} else {
-					lookAheadPos--;
-					// digit expected
-					parserError("Digit expected", lookAheadPos);
-					return; // <======================= RETURN
-				}
-				break;
-			case EXP:
-				if (Character.isDigit(currentChar)) {
-					exponent = exponent * 10 + currentChar - '0';
-				} else {
-					// exponent has ended
-					// number has ended
-					if (currentChar == ' ') {
-						lookAheadPos--;
-					} else if (Character.isLetter(currentChar)) {
-						lookAheadPos--;
-						// digit expected
-						parserError("Digit expected", lookAheadPos - 1);
-					} else if (currentChar != Character.MIN_VALUE) {
-						lookAheadPos--;
-					}
-					if (expSign) {
-						lookAheadToken.value = lookAheadToken.value
-								* Math.pow(10, exponent);
-					} else {
-						lookAheadToken.value = lookAheadToken.value
-								* Math.pow(10, -exponent);
-					}
-					return; // <======================= RETURN
-				}
-				break;
-			default:
-				break;
-			}
-			if (currentChar == Character.MIN_VALUE) {
-				lookAheadToken.kind = currentChar;
-				return; // <======================= RETURN
-			}
-			if (!Character.isWhitespace(currentChar)) {
-				lookAheadToken.text.append(currentChar);
-			}
-			currentChar = nextChar();
-		}
+	public void setInlineSize(int nodes) {
+		// calls of functions which are not recursive and have at most this
+		// many nodes are replaced by the body, 0 keeps all calls
+		inlineSize = nodes;
 	}
 
-	public char nextChar() {
-		char currentChar;
-		if (lookAheadPos >= text.length()) {
-			currentChar = Character.MIN_VALUE;
-			lookAheadPos++;
-		} else {
-			currentChar = text.charAt(lookAheadPos);
-			lookAheadPos++;
-		}
-		return currentChar;
+	public void setPasses(PassManager manager) {
+		// the passes which run when optimization is on, e.g. with more
+		// passes or a dump of the IR; null runs the usual ones
+		passes = manager;
 	}
 
+	private boolean optimization = true;
+	private int inlineSize = Inliner.DEFAULT_MAX_SIZE;
+	private PassManager passes;
+	private boolean budgetChecks = false;
+	private boolean memoization = true;
+	private int memoCapacity = MemoCache.DEFAULT_CAPACITY;
+	private boolean[] memoized;
+	private InstructionHandle functionStart;
+	private boolean batchCalls;
+
+	// execBatch keeps its parameters in front of the variables
+	private int localBase;
+	private int inputCount;
+
+	private Ast ast;
+	private InstructionList il;
+	private String class_name = "ExecExpr" + runningNumber.incrementAndGet();
+
 	private String testText;
 
 }
@@ -0,0 +1,224 @@
+package compiler;
+
+public class ConstantFolder {
+	// a call of a pure function with constant arguments is replaced by its
+	// value if it finishes within these limits
+	private static final long CALL_INSTRUCTIONS = 100000;
+	private static final int CALL_DEPTH = 200;
+
+	private final Ast ast;
+	private final boolean[] pure;
+	private Interpreter interpreter;
+	private int folded;
+
+	public ConstantFolder(Ast ast) {
+		this.ast = ast;
+		this.pure = Purity.pureFunctions(ast);
+	}
+
+	public static int fold(Ast ast) {
+		// rewrites the tree in place, returns the number of rewritten nodes
+		return new ConstantFolder(ast).foldProgram();
+	}
+
+	public int foldProgram() {
+		for (int function = 0; function < ast.functionCount; function++) {
+			fold(ast.functionBody[function]);
+		}
+		if (ast.root >= 0) {
+			fold(ast.root);
+		}
+		return folded;
+	}
+
+	private void fold(int node) {
+		if (ast.kind[node] == Ast.CALL || ast.kind[node] == Ast.TAIL_CALL) {
+			foldCall(node);
+			return;
+		}
+		for (int i = 0; i < ast.childCount(node); i++) {
+			fold(ast.childAt(node, i));
+		}
+		if (ast.kind[node] >= Ast.ADD && ast.kind[node] <= Ast.OR) {
+			foldOperator(node);
+		}
+	}
+
+	private void foldOperator(int node) {
+		int left = ast.a[node];
+		int right = ast.b[node];
+		boolean constLeft = ast.kind[left] == Ast.NUMBER;
+		boolean constRight = ast.kind[right] == Ast.NUMBER;
+		double x = constLeft ? ast.number(left) : 0;
+		double y = constRight ? ast.number(right) : 0;
+
+		if (constLeft && constRight) {
+			// the same double operations as at run time
+			setNumber(node, apply(ast.kind[node], x, y));
+			return;
+		}
+
+		switch (ast.kind[node]) {
+		case Ast.ADD:
+			// x + 0 is not x for x = -0, but x + -0 is
+			if (constRight && isNegativeZero(y)) {
+				replace(node, left);
+			} else if (constLeft && isNegativeZero(x)) {
+				replace(node, right);
+			}
+			break;
+		case Ast.SUB:
+			if (constRight && y == 0 && !isNegativeZero(y)) {
+				replace(node, left);
+			}
+			break;
+		case Ast.MUL:
+			// x * 0 is not 0 for NaN, infinity and negative x
+			if (constRight && y == 1) {
+				replace(node, left);
+			} else if (constLeft && x == 1) {
+				replace(node, right);
+			}
+			break;
+		case Ast.DIV:
+			if (constRight && y == 1) {
+				replace(node, left);
+			}
+			break;
+		case Ast.AND:
+			if (constLeft) {
+				// 0 & b is 0 without b, 1 & b is the truth of b
+				if (x == 0) {
+					setNumber(node, 0);
+				} else if (isBoolean(right)) {
+					replace(node, right);
+				}
+			} else if (constRight) {
+				// the left operand can only be dropped if it has no calls,
+				// a call may not return
+				if (y != 0 && isBoolean(left)) {
+					replace(node, left);
+				} else if (y == 0 && !hasCall(left)) {
+					setNumber(node, 0);
+				}
+			}
+			break;
+		case Ast.OR:
+			if (constLeft) {
+				if (x != 0) {
+					setNumber(node, 1);
+				} else if (isBoolean(right)) {
+					replace(node, right);
+				}
+			} else if (constRight) {
+				if (y == 0 && isBoolean(left)) {
+					replace(node, left);
+				} else if (y != 0 && !hasCall(left)) {
+					setNumber(node, 1);
+				}
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static double apply(int kind, double x, double y) {
+		switch (kind) {
+		case Ast.ADD:
+			return x + y;
+		case Ast.SUB:
+			return x - y;
+		case Ast.MUL:
+			return x * y;
+		case Ast.DIV:
+			return x / y;
+		case Ast.LESS:
+			return x < y ? 1 : 0;
+		case Ast.GREATER:
+			return x > y ? 1 : 0;
+		case Ast.EQUAL:
+			return x == y ? 1 : 0;
+		case Ast.AND:
+			return x != 0 && y != 0 ? 1 : 0;
+		default:
+			return x != 0 || y != 0 ? 1 : 0;
+		}
+	}
+
+	private void foldCall(int node) {
+		boolean constant = true;
+		for (int i = 0; i < ast.c[node]; i++) {
+			int arg = ast.arg(node, i);
+			fold(arg);
+			constant &= ast.kind[arg] == Ast.NUMBER;
+		}
+
+		// a tail call stays, it is the loop of its function
+		if (ast.kind[node] != Ast.CALL || !constant || !pure[ast.a[node]]) {
+			return;
+		}
+
+		if (interpreter == null) {
+			ExecutionBudget budget = new ExecutionBudget();
+			budget.setMaxInstructions(CALL_INSTRUCTIONS);
+			budget.setMaxDepth(CALL_DEPTH);
+			interpreter = new Interpreter();
+			interpreter.setExecutionBudget(budget);
+		}
+		try {
+			setNumber(node, interpreter.execute(ast, node));
+		} catch (BudgetExceededException e) {
+			// too expensive, the call runs when the program runs
+		}
+	}
+
+	private boolean isBoolean(int node) {
+		// the value is 0 or 1 already
+		switch (ast.kind[node]) {
+		case Ast.LESS:
+		case Ast.GREATER:
+		case Ast.EQUAL:
+		case Ast.AND:
+		case Ast.OR:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private boolean hasCall(int node) {
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+		case Ast.VAR:
+			return false;
+		case Ast.ADD:
+		case Ast.SUB:
+		case Ast.MUL:
+		case Ast.DIV:
+		case Ast.LESS:
+		case Ast.GREATER:
+		case Ast.EQUAL:
+		case Ast.AND:
+		case Ast.OR:
+			return hasCall(ast.a[node]) || hasCall(ast.b[node]);
+		default:
+			// calls, and the block of an inlined call which may loop
+			return true;
+		}
+	}
+
+	private static boolean isNegativeZero(double value) {
+		return Double.doubleToRawLongBits(value) == Long.MIN_VALUE;
+	}
+
+	private void setNumber(int node, double value) {
+		ast.setNumber(node, value);
+		folded++;
+	}
+
+	private void replace(int node, int by) {
+		ast.replace(node, by);
+		folded++;
+	}
+}
@@ -0,0 +1,168 @@
+package compiler;
+
+public class ControlFlowSimplifier {
+	private final Ast ast;
+	private int changes;
+
+	public ControlFlowSimplifier(Ast ast) {
+		this.ast = ast;
+	}
+
+	public static int simplify(Ast ast) {
+		// rewrites the tree in place, best after the ConstantFolder; returns
+		// the number of removed branches, statements and functions
+		return new ControlFlowSimplifier(ast).simplifyProgram();
+	}
+
+	public int simplifyProgram() {
+		for (int function = 0; function < ast.functionCount; function++) {
+			simplify(ast.functionBody[function]);
+		}
+		if (ast.root >= 0) {
+			simplify(ast.root);
+			removeUncalledFunctions();
+		}
+		return changes;
+	}
+
+	private void simplify(int node) {
+		if (ast.kind[node] == Ast.BLOCK) {
+			simplifyBlock(node);
+			return;
+		}
+		// operators may hold an inlined call, which is a block
+		for (int i = 0; i < ast.childCount(node); i++) {
+			simplify(ast.childAt(node, i));
+		}
+
+		if (ast.kind[node] == Ast.IF && ast.kind[ast.a[node]] == Ast.NUMBER) {
+			// NaN is true like every value except 0
+			if (ast.number(ast.a[node]) != 0) {
+				ast.replace(node, ast.b[node]);
+			} else if (ast.c[node] >= 0) {
+				ast.replace(node, ast.c[node]);
+			} else {
+				ast.setNumber(node, 0);
+			}
+			changes++;
+		} else if (ast.kind[node] == Ast.WHILE
+				&& ast.kind[ast.a[node]] == Ast.NUMBER
+				&& ast.number(ast.a[node]) == 0) {
+			// the body never runs, the value is 0
+			ast.setNumber(node, 0);
+			changes++;
+		}
+	}
+
+	private void simplifyBlock(int node) {
+		// statements without an effect are dropped unless their value is
+		// the value of the block, statements behind an endless loop are
+		// never reached
+		int first = ast.a[node];
+		int count = ast.b[node];
+		int kept = 0;
+
+		for (int i = 0; i < count; i++) {
+			int statement = ast.lists[first + i];
+			simplify(statement);
+
+			boolean last = i == count - 1;
+			if (last || hasEffect(statement)) {
+				ast.lists[first + kept] = statement;
+				kept++;
+			}
+			if (!last && isEndless(statement)) {
+				break;
+			}
+		}
+
+		changes += count - kept;
+		ast.b[node] = kept;
+	}
+
+	private boolean hasEffect(int node) {
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+		case Ast.VAR:
+		case Ast.FUNCTION:
+			return false;
+		case Ast.ASSIGN:
+		case Ast.IF:
+		case Ast.WHILE:
+		case Ast.BLOCK:
+		case Ast.CALL:
+		case Ast.TAIL_CALL:
+			return true;
+		default:
+			// an operator, a call in it may not return
+			return hasEffect(ast.a[node]) || hasEffect(ast.b[node]);
+		}
+	}
+
+	private boolean isEndless(int node) {
+		return ast.kind[node] == Ast.WHILE
+				&& ast.kind[ast.a[node]] == Ast.NUMBER
+				&& ast.number(ast.a[node]) != 0;
+	}
+
+	private void removeUncalledFunctions() {
+		boolean[] called = new boolean[ast.functionCount];
+		markCalls(ast.root, called);
+
+		// the functions which are kept move to the front of the table
+		int[] newIndex = new int[ast.functionCount];
+		int kept = 0;
+		for (int function = 0; function < ast.functionCount; function++) {
+			if (called[function]) {
+				newIndex[function] = kept;
+				ast.functionName[kept] = ast.functionName[function];
+				ast.functionParams[kept] = ast.functionParams[function];
+				ast.functionParamCount[kept] = ast.functionParamCount[function];
+				ast.functionBody[kept] = ast.functionBody[function];
+				ast.functionSlotCount[kept] = ast.functionSlotCount[function];
+				kept++;
+			} else {
+				newIndex[function] = -1;
+			}
+		}
+		if (kept == ast.functionCount) {
+			return;
+		}
+		changes += ast.functionCount - kept;
+		ast.functionCount = kept;
+
+		renumber(ast.root, newIndex);
+		for (int function = 0; function < kept; function++) {
+			renumber(ast.functionBody[function], newIndex);
+		}
+	}
+
+	private void markCalls(int node, boolean[] called) {
+		for (int i = 0; i < ast.childCount(node); i++) {
+			markCalls(ast.childAt(node, i), called);
+		}
+		if ((ast.kind[node] == Ast.CALL || ast.kind[node] == Ast.TAIL_CALL)
+				&& !called[ast.a[node]]) {
+			called[ast.a[node]] = true;
+			markCalls(ast.functionBody[ast.a[node]], called);
+		}
+	}
+
+	private void renumber(int node, int[] newIndex) {
+		if (ast.kind[node] == Ast.FUNCTION) {
+			// the declaration of a removed function keeps its value 0
+			if (newIndex[ast.a[node]] < 0) {
+				ast.setNumber(node, 0);
+			} else {
+				ast.a[node] = newIndex[ast.a[node]];
+			}
+			return;
+		}
+		if (ast.kind[node] == Ast.CALL || ast.kind[node] == Ast.TAIL_CALL) {
+			ast.a[node] = newIndex[ast.a[node]];
+		}
+		for (int i = 0; i < ast.childCount(node); i++) {
+			renumber(ast.childAt(node, i), newIndex);
+		}
+	}
+}
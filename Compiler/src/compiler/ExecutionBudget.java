@@ -0,0 +1,103 @@
+package compiler;
+
+public class ExecutionBudget {
+	public static final long UNLIMITED = Long.MAX_VALUE;
+
+	// the clock and the cancel flag are looked at once per this many
+	// instructions
+	private static final int CHECK_INTERVAL = 1024;
+
+	private long maxInstructions = UNLIMITED;
+	private long timeoutNanos = UNLIMITED;
+	private int maxDepth = Integer.MAX_VALUE;
+
+	// an instruction is counted for a pass through a loop, a call or a
+	// tail call
+	private long instructions;
+	private int countdown;
+	private int batch;
+	private long deadline;
+	private int depth;
+	private volatile boolean cancelled;
+
+	public void setMaxInstructions(long instructions) {
+		maxInstructions = instructions;
+	}
+
+	public void setTimeout(long millis) {
+		timeoutNanos = millis == UNLIMITED ? UNLIMITED : millis * 1000000;
+	}
+
+	public void setMaxDepth(int calls) {
+		maxDepth = calls;
+	}
+
+	public void start() {
+		// called by the backend before every run
+		instructions = 0;
+		depth = 0;
+		cancelled = false;
+		deadline = timeoutNanos == UNLIMITED ? UNLIMITED : System.nanoTime()
+				+ timeoutNanos;
+		nextBatch();
+	}
+
+	public void cancel() {
+		// may be called by any thread, the run stops at its next check
+		cancelled = true;
+	}
+
+	public long getInstructions() {
+		return instructions + batch - countdown;
+	}
+
+	public void tick() {
+		// called at every loop back-edge and tail call
+		if (--countdown == 0) {
+			check();
+		}
+	}
+
+	public void enter() {
+		// called at every function entry
+		if (++depth > maxDepth) {
+			throw new BudgetExceededException(
+					BudgetExceededException.Kind.DEPTH,
+					"Recursion depth exceeded, " + maxDepth + " calls");
+		}
+		if (--countdown == 0) {
+			check();
+		}
+	}
+
+	public void exit() {
+		depth--;
+	}
+
+	private void check() {
+		if (instructions + batch > maxInstructions) {
+			throw new BudgetExceededException(
+					BudgetExceededException.Kind.INSTRUCTIONS,
+					"Instruction budget exceeded, " + maxInstructions
+							+ " instructions");
+		}
+		if (cancelled) {
+			throw new BudgetExceededException(
+					BudgetExceededException.Kind.CANCELLED, "Run cancelled");
+		}
+		if (deadline != UNLIMITED && System.nanoTime() - deadline > 0) {
+			throw new BudgetExceededException(
+					BudgetExceededException.Kind.TIME, "Time budget exceeded, "
+							+ timeoutNanos / 1000000 + " ms");
+		}
+		instructions += batch;
+		nextBatch();
+	}
+
+	private void nextBatch() {
+		// the instruction after the last allowed one ends a batch
+		long left = maxInstructions - instructions;
+		batch = left >= CHECK_INTERVAL ? CHECK_INTERVAL : (int) left + 1;
+		countdown = batch;
+	}
+}
@@ -0,0 +1,65 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class FrameStack {
+	// every thread runs its calls on its own stack of frames
+	private static final ThreadLocal<FrameStack> STACKS = new ThreadLocal<FrameStack>() {
+		@Override
+		protected FrameStack initialValue() {
+			return new FrameStack();
+		}
+	};
+
+	// the frames of all active calls of one thread, back to back
+	public double[] slots = new double[256];
+	public int top = 0;
+
+	// no frame may end behind the limit, see Interpreter.setStackBudget
+	public int limit = Integer.MAX_VALUE - 8;
+
+	// set by a tail call, the body of the function runs again on the frame
+	public boolean tailCall = false;
+
+	public static FrameStack get() {
+		return STACKS.get();
+	}
+
+	public int push(int size) {
+		// returns the first slot of a new frame, all slots are 0
+		int base = top;
+		if ((long) base + size > limit) {
+			throw new BudgetExceededException(
+					BudgetExceededException.Kind.STACK,
+					"Stack budget exceeded, " + ((long) base + size) * 8
+							+ " bytes needed");
+		}
+		if (base + size > slots.length) {
+			slots = Arrays.copyOf(slots, (int) Math.min(limit, Math.max(
+					(long) slots.length * 2, base + size)));
+		}
+		Arrays.fill(slots, base, base + size, 0);
+		top = base + size;
+		return base;
+	}
+
+	public void grow(int base, int size) {
+		// the frame on top of the stack gets more slots
+		if (base + size > top) {
+			push(base + size - top);
+		}
+	}
+
+	public void tailCall(int base, int paramCount, int frameSize) {
+		// the new arguments are on top of the stack, above the frame
+		int args = top - paramCount;
+		System.arraycopy(slots, args, slots, base, paramCount);
+		Arrays.fill(slots, base + paramCount, base + frameSize, 0);
+		top = args;
+		tailCall = true;
+	}
+
+	public void pop(int base) {
+		top = base;
+	}
+}
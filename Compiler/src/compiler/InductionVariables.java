@@ -0,0 +1,479 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class InductionVariables {
+	// x + ROUND - ROUND is x rounded to an integer for |x| < 2^51
+	private static final double ROUND = 6755399441055744.0;
+	// integers up to 2^53 are exact doubles
+	private static final double EXACT = 9007199254740992.0;
+
+	private final Ast ast;
+	private int reduced;
+
+	// the frame of the function being rewritten, -1 for the top level
+	private int function;
+	private int slotCount;
+
+	// the loop being rewritten: while counter < bound or counter > bound
+	// with one statement counter = counter + step in its body
+	private int[] assignments;
+	private int[] reads;
+	private int[] names;
+	private int position;
+	private int counter;
+	private int bound;
+	private int direction;
+	private double step;
+	private int increment;
+
+	public InductionVariables(Ast ast) {
+		this.ast = ast;
+	}
+
+	public static int reduce(Ast ast) {
+		// rewrites the tree in place, after the ControlFlowSimplifier;
+		// returns the number of rewritten loops
+		return new InductionVariables(ast).reduceProgram();
+	}
+
+	public int reduceProgram() {
+		for (function = 0; function < ast.functionCount; function++) {
+			slotCount = ast.functionSlotCount[function];
+			reduceLoops(ast.functionBody[function]);
+			ast.functionSlotCount[function] = slotCount;
+		}
+		if (ast.root >= 0) {
+			function = -1;
+			slotCount = ast.rootSlotCount;
+			reduceLoops(ast.root);
+			ast.rootSlotCount = slotCount;
+		}
+		return reduced;
+	}
+
+	private void reduceLoops(int node) {
+		for (int i = 0; i < ast.childCount(node); i++) {
+			reduceLoops(ast.childAt(node, i));
+		}
+		if (ast.kind[node] == Ast.WHILE && findCounter(node)
+				&& (reduceToClosedForm(node) || reduceStrength(node))) {
+			reduced++;
+		}
+	}
+
+	private boolean findCounter(int loop) {
+		assignments = new int[slotCount];
+		reads = new int[slotCount];
+		names = new int[slotCount];
+		Arrays.fill(names, -1);
+		position = ast.pos[loop];
+		count(ast.a[loop]);
+		count(ast.b[loop]);
+
+		int condition = ast.a[loop];
+		int body = ast.b[loop];
+		int kind = ast.kind[condition];
+		if (ast.kind[body] != Ast.BLOCK
+				|| (kind != Ast.LESS && kind != Ast.GREATER)) {
+			return false;
+		}
+		int left = ast.a[condition];
+		int right = ast.b[condition];
+		if (ast.kind[left] == Ast.VAR && isBound(right)) {
+			counter = ast.c[left];
+			bound = right;
+			direction = kind == Ast.LESS ? 1 : -1;
+		} else if (ast.kind[right] == Ast.VAR && isBound(left)) {
+			counter = ast.c[right];
+			bound = left;
+			direction = kind == Ast.GREATER ? 1 : -1;
+		} else {
+			return false;
+		}
+		if (assignments[counter] != 1) {
+			return false;
+		}
+
+		// counter = counter + step as a statement of the body, the step
+		// goes towards the bound
+		increment = -1;
+		for (int i = 0; i < ast.b[body]; i++) {
+			int statement = ast.child(body, i);
+			if (ast.kind[statement] == Ast.ASSIGN
+					&& ast.c[statement] == counter) {
+				increment = i;
+			}
+		}
+		if (increment < 0) {
+			return false;
+		}
+		int value = ast.b[ast.child(body, increment)];
+		int a = ast.a[value];
+		int b = ast.b[value];
+		if (ast.kind[value] == Ast.ADD && isCounter(a) && isInteger(b)) {
+			step = ast.number(b);
+		} else if (ast.kind[value] == Ast.ADD && isInteger(a) && isCounter(b)) {
+			step = ast.number(a);
+		} else if (ast.kind[value] == Ast.SUB && isCounter(a) && isInteger(b)) {
+			step = -ast.number(b);
+		} else {
+			return false;
+		}
+		return step * direction > 0 && Math.abs(step) <= 1 << 20;
+	}
+
+	private boolean isBound(int node) {
+		// a number or a variable which the loop does not change
+		return ast.kind[node] == Ast.NUMBER
+				|| (ast.kind[node] == Ast.VAR && assignments[ast.c[node]] == 0);
+	}
+
+	private boolean isCounter(int node) {
+		return ast.kind[node] == Ast.VAR && ast.c[node] == counter;
+	}
+
+	private boolean isInteger(int node) {
+		return ast.kind[node] == Ast.NUMBER
+				&& ast.number(node) == Math.rint(ast.number(node))
+				&& Math.abs(ast.number(node)) < EXACT;
+	}
+
+	private void count(int node) {
+		if (ast.kind[node] == Ast.VAR) {
+			reads[ast.c[node]]++;
+			names[ast.c[node]] = ast.a[node];
+		} else if (ast.kind[node] == Ast.ASSIGN) {
+			assignments[ast.c[node]]++;
+			names[ast.c[node]] = ast.a[node];
+		}
+		for (int i = 0; i < ast.childCount(node); i++) {
+			count(ast.childAt(node, i));
+		}
+	}
+
+	private boolean reduceToClosedForm(int loop) {
+		// a body of sums s = s + a * counter + d besides the step of 1: the
+		// loop runs m = |bound - counter| times and s grows by
+		// a * (m * first + direction * m * (m - 1) / 2) + m * d
+		int body = ast.b[loop];
+		int count = ast.b[body];
+		if (Math.abs(step) != 1) {
+			return false;
+		}
+		int[] sums = new int[count];
+		double[] factors = new double[count];
+		double[] addends = new double[count];
+		boolean[] afterStep = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			if (i != increment
+					&& !findSum(ast.child(body, i), i, sums, factors, addends)) {
+				return false;
+			}
+			afterStep[i] = i > increment;
+		}
+
+		// every value stays an integer below 2^53 if counter, bound and the
+		// sums start with integers below limit
+		double limit = 0;
+		for (double candidate = 1 << 25; candidate >= 2 && limit == 0; candidate /= 2) {
+			limit = candidate;
+			for (int i = 0; i < count; i++) {
+				double perPass = Math.abs(factors[i]) * (candidate + 1)
+						+ Math.abs(addends[i]);
+				if (i != increment
+						&& candidate + 2 * candidate * perPass > EXACT) {
+					limit = 0;
+				}
+			}
+		}
+		if (limit == 0 || !fitsLimit(bound, limit, true)) {
+			return false;
+		}
+
+		int guard = and(isExactInteger(var(counter), limit), runs());
+		if (ast.kind[bound] == Ast.VAR) {
+			guard = and(guard, isExactInteger(ast.copyTree(bound), limit));
+		}
+		for (int i = 0; i < count; i++) {
+			if (i != increment) {
+				// a sum which starts with -0 can keep it, the closed form
+				// would give 0
+				guard = and(guard, and(isExactInteger(var(sums[i]), limit),
+						op(Ast.GREATER, op(Ast.DIV, number(1), var(sums[i])),
+								number(Double.NEGATIVE_INFINITY))));
+			}
+		}
+
+		int passes = newSlot();
+		int[] statements = new int[count + 2];
+		int next = 0;
+		statements[next++] = assign(passes,
+				direction > 0 ? op(Ast.SUB, ast.copyTree(bound), var(counter))
+						: op(Ast.SUB, var(counter), ast.copyTree(bound)));
+		for (int i = 0; i < count; i++) {
+			if (i == increment) {
+				continue;
+			}
+			int first = afterStep[i] ? op(Ast.ADD, var(counter),
+					number(direction)) : var(counter);
+			int counterSum = op(Ast.ADD, op(Ast.MUL, var(passes), first),
+					op(Ast.MUL, number(direction * 0.5), op(Ast.MUL,
+							var(passes), op(Ast.SUB, var(passes), number(1)))));
+			int growth = op(Ast.ADD, op(Ast.MUL, number(factors[i]),
+					counterSum), op(Ast.MUL, var(passes), number(addends[i])));
+			statements[next++] = assign(sums[i], op(Ast.ADD, var(sums[i]),
+					growth));
+		}
+		statements[next++] = assign(counter, op(direction > 0 ? Ast.ADD
+				: Ast.SUB, var(counter), var(passes)));
+
+		// the value of the loop is the value of its last statement
+		int last = ast.child(body, count - 1);
+		statements[next++] = var(ast.c[last]);
+
+		int original = ast.add(Ast.WHILE, ast.a[loop], ast.b[loop],
+				ast.c[loop], ast.pos[loop]);
+		int block = ast.add(Ast.BLOCK, ast.addList(statements, 0, next), next,
+				0, ast.pos[loop]);
+		set(loop, Ast.IF, guard, block, original);
+		return true;
+	}
+
+	private boolean findSum(int statement, int index, int[] sums,
+			double[] factors, double[] addends) {
+		// s = s + term, s = term + s or s = s - term; s is read nowhere else
+		if (ast.kind[statement] != Ast.ASSIGN) {
+			return false;
+		}
+		int slot = ast.c[statement];
+		if (slot == counter || assignments[slot] != 1 || reads[slot] != 1) {
+			return false;
+		}
+		int value = ast.b[statement];
+		int a = ast.a[value];
+		int b = ast.b[value];
+		boolean sumLeft = ast.kind[a] == Ast.VAR && ast.c[a] == slot;
+		boolean sumRight = ast.kind[b] == Ast.VAR && ast.c[b] == slot;
+		int term;
+		double sign = 1;
+		if (ast.kind[value] == Ast.ADD && sumLeft) {
+			term = b;
+		} else if (ast.kind[value] == Ast.ADD && sumRight) {
+			term = a;
+		} else if (ast.kind[value] == Ast.SUB && sumLeft) {
+			term = b;
+			sign = -1;
+		} else {
+			return false;
+		}
+
+		// term is d, counter or counter * k
+		sums[index] = slot;
+		if (isInteger(term)) {
+			factors[index] = 0;
+			addends[index] = sign * ast.number(term);
+		} else if (isCounter(term)) {
+			factors[index] = sign;
+			addends[index] = 0;
+		} else if (ast.kind[term] == Ast.MUL && isCounter(ast.a[term])
+				&& isInteger(ast.b[term])) {
+			factors[index] = sign * ast.number(ast.b[term]);
+			addends[index] = 0;
+		} else if (ast.kind[term] == Ast.MUL && isInteger(ast.a[term])
+				&& isCounter(ast.b[term])) {
+			factors[index] = sign * ast.number(ast.a[term]);
+			addends[index] = 0;
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private boolean reduceStrength(int loop) {
+		// counter * k with an integer k > 0 becomes a variable which starts
+		// with counter * k and grows by step * k after the step
+		int body = ast.b[loop];
+		int[] nodes = new int[8];
+		int nodeCount = 0;
+		double maxFactor = 0;
+
+		int[] work = { ast.a[loop], body };
+		int workCount = 2;
+		while (workCount > 0) {
+			int node = work[--workCount];
+			if (node == ast.child(body, increment)) {
+				continue;
+			}
+			if (ast.kind[node] == Ast.MUL
+					&& ((isCounter(ast.a[node]) && isFactor(ast.b[node])) || (isFactor(ast.a[node]) && isCounter(ast.b[node])))) {
+				if (nodeCount == nodes.length) {
+					nodes = Arrays.copyOf(nodes, nodeCount * 2);
+				}
+				nodes[nodeCount++] = node;
+				maxFactor = Math.max(maxFactor, factor(node));
+				continue;
+			}
+			int childCount = ast.childCount(node);
+			if (workCount + childCount > work.length) {
+				work = Arrays.copyOf(work, workCount + childCount + 8);
+			}
+			for (int i = 0; i < childCount; i++) {
+				work[workCount++] = ast.childAt(node, i);
+			}
+		}
+		if (nodeCount == 0) {
+			return false;
+		}
+
+		double limit = 0;
+		for (double candidate = EXACT / 8; candidate >= 2 && limit == 0; candidate /= 2) {
+			if ((candidate + Math.abs(step)) * maxFactor <= EXACT) {
+				limit = candidate;
+			}
+		}
+		if (limit == 0 || !fitsLimit(bound, limit, false)) {
+			return false;
+		}
+
+		// the original loop runs if the counter does not start with an
+		// integer or the bound is too large
+		int original = ast.copyTree(loop);
+		int guard = isExactInteger(var(counter), limit);
+		if (ast.kind[bound] == Ast.VAR) {
+			guard = and(guard, and(op(Ast.LESS, ast.copyTree(bound),
+					number(limit)), op(Ast.GREATER, ast.copyTree(bound),
+					number(-limit))));
+		}
+
+		// one variable for every factor
+		int productCount = 0;
+		double[] factors = new double[nodeCount];
+		int[] slots = new int[nodeCount];
+		int[] preheader = new int[nodeCount + 1];
+		int[] updates = new int[nodeCount + 1];
+		for (int i = 0; i < nodeCount; i++) {
+			double factor = factor(nodes[i]);
+			int found = -1;
+			for (int p = 0; p < productCount; p++) {
+				if (factors[p] == factor) {
+					found = p;
+				}
+			}
+			if (found < 0) {
+				found = productCount++;
+				factors[found] = factor;
+				slots[found] = newSlot();
+				preheader[found] = assign(slots[found], op(Ast.MUL,
+						var(counter), number(factor)));
+				updates[found] = assign(slots[found], op(Ast.ADD,
+						var(slots[found]), number(step * factor)));
+			}
+			set(nodes[i], Ast.VAR, name(slots[found]), 0, slots[found]);
+		}
+
+		// the updates follow the step; if it was the last statement, the
+		// counter stays the value of the body
+		int count = ast.b[body];
+		boolean stepLast = increment == count - 1;
+		int[] statements = new int[count + productCount + 1];
+		int next = 0;
+		for (int i = 0; i < count; i++) {
+			statements[next++] = ast.child(body, i);
+			if (i == increment) {
+				for (int p = 0; p < productCount; p++) {
+					statements[next++] = updates[p];
+				}
+			}
+		}
+		if (stepLast) {
+			statements[next++] = var(counter);
+		}
+		ast.a[body] = ast.addList(statements, 0, next);
+		ast.b[body] = next;
+
+		int reducedLoop = ast.add(Ast.WHILE, ast.a[loop], ast.b[loop],
+				ast.c[loop], ast.pos[loop]);
+		preheader[productCount] = reducedLoop;
+		int block = ast.add(Ast.BLOCK, ast.addList(preheader, 0,
+				productCount + 1), productCount + 1, 0, ast.pos[loop]);
+		set(loop, Ast.IF, guard, block, original);
+		return true;
+	}
+
+	private boolean isFactor(int node) {
+		// a positive factor, so a product with counter 0 is +0 either way
+		return isInteger(node) && ast.number(node) > 0;
+	}
+
+	private double factor(int product) {
+		return isCounter(ast.a[product]) ? ast.number(ast.b[product]) : ast
+				.number(ast.a[product]);
+	}
+
+	private boolean fitsLimit(int node, double limit, boolean integer) {
+		// a number bound is tested here, a variable when the program runs
+		if (ast.kind[node] != Ast.NUMBER) {
+			return true;
+		}
+		double value = ast.number(node);
+		return Math.abs(value) < limit
+				&& (!integer || value == Math.rint(value));
+	}
+
+	private int runs() {
+		// the loop runs at least once
+		return direction > 0 ? op(Ast.LESS, var(counter), ast.copyTree(bound))
+				: op(Ast.GREATER, var(counter), ast.copyTree(bound));
+	}
+
+	private int isExactInteger(int x, double limit) {
+		// x is an integer and -limit < x < limit, false for NaN
+		int rounded = op(Ast.SUB, op(Ast.ADD, x, number(ROUND)), number(ROUND));
+		return and(op(Ast.EQUAL, rounded, ast.copyTree(x)), and(op(Ast.LESS,
+				ast.copyTree(x), number(limit)), op(Ast.GREATER,
+				ast.copyTree(x), number(-limit))));
+	}
+
+	private int newSlot() {
+		return slotCount++;
+	}
+
+	private int name(int slot) {
+		return ast.names.intern("$"
+				+ (function < 0 ? "main" : ast.functionName(function)) + slot);
+	}
+
+	private int var(int slot) {
+		return ast.add(Ast.VAR, slotName(slot), 0, slot, position);
+	}
+
+	private int assign(int slot, int value) {
+		return ast.add(Ast.ASSIGN, slotName(slot), value, slot, position);
+	}
+
+	private int slotName(int slot) {
+		// a variable of the loop keeps its name, a new one gets a name of
+		// its own
+		return slot < names.length && names[slot] >= 0 ? names[slot] : name(slot);
+	}
+
+	private int number(double value) {
+		return ast.addNumber(value, position);
+	}
+
+	private int op(byte kind, int left, int right) {
+		return ast.add(kind, left, right, 0, position);
+	}
+
+	private int and(int left, int right) {
+		return op(Ast.AND, left, right);
+	}
+
+	private void set(int node, byte kind, int a, int b, int c) {
+		ast.kind[node] = kind;
+		ast.a[node] = a;
+		ast.b[node] = b;
+		ast.c[node] = c;
+	}
+}
@@ -0,0 +1,281 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class Inliner {
+	// bodies up to this many nodes replace their calls
+	public static final int DEFAULT_MAX_SIZE = 40;
+
+	private static final int OPEN = 1;
+	private static final int DONE = 2;
+
+	private final Ast ast;
+	private final int maxSize;
+	private final boolean[] recursive;
+	private final int[] state;
+	private int inlined;
+
+	// the frame of the function being rewritten, -1 for the top level
+	private int slotCount;
+
+	public Inliner(Ast ast, int maxSize) {
+		this.ast = ast;
+		this.maxSize = maxSize;
+		this.recursive = recursiveFunctions();
+		this.state = new int[ast.functionCount];
+	}
+
+	public static int inline(Ast ast, int maxSize) {
+		// rewrites the tree in place before the ConstantFolder, so the
+		// inlined code is folded with its arguments; returns the number of
+		// replaced calls
+		return new Inliner(ast, maxSize).inlineProgram();
+	}
+
+	public static int inline(Ast ast, int maxSize, int firstFunction,
+			int statement) {
+		// for a program which runs statement by statement: the functions
+		// from firstFunction on and one top level statement; the functions
+		// before have been inlined already
+		Inliner inliner = new Inliner(ast, maxSize);
+		Arrays.fill(inliner.state, 0, firstFunction, DONE);
+		return inliner.inlineStatement(statement);
+	}
+
+	public int inlineStatement(int statement) {
+		for (int function = 0; function < ast.functionCount; function++) {
+			inlineFunction(function);
+		}
+		slotCount = ast.rootSlotCount;
+		inlineCalls(statement);
+		ast.rootSlotCount = slotCount;
+		return inlined;
+	}
+
+	public int inlineProgram() {
+		for (int function = 0; function < ast.functionCount; function++) {
+			inlineFunction(function);
+		}
+		if (ast.root >= 0) {
+			slotCount = ast.rootSlotCount;
+			inlineCalls(ast.root);
+			ast.rootSlotCount = slotCount;
+		}
+		return inlined;
+	}
+
+	private void inlineFunction(int function) {
+		// the callees first, their size is taken with their own calls
+		// inlined
+		if (state[function] != 0) {
+			return;
+		}
+		state[function] = OPEN;
+		int[] callees = new int[ast.functionCount];
+		int calleeCount = findCallees(ast.functionBody[function], callees, 0);
+		for (int i = 0; i < calleeCount; i++) {
+			inlineFunction(callees[i]);
+		}
+
+		slotCount = ast.functionSlotCount[function];
+		inlineCalls(ast.functionBody[function]);
+		ast.functionSlotCount[function] = slotCount;
+		state[function] = DONE;
+	}
+
+	private int findCallees(int node, int[] callees, int count) {
+		for (int i = 0; i < ast.childCount(node); i++) {
+			count = findCallees(ast.childAt(node, i), callees, count);
+		}
+		if (ast.kind[node] != Ast.CALL && ast.kind[node] != Ast.TAIL_CALL) {
+			return count;
+		}
+		for (int i = 0; i < count; i++) {
+			if (callees[i] == ast.a[node]) {
+				return count;
+			}
+		}
+		callees[count] = ast.a[node];
+		return count + 1;
+	}
+
+	private void inlineCalls(int node) {
+		for (int i = 0; i < ast.childCount(node); i++) {
+			inlineCalls(ast.childAt(node, i));
+		}
+		int callee = ast.a[node];
+		if (ast.kind[node] == Ast.CALL && !recursive[callee]
+				&& size(ast.functionBody[callee]) <= maxSize) {
+			inlineCall(node, callee);
+		}
+	}
+
+	private void inlineCall(int call, int callee) {
+		// the call becomes a block: the parameters and the other variables
+		// of the callee get new slots of the frame, the parameters take
+		// the arguments and the others start with 0 like on a call; an
+		// argument which is a number or a variable is used in place if
+		// the callee does not assign its parameter
+		int body = ast.functionBody[callee];
+		int paramCount = ast.functionParamCount[callee];
+		boolean[] assigned = new boolean[ast.functionSlotCount[callee]];
+		boolean[] read = new boolean[assigned.length];
+		findSlots(body, assigned, read);
+
+		int[] slots = new int[assigned.length];
+		int[] args = new int[paramCount];
+		int[] statements = new int[slots.length + 1];
+		int count = 0;
+		for (int slot = 0; slot < slots.length; slot++) {
+			int arg = slot < paramCount ? ast.arg(call, slot) : -1;
+			if (arg >= 0 && !assigned[slot]
+					&& (ast.kind[arg] == Ast.NUMBER || ast.kind[arg] == Ast.VAR)) {
+				args[slot] = arg;
+				slots[slot] = -1;
+				continue;
+			}
+			slots[slot] = slotCount++;
+			int name = slot < paramCount ? ast.param(callee, slot) : ast
+					.names.intern("$" + ast.functionName(callee) + slot);
+			if (arg >= 0) {
+				statements[count++] = ast.add(Ast.ASSIGN, name, arg,
+						slots[slot], ast.pos[arg]);
+			} else if (read[slot]) {
+				statements[count++] = ast.add(Ast.ASSIGN, name,
+						ast.addNumber(0, ast.pos[call]), slots[slot],
+						ast.pos[call]);
+			}
+		}
+
+		// the statements of the body follow in the same block
+		int copy = copy(body, slots, args);
+		int bodyCount = ast.b[copy];
+		if (count + bodyCount > statements.length) {
+			statements = Arrays.copyOf(statements, count + bodyCount);
+		}
+		for (int i = 0; i < bodyCount; i++) {
+			statements[count++] = ast.child(copy, i);
+		}
+		if (bodyCount == 0) {
+			statements[count++] = ast.addNumber(0, ast.pos[call]);
+		}
+
+		ast.kind[call] = Ast.BLOCK;
+		ast.a[call] = ast.addList(statements, 0, count);
+		ast.b[call] = count;
+		ast.c[call] = 0;
+		inlined++;
+	}
+
+	private void findSlots(int node, boolean[] assigned, boolean[] read) {
+		if (ast.kind[node] == Ast.VAR) {
+			read[ast.c[node]] = true;
+		} else if (ast.kind[node] == Ast.ASSIGN) {
+			assigned[ast.c[node]] = true;
+		}
+		for (int i = 0; i < ast.childCount(node); i++) {
+			findSlots(ast.childAt(node, i), assigned, read);
+		}
+	}
+
+	private int copy(int node, int[] slots, int[] args) {
+		// a copy of the body which uses the slots of the caller
+		int kind = ast.kind[node];
+		int a = ast.a[node];
+		int b = ast.b[node];
+		int c = ast.c[node];
+
+		switch (kind) {
+		case Ast.NUMBER:
+		case Ast.FUNCTION:
+			break;
+		case Ast.VAR:
+			if (slots[c] < 0) {
+				int arg = args[c];
+				return ast.add(ast.kind[arg], ast.a[arg], ast.b[arg],
+						ast.c[arg], ast.pos[node]);
+			}
+			c = slots[c];
+			break;
+		case Ast.ASSIGN:
+			b = copy(b, slots, args);
+			c = slots[c];
+			break;
+		case Ast.IF:
+			a = copy(a, slots, args);
+			b = copy(b, slots, args);
+			if (c >= 0) {
+				c = copy(c, slots, args);
+			}
+			break;
+		case Ast.BLOCK:
+		case Ast.CALL:
+		case Ast.TAIL_CALL: {
+			// the children of a block and the arguments of a call
+			int first = kind == Ast.BLOCK ? a : b;
+			int count = kind == Ast.BLOCK ? b : c;
+			int[] items = new int[count];
+			for (int i = 0; i < count; i++) {
+				items[i] = copy(ast.lists[first + i], slots, args);
+			}
+			int list = ast.addList(items, 0, count);
+			if (kind == Ast.BLOCK) {
+				a = list;
+			} else {
+				b = list;
+			}
+			break;
+		}
+		default:
+			a = copy(a, slots, args);
+			b = copy(b, slots, args);
+			break;
+		}
+		return ast.add((byte) kind, a, b, c, ast.pos[node]);
+	}
+
+	private int size(int node) {
+		// stops counting once the body is too large
+		int size = 1;
+		for (int i = 0; i < ast.childCount(node) && size <= maxSize; i++) {
+			size += size(ast.childAt(node, i));
+		}
+		return size;
+	}
+
+	private boolean[] recursiveFunctions() {
+		// a function which can reach itself through calls; its calls stay,
+		// the bodies would never end
+		int count = ast.functionCount;
+		int[][] callees = new int[count][];
+		int[] calleeCounts = new int[count];
+		for (int function = 0; function < count; function++) {
+			callees[function] = new int[count];
+			calleeCounts[function] = findCallees(ast.functionBody[function],
+					callees[function], 0);
+		}
+
+		boolean[] result = new boolean[count];
+		for (int function = 0; function < count; function++) {
+			boolean[] reached = new boolean[count];
+			int[] work = new int[count];
+			int workCount = 0;
+			for (int i = 0; i < calleeCounts[function]; i++) {
+				reached[callees[function][i]] = true;
+				work[workCount++] = callees[function][i];
+			}
+			while (workCount > 0) {
+				int next = work[--workCount];
+				for (int i = 0; i < calleeCounts[next]; i++) {
+					int callee = callees[next][i];
+					if (!reached[callee]) {
+						reached[callee] = true;
+						work[workCount++] = callee;
+					}
+				}
+			}
+			result[function] = reached[function];
+		}
+		return result;
+	}
+}
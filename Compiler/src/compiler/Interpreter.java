@@ -1,9 +1,24 @@
 package compiler;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.LinkedHashMap;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.bcel.Constants;
 import org.apache.bcel.generic.ClassGen;
@@ -20,17 +35,42 @@ import org.junit.Test;
 import static org.apache.bcel.Constants.*;
 
 public class Interpreter {
-	private static final char E = 'E';
-	private static final char E_S = 'e';
-	private static final char EXP = '7';
-	private static final char DOT = '.';
-	private static final char NUMBER = '9';
-	private static final char START = 's';
-	private static final char MANTISSA = '8';
-	private int readPos;
-	private int lookAheadPos;
-	private Token currentToken = new Token();
+	public enum Mode {
+		// walk the tree, compile to register code for the RegisterVm or to a
+		// tree of closure nodes, or walk the tree until the TieredCompiler
+		// has compiled the hot functions to Java byte code
+		TREE, REGISTER_VM, CLOSURE, TIERED
+	}
+
+	private Ast ast;
 	private String text;
+	private Mode mode = Mode.TREE;
+
+	// calls of pure functions are answered from a cache per function
+	private boolean memoization = true;
+	private int memoCapacity = MemoCache.DEFAULT_CAPACITY;
+	private MemoCache[] memoCaches = new MemoCache[0];
+
+	// the compiling modes replace calls of small functions by their bodies
+	private int inlineSize = Inliner.DEFAULT_MAX_SIZE;
+	private int inlinedFunctions;
+
+	// bytes of the frame stack a run may use
+	public static final long DEFAULT_STACK_BUDGET = 256L << 20;
+	private long stackBudget = DEFAULT_STACK_BUDGET;
+	private int callerLimit;
+
+	// when the TieredCompiler takes over a function
+	private int callThreshold = TieredCompiler.DEFAULT_CALL_THRESHOLD;
+	private int backEdgeThreshold = TieredCompiler.DEFAULT_BACK_EDGE_THRESHOLD;
+	private boolean backgroundCompilation = true;
+	private TierListener tierListener;
+
+	// null unless runs are profiled
+	private Profiler profiler;
+
+	// null, or the limits of every run
+	private ExecutionBudget budget;
 	
 	private String testString;
 
@@ -176,6 +216,10 @@ public class Interpreter {
 	public void testMultiCharVariables() {
 		testString = "__var = 2 " + "num = __var * __var " + "num + 2 ";
 		doTest(testString, 6.0);
+
+		testString = "iffy = 2 " + "whiles = 3 " + "_if_1 = iffy * whiles "
+				+ "_if_1 + iffy";
+		doTest(testString, 8.0);
 	}
 
 	@Test
@@ -213,6 +257,26 @@ public class Interpreter {
 		doTest(testString, 12000);
 	}
 
+	@Test
+	public void testCorrectlyRoundedNumbers() {
+		// compared bit for bit, no delta
+		Assert.assertEquals(230.0, parse("0.23e+3"), 0.0);
+		Assert.assertEquals(0.000144, parse("12E-3 * 12E-3"), 0.0);
+		Assert.assertEquals(56.23567, parse("56.23567"), 0.0);
+		Assert.assertEquals(0.1, parse("0.1"), 0.0);
+		Assert.assertEquals(Math.PI,
+				parse("3.14159265358979323846264338327950288"), 0.0);
+		Assert.assertEquals(1.7976931348623157E308,
+				parse("1.7976931348623157E308"), 0.0);
+		Assert.assertEquals(4.9E-324, parse("4.9e-324"), 0.0);
+		Assert.assertEquals(Double.POSITIVE_INFINITY, parse("1e400"), 0.0);
+		Assert.assertEquals(123456789012345678901234567890.0,
+				parse("123456789012345678901234567890"), 0.0);
+		Assert.assertEquals(9007199254740993e-3, parse("9007199254740993e-3"),
+				0.0);
+		Assert.assertEquals(0.0, parse("1e+"), 0.0);
+	}
+
 	@Test
 	public void testIf() {
 		testString = "value = 42 " + "if value > 0 " + "{ x = 42 }" + "else "
@@ -229,6 +293,21 @@ public class Interpreter {
 		doTest(testString, 55);
 	}
 
+	@Test
+	public void testNestedBlocks() {
+		testString = "i = 0 " + "n = 0 " + "while i < 4 " + "{ "
+				+ "	if i > 1 { if i = 3 { n = n + 10 } else { n = n + 1 } } "
+				+ "	else { while false { n = 100 } } " + "	i = i + 1 " + "} "
+				+ "n";
+		doTest(testString, 11);
+
+		doTest("function fi ( number )"
+				+ "{ if number < 2 { number } else { fi ( number - 1 ) + fi ( number - 2 ) } }"
+				+ " fi(15) ", 610);
+
+		doTest("if 1 > 0 { 1 { 2 } ", 0.0);
+	}
+
 	@Test
 	public void testFunction() {
 
@@ -248,552 +327,1025 @@ public class Interpreter {
 		doTest("function mult (a b){ a * b } mult( 2.1 5.3 ) ", 11.13);
 	}
 	
-	private void doTest(String string, double expected) {
-		double result = 0.0;
-		
-		result = parse(string);
-
-		Assert.assertEquals("Wrong result: ", expected, result, 0.0000001);
+	@Test
+	public void testShortCircuit() {
+		// spin never returns, so its call must not run
+		testString = "function spin (n) { while 1 > 0 { } n } ";
+		doTest(testString + "0 & spin(1)", 0);
+		doTest(testString + "1 | spin(1)", 1);
+		doTest(testString + "if 2 < 1 & spin(1) { 5 } else { 7 }", 7);
+		doTest(testString + "i = 0 while i < 3 & (1 | spin(1)) { i = i + 1 } i",
+				3);
+
+		// comparisons with NaN are false, NaN itself is true
+		testString = "x = 0 / 0 ";
+		doTest(testString + "if x < 1 | x > 1 | x = x { 1 } else { 2 }", 2);
+		doTest(testString + "if x { 1 } else { 2 }", 1);
+		doTest(testString + "(x < 1) | (x = x)", 0);
+
+		testString = "a = 1 b = 0 ";
+		doTest(testString + "(a | b) & (b | a) & (a & b | a)", 1);
+		doTest(testString + "a & (b | b & a)", 0);
+		doTest(testString
+				+ "i = 0 n = 0 while i < 10 & (i < 3 | i > 5) { n = n + i i = i + 1 } n",
+				3);
+		doTest(testString
+				+ "i = 0 n = 0 while i < 10 { if i < 3 | i > 5 & i < 8 { n = n + 1 } i = i + 1 } n",
+				5);
 	}
 
-	public double parse(String newText) {
-
-		text = newText;
-		// parse the text
-
-		double result = 0;
-		readPos = 0;
-		lookAheadPos = 0;
-
-		symbolTable = new LinkedHashMap<String, Double>();
-		functionTable = new LinkedHashMap<String, FuncEntry>();
+	@Test
+	public void testFrames() throws InterruptedException {
+		// locals of a call keep their values while it recurses
+		testString = "function f (n) { k = n * 2 if n > 0 { s = f(n - 1) } else { s = 0 } s + k } "
+				+ "f(10)";
+		doTest(testString, 110);
+
+		// every thread has its own frames; the tree mode recurses on the
+		// Java stack, so the threads get a stack size of their own
+		final double[] results = new double[4];
+		Thread[] threads = new Thread[results.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int index = t;
+			threads[t] = new Thread(null, new Runnable() {
+				public void run() {
+					results[index] = new Interpreter().parse("function f (n) { if n < 1 { 0 } else { n + f(n - 1) } } f("
+							+ (1000 + index) + ")");
+				}
+			}, "frames-" + t, 16 * 1024 * 1024);
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+			int n = 1000 + t;
+			Assert.assertEquals(n * (n + 1) / 2, results[t], 0.0);
+		}
+	}
 
-		try {
-			nextToken();
-			nextToken();
+	@Test
+	public void testRegisterVm() {
+		Ast loop = Parser.parse("i = 0 while i < 10 { i = i + 1 } i");
+		RegisterCompiler compiler = new RegisterCompiler(loop);
+		compiler.compileStatement(loop.root);
+
+		// compare and branch, and the increment are single instructions
+		String code = compiler.getCode().toString();
+		Assert.assertTrue(code, code.contains("jump_not_less_const 0"));
+		Assert.assertTrue(code, code.contains("add_const 0 0"));
+
+		// calls do not use the Java stack
+		setMode(Mode.REGISTER_VM);
+		Assert.assertEquals(5000050000.0,
+				parse("function f (n) { if n < 1 { 0 } else { n + f(n - 1) } } f(100000)"),
+				0.0);
+		setMode(Mode.TREE);
+	}
 
-			result = parseStatList();
+	@Test
+	public void testInlining() {
+		// sum is inlined in the compiling modes, so its cache is not asked;
+		// a function declared later calls the inlined one
+		String script = "function sum (n) { s = 0 while n > 0 { s = s + n n = n - 1 } s } "
+				+ "function twice (n) { sum(n) * 2 } x = 4 sum(x) + twice(x)";
+		for (Mode testMode : new Mode[] { Mode.REGISTER_VM, Mode.CLOSURE }) {
+			setMode(testMode);
+			Assert.assertEquals(30, parse(script), 0.0);
+			Assert.assertEquals(0, getMemoHits() + getMemoMisses());
+			setInlineSize(0);
+			Assert.assertEquals(30, parse(script), 0.0);
+			Assert.assertEquals(1, getMemoHits());
+			setInlineSize(Inliner.DEFAULT_MAX_SIZE);
+		}
 
-			if (currentToken.kind != Character.MIN_VALUE) {
-				parserError("end of text", text.length());
+		// the argument x is used in place of the parameter p, the loop of
+		// the inlined body must not write x before it is done
+		for (int step = 1; step <= 2; step++) {
+			String loop = "function f (p) { i = 0 while i < p { i = i + "
+					+ step + " } } x = 3 x = f(x) x";
+			for (Mode testMode : Mode.values()) {
+				setMode(testMode);
+				Assert.assertEquals(testMode.toString(), 2 + step, parse(loop),
+						0.0);
 			}
-		} catch (Exception e) {
-			System.err.println(e.getMessage());
+			Assert.assertEquals(2 + step, Program.compile(loop).run(), 0.0);
 		}
 
-		return result;
+		// the slot of q from the inlined body is not the slot of y
+		for (Mode testMode : Mode.values()) {
+			setMode(testMode);
+			Assert.assertEquals(testMode.toString(), 0,
+					parse("function f (p) { q = p + 7 q } x = f(0) if 0 { y = 1 } y"),
+					0.0);
+		}
+		setMode(Mode.TREE);
 	}
 
-	private double parseStatList() {
-		double result = 0;
-
-		// statList ::= (assignment | expression | ifStat | whileStat |
-		// funtionDecl)*
-
-		while (currentToken.kind != Character.MIN_VALUE
-				&& currentToken.kind != '}') {
-			if (lookAheadToken.kind == '=') {
-				result = parseAssignment();
-			} else if (currentWord().equals("if")) {
-				result = parseIfStat();
-			} else if (currentWord().equals("while")) {
-				result = parseWhileStat();
-			} else if (currentWord().equals("function")) {
-				result = parseFunctionDecl();
-			} else {
-				result = parseExpression();
-			}
+	@Test
+	public void testMemoization() {
+		String fib = "function fi (n) { if n < 2 { n } else { fi(n - 1) + fi(n - 2) } } fi(60)";
+
+		for (Mode testMode : Mode.values()) {
+			setMode(testMode);
+			Assert.assertEquals(1548008755920.0, parse(fib), 0.0);
+			Assert.assertEquals(testMode.toString(), 58, getMemoHits());
+			Assert.assertEquals(testMode.toString(), 61, getMemoMisses());
 		}
 
-		return result;
-	}
+		// the parameter is assigned in the body, the key is the argument
+		setMode(Mode.TREE);
+		doTest("function f (n) { s = 0 while n > 0 { s = s + n n = n - 1 } s } f(4) + f(4)",
+				20);
+		Assert.assertEquals(1, getMemoHits());
+
+		// a cache of two entries still gives the right results
+		setMemoCapacity(2);
+		doTest("function fi (n) { if n < 2 { n } else { fi(n - 1) + fi(n - 2) } } fi(20)",
+				6765);
+		setMemoCapacity(MemoCache.DEFAULT_CAPACITY);
+		try {
+			setMemoCapacity(0);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// the capacity stays
+		}
 
-	private double parseFunctionDecl() {
-		double result = 0;
+		// no cache for a function without calls and loops
+		doTest("function sq (x) { x * x } sq(3) + sq(3)", 18);
+		Assert.assertEquals(0, getMemoHits() + getMemoMisses());
 
-		// functionDecl ::= function name (formParam*) {statList}
-		skip("function");
+		setMemoization(false);
+		doTest("function fi (n) { if n < 2 { n } else { fi(n - 1) + fi(n - 2) } } fi(15)",
+				610);
+		Assert.assertEquals(0, getMemoHits() + getMemoMisses());
+		setMemoization(true);
+	}
 
-		String funcName = currentWord();
+	@Test
+	public void testTailCalls() {
+		// far deeper than the Java stack allows
+		testString = "function count (n acc) { if n = 0 { acc } else { count(n - 1 acc + n) } } count(1000000 0)";
+		doTest(testString, 500000500000.0);
+
+		// the arguments are evaluated before the parameters change
+		testString = "function fib (a b n) { if n = 0 { a } else { fib(b a + b n - 1) } } fib(0 1 50)";
+		doTest(testString, 12586269025.0);
+
+		// the other variables start with 0 on every pass
+		testString = "function z (n acc) { if n > 100 { t = 5 } t = t + 1 if n = 0 { acc + t } else { z(n - 1 acc) } } z(5 0)";
+		doTest(testString, 1);
+	}
 
-		nextToken();
+	@Test
+	public void testStackBudget() {
+		String deep = "function f (n) { if n < 1 { 0 } else { 1 + f(n - 1) } } f(300000)";
+
+		// frames and call records are on the heap, not the Java stack
+		setMode(Mode.REGISTER_VM);
+		setMemoization(false);
+		Assert.assertEquals(300000, parse(deep), 0.0);
+
+		// the run stops with an error, result 0
+		setStackBudget(1 << 20);
+		Assert.assertEquals(0, parse(deep), 0.0);
+		Assert.assertEquals(100, parse("function f (n) { if n < 1 { 0 } else { 1 + f(n - 1) } } f(100)"),
+				0.0);
+		setStackBudget(DEFAULT_STACK_BUDGET);
+		setMemoization(true);
+		setMode(Mode.TREE);
+
+		FrameStack stack = new FrameStack();
+		stack.limit = 1000;
+		stack.push(600);
+		try {
+			stack.push(600);
+			Assert.fail("budget exceeded");
+		} catch (BudgetExceededException e) {
+			Assert.assertEquals(600, stack.top);
+		}
+	}
 
-		FuncEntry funcEntry = new FuncEntry();
+	@Test
+	public void testProgram() throws Exception {
+		final Program program = Program.compile(
+				"function fi (n) { if n < 2 { n } else { fi(n - 1) + fi(n - 2) } } "
+						+ "fi(n) * scale", "n", "scale");
+
+		Assert.assertEquals(1, program.indexOf("scale"));
+		Assert.assertEquals(55 * 2, program.run(10, 2), 0.0);
+
+		Map<String, Double> bindings = new HashMap<String, Double>();
+		bindings.put("scale", 3.0);
+		bindings.put("n", 12.0);
+		Assert.assertEquals(144 * 3, program.run(bindings), 0.0);
+
+		// one program, many threads, no locks
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int task = 0; task < 32; task++) {
+			final int n = task % 20;
+			results.add(pool.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					boolean correct = true;
+					for (int i = 0; i < 200; i++) {
+						double expected = fibonacci(n) * i;
+						correct &= program.run(n, i) == expected;
+					}
+					return correct;
+				}
+			}));
+		}
+		for (Future<Boolean> result : results) {
+			Assert.assertTrue(result.get());
+		}
+		pool.shutdown();
+	}
 
-		skip('(');
+	@Test
+	public void testBatch() {
+		int rows = 100000;
+		double[] x = new double[rows];
+		double[] y = new double[rows];
+		for (int row = 0; row < rows; row++) {
+			x[row] = row * 0.5;
+			y[row] = rows - row;
+		}
 
-		while (currentToken.kind == 'v') {
-			funcEntry.formParams.add(currentWord());
-			nextToken();
+		// straight line scripts run column at a time
+		Program program = Program.compile(
+				"d = x - y if d > 0 { d } else { 0 - d }", "x", "y");
+		double[] out = new double[rows];
+		program.runBatch(new double[][] { x, y }, out);
+		for (int row = 0; row < rows; row++) {
+			Assert.assertEquals(Math.abs(x[row] - y[row]), out[row], 0.0);
 		}
 
-		skip(')');
+		// loops run row by row
+		program = Program.compile(
+				"s = 0 i = 0 while i < n { s = s + i i = i + 1 } s", "n");
+		Map<String, double[]> columns = new HashMap<String, double[]>();
+		double[] n = new double[1000];
+		for (int row = 0; row < n.length; row++) {
+			n[row] = row % 50;
+		}
+		columns.put("n", n);
+		out = new double[n.length];
+		program.runBatch(columns, out);
+		for (int row = 0; row < n.length; row++) {
+			Assert.assertEquals(n[row] * (n[row] - 1) / 2, out[row], 0.0);
+		}
+	}
 
-		funcEntry.funcStartPos = readPos - 1;
+	private static double fibonacci(int n) {
+		return n < 2 ? n : fibonacci(n - 1) + fibonacci(n - 2);
+	}
 
-		skipBlock();
+	@Test
+	public void testStreaming() throws IOException {
+		final String script = "function fi ( number )"
+				+ "{ if number < 2 { number } else { fi ( number - 1 ) + fi ( number - 2 ) } } "
+				+ "i = 0 sum = 0 while i < 10 { sum = sum + fi(i) i = i + 1 } "
+				+ "x = 0.23e+3 sum + x";
+		final double expected = 88 + 230;
+
+		// one char per read, every token crosses the end of the window
+		Reader slowReader = new Reader() {
+			private int readPos = 0;
+
+			public int read(char[] cbuf, int off, int len) {
+				if (readPos >= script.length()) {
+					return -1;
+				}
+				cbuf[off] = script.charAt(readPos++);
+				return 1;
+			}
 
-		functionTable.put(funcName, funcEntry);
+			public void close() {
+			}
+		};
+		Assert.assertEquals(expected, run(slowReader, null), 0.0);
+
+		// the first statement runs before the rest of the source is read
+		final String[] chunks = { "a = 1 b = 2 ", "a + ", "b c = a", " + 40 c" };
+		final int[] chunksRead = { 0 };
+		final int[] chunksAtFirstResult = { -1 };
+		Reader chunkReader = new Reader() {
+			public int read(char[] cbuf, int off, int len) {
+				if (chunksRead[0] >= chunks.length) {
+					return -1;
+				}
+				String chunk = chunks[chunksRead[0]++];
+				chunk.getChars(0, chunk.length(), cbuf, off);
+				return chunk.length();
+			}
 
-		return result;
+			public void close() {
+			}
+		};
+		final ArrayList<Double> results = new ArrayList<Double>();
+		StatementListener listener = new StatementListener() {
+			public void statementExecuted(int sourcePos, double result) {
+				if (chunksAtFirstResult[0] < 0) {
+					chunksAtFirstResult[0] = chunksRead[0];
+				}
+				results.add(result);
+			}
+		};
+		Assert.assertEquals(41.0, run(chunkReader, listener), 0.0);
+		Assert.assertEquals(1, chunksAtFirstResult[0]);
+		Assert.assertEquals(
+				Arrays.asList(1.0, 2.0, 3.0, 41.0, 41.0), results);
+
+		Charset utf8 = Charset.forName("UTF-8");
+		ReadableByteChannel channel = Channels
+				.newChannel(new ByteArrayInputStream(script.getBytes(utf8)));
+		Assert.assertEquals(expected, run(channel, utf8, null), 0.0);
+
+		File file = File.createTempFile("script", ".w");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(("gr\u00f6\u00dfe = 2 " + script).getBytes(utf8));
+			out.close();
+			Assert.assertEquals(expected, run(file, utf8, null), 0.0);
+		} finally {
+			file.delete();
+		}
 	}
 
-	public String currentWord() {
-		return currentToken.text.toString();
-	}
+	@Test
+	public void testTieredExecution() throws InterruptedException {
+		// the compiler thread adds events as well
+		final List<String> events = Collections
+				.synchronizedList(new ArrayList<String>());
+		setTierListener(new TierListener() {
+			public void functionHot(String function, int calls, int backEdges) {
+				events.add("hot " + function);
+			}
 
-	private double parseWhileStat() {
-		double result = 0;
+			public void functionCompiled(String function, long compileNanos) {
+				events.add("compiled " + function);
+			}
+		});
+		setMode(Mode.TIERED);
+		setBackgroundCompilation(false);
+		setTierThresholds(10, 100);
+
+		// sq is hot after 10 calls, sum after 100 passes of its loop; the
+		// running call of sum stays interpreted, the next one is compiled
+		String squares = "function sq (x) { x * x } "
+				+ "function sum (n) { s = 0 while n > 0 { s = s + sq(n) n = n - 1 } s } "
+				+ "sum(5) + sum(200) + sum(3)";
+		Assert.assertEquals(55 + 2686700 + 14, parse(squares), 0.0);
+		Assert.assertEquals(Arrays.asList("hot sq", "compiled sq", "hot sum",
+				"compiled sum"), events);
+
+		// the compiled code shares the caches of the interpreter
+		events.clear();
+		Assert.assertEquals(1548008755920.0,
+				parse("function fi (n) { if n < 2 { n } else { fi(n - 1) + fi(n - 2) } } fi(60)"),
+				0.0);
+		Assert.assertEquals(Arrays.asList("hot fi", "compiled fi"), events);
+		Assert.assertEquals(61, getMemoMisses());
+
+		// the compiler thread switches the calls while the script runs
+		events.clear();
+		setBackgroundCompilation(true);
+		testString = "function f (n) { if n < 1 { 0 } else { n + f(n - 1) } } "
+				+ "i = 0 s = 0 while i < 2000 { s = s + f(100) i = i + 1 } s";
+		Assert.assertEquals(2000 * 5050, parse(testString), 0.0);
+		for (int wait = 0; wait < 100 && events.size() < 2; wait++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(Arrays.asList("hot f", "compiled f"), events);
 
-		// whileStat ::= while boolExpr {statlist}
-		skip("while");
+		setTierListener(null);
+		setTierThresholds(TieredCompiler.DEFAULT_CALL_THRESHOLD,
+				TieredCompiler.DEFAULT_BACK_EDGE_THRESHOLD);
+		setMode(Mode.TREE);
+	}
+
+	@Test
+	public void testProfiler() {
+		Profiler profiler = new Profiler();
+		setProfiler(profiler);
+		setMode(Mode.REGISTER_VM);
+		setMemoization(false);
+
+		testString = "function fi (n) { if n < 2 { n } else { fi(n - 1) + fi(n - 2) } }\n"
+				+ "i = 0 s = 0\n"
+				+ "while i < 10 { s = s + fi(i) i = i + 1 }\n" + "s";
+		Assert.assertEquals(88, parse(testString), 0.0);
+
+		// fi(0) to fi(9) take 276 calls
+		Profiler.Region fi = null;
+		Profiler.Region loop = null;
+		for (Profiler.Region region : profiler.getRegions()) {
+			if (region.name.equals("fi")) {
+				fi = region;
+			} else if (region.name.equals("while")) {
+				loop = region;
+			}
+		}
+		Assert.assertEquals(276, fi.count);
+		Assert.assertEquals("fi@1:17", fi.label);
+		Assert.assertEquals(1, loop.count);
+		Assert.assertEquals(10, loop.iterations);
+		Assert.assertEquals("while@3:1", loop.label);
+
+		// the nodes of the callees are part of the total of their callers
+		Profiler.Region main = profiler.getMain();
+		Assert.assertEquals(main.inclusiveNodes, main.exclusiveNodes
+				+ loop.inclusiveNodes);
+		Assert.assertEquals(loop.inclusiveNodes, loop.exclusiveNodes
+				+ fi.inclusiveNodes);
+		Assert.assertEquals(fi.exclusiveNodes, fi.inclusiveNodes);
+		Assert.assertTrue(main.inclusiveNanos >= loop.inclusiveNanos);
+
+		String report = profiler.flatReport();
+		Assert.assertTrue(report, report.contains("fi@1:17"));
+		for (String line : profiler.collapsedStacks().split("\n")) {
+			Assert.assertTrue(line, line.isEmpty()
+					|| line.matches("main(;[^; ]+)* \\d+"));
+		}
 
-		int conditionPos = readPos - 1;
+		setProfiler(null);
+		setMemoization(true);
+		setMode(Mode.TREE);
+	}
 
-		while (parseExpression() != 0) {
-			skip('{');
-			result = parseStatList();
-			skip('}');
+	@Test
+	public void testExecutionBudget() throws InterruptedException {
+		final ExecutionBudget budget = new ExecutionBudget();
+		setExecutionBudget(budget);
+		setMemoization(false);
+
+		budget.setMaxInstructions(10000);
+		for (Mode testMode : Mode.values()) {
+			setMode(testMode);
+			assertExceeded("i = 0 while 1 > 0 { i = i + 1 } i",
+					BudgetExceededException.Kind.INSTRUCTIONS);
+			Assert.assertEquals(10001, budget.getInstructions());
+
+			// the budget is enough for a loop of 5000 passes
+			Assert.assertEquals(5000,
+					parse("i = 0 while i < 5000 { i = i + 1 } i"), 0.0);
+		}
 
-			// jump back to boolean condition
-			jumpTo(conditionPos);
+		// compiled functions count against the same budget
+		setMode(Mode.TIERED);
+		setBackgroundCompilation(false);
+		setTierThresholds(1, 1);
+		assertExceeded("function f (n) { s = 0 while s < n { s = s + 1 } s } f(10) f(100000)",
+				BudgetExceededException.Kind.INSTRUCTIONS);
+		setTierThresholds(TieredCompiler.DEFAULT_CALL_THRESHOLD,
+				TieredCompiler.DEFAULT_BACK_EDGE_THRESHOLD);
+		setBackgroundCompilation(true);
+		budget.setMaxInstructions(ExecutionBudget.UNLIMITED);
+
+		budget.setMaxDepth(100);
+		for (Mode testMode : Mode.values()) {
+			setMode(testMode);
+			assertExceeded("function f (n) { if n < 1 { 0 } else { 1 + f(n - 1) } } f(1000)",
+					BudgetExceededException.Kind.DEPTH);
+			Assert.assertEquals(99,
+					parse("function f (n) { if n < 1 { 0 } else { 1 + f(n - 1) } } f(99)"),
+					0.0);
 		}
+		budget.setMaxDepth(Integer.MAX_VALUE);
 
-		skipBlock();
+		budget.setTimeout(50);
+		for (Mode testMode : Mode.values()) {
+			setMode(testMode);
+			assertExceeded("while 1 > 0 { }", BudgetExceededException.Kind.TIME);
+		}
+		budget.setTimeout(ExecutionBudget.UNLIMITED);
+
+		// another thread stops the run
+		setMode(Mode.TREE);
+		Thread canceller = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				budget.cancel();
+			}
+		};
+		canceller.start();
+		assertExceeded("while 1 > 0 { }", BudgetExceededException.Kind.CANCELLED);
+		canceller.join();
 
-		return result;
+		setExecutionBudget(null);
+		setMemoization(true);
 	}
 
-	public void jumpTo(int conditionPos) {
-		lookAheadPos = conditionPos;
-		nextToken();
-		nextToken();
+	private void assertExceeded(String script, BudgetExceededException.Kind kind) {
+		try {
+			parse(script);
+			Assert.fail("budget exceeded in mode " + mode);
+		} catch (BudgetExceededException e) {
+			Assert.assertEquals(mode.toString(), kind, e.getKind());
+		}
 	}
 
-	private double parseIfStat() {
-		double result = 0;
-
-		// ifStat ::= if boolExpr {statlist} (else {statlist})?
-		skip("if");
+	private void doTest(String string, double expected) {
+		double result = 0.0;
 
-		double boolResult = parseExpression();
+		// every mode has to give the same result
+		for (Mode testMode : Mode.values()) {
+			setMode(testMode);
+			result = parse(string);
 
-		if (boolResult != 0) {
-			skip('{');
-			result = parseStatList();
-			skip('}');
-		} else {
-			skipBlock();
+			Assert.assertEquals("Wrong result in mode " + testMode + ": ",
+					expected, result, 0.0000001);
 		}
+		setMode(Mode.TREE);
+	}
 
-		if (currentWord().equals("else")) {
-			skip("else");
-			if (boolResult == 0) {
-				skip('{');
-				result = parseStatList();
-				skip('}');
-			} else {
-				skipBlock();
-			}
-		}
-		return result;
+	public void setMode(Mode newMode) {
+		mode = newMode;
 	}
 
-	private void skipBlock() {
-		int depth = 0;
-		skip('{');
+	public void setInlineSize(int nodes) {
+		// used by REGISTER_VM and CLOSURE: calls of functions which are
+		// not recursive and have at most this many nodes are replaced by
+		// the body, 0 keeps all calls
+		inlineSize = nodes;
+	}
 
-		while ((depth > 0 || currentToken.kind != '}')
-				&& currentToken.kind != Character.MIN_VALUE) {
-			if (currentToken.kind == '{') {
-				depth++;
-			}
-			if (currentToken.kind == '}') {
-				depth--;
-			}
-			nextToken();
-		}
-		if (currentToken.kind == Character.MIN_VALUE) {
-			parserError("missing }", readPos - 1);
-		}
-		skip('}');
+	public void setMemoization(boolean enabled) {
+		memoization = enabled;
 	}
 
-	private void skip(String string) {
-		if (currentWord().equals(string)) {
-			nextToken();
-		} else {
-			parserError(string + " is missing", readPos - 1);
+	public void setMemoCapacity(int capacity) {
+		// entries per cached function, memoization is turned off with
+		// setMemoization
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Memo capacity " + capacity
+					+ " is below 1");
 		}
+		memoCapacity = capacity;
 	}
 
-	private LinkedHashMap<String, Double> symbolTable;
-	private LinkedHashMap<String, FuncEntry> functionTable;
+	public void setStackBudget(long bytes) {
+		// the register VM keeps calls on the frame stack only, so its
+		// recursion depth is limited by this budget alone
+		stackBudget = bytes;
+	}
 
-	private double parseAssignment() {
-		double result = 0;
+	public void setTierThresholds(int calls, int backEdges) {
+		// a function is compiled once it has been called or has passed its
+		// loops this often
+		callThreshold = calls;
+		backEdgeThreshold = backEdges;
+	}
 
-		// assignment = varName = expression
-		String varName = currentWord();
+	public void setBackgroundCompilation(boolean enabled) {
+		// without, the interpreter waits until a hot function is compiled
+		backgroundCompilation = enabled;
+	}
 
-		nextToken();
-		skip('=');
+	public void setTierListener(TierListener listener) {
+		tierListener = listener;
+	}
 
-		result = parseExpression();
+	public void setProfiler(Profiler newProfiler) {
+		// a profiled run walks the tree, whatever the mode
+		profiler = newProfiler;
+	}
 
-		symbolTable.put(varName, result);
+	public void setExecutionBudget(ExecutionBudget newBudget) {
+		// a run which exceeds the budget ends with a
+		// BudgetExceededException, unlike a run over the stack budget
+		budget = newBudget;
+	}
 
-		return result;
+	public long getMemoHits() {
+		// counted since the last run started
+		return MemoCache.hits(memoCaches);
 	}
 
-	private double parseExpression() {
-		// expression ::= term [+|-|&|| term]*
-		double result = 0;
-		result = parseTerm();
+	public long getMemoMisses() {
+		return MemoCache.misses(memoCaches);
+	}
 
-		while ("+-&|".indexOf(currentToken.kind) >= 0) {
+	public double parse(String newText) {
 
-			// skip +|-
-			char op = currentToken.kind;
-			nextToken();
+		text = newText;
+		// parse the text
 
-			double second = parseTerm();
+		return run(new Lexer(text, new Names()), null);
+	}
 
-			if (op == '+') {
-				result += second;
-			} else if (op == '-') {
-				result -= second;
-			} else if (op == '&') {
-				if (result != 0 && second != 0) {
-					result = 1;
-				} else {
-					result = 0;
-				}
-			} else if (op == '|') {
-				if (result != 0 || second != 0) {
-					result = 1;
-				} else {
-					result = 0;
-				}
-			}
-		}
-		return result;
+	public double run(Reader reader, StatementListener listener) {
+		text = null;
+		return run(new Lexer(reader, new Names()), listener);
 	}
 
-	private double parseTerm() {
-		// term ::= factor [*|/ factor]*
-		double result = 0;
+	public double run(ReadableByteChannel channel, Charset charset,
+			StatementListener listener) {
+		return run(Channels.newReader(channel, charset.newDecoder(),
+				Lexer.WINDOW_SIZE), listener);
+	}
 
-		result = parseFactor();
-		while ("*/<>=".indexOf(currentToken.kind) >= 0) {
-
-			// skip *|/
-			char op = currentToken.kind;
-			nextToken();
-
-			if (op == '*') {
-				result *= parseFactor();
-			} else if (op == '/') {
-				result /= parseFactor();
-			} else if (op == '<') {
-				if (result < parseFactor()) {
-					result = 1;
-				} else {
-					result = 0;
-				}
-			} else if (op == '>') {
-				if (result > parseFactor()) {
-					result = 1;
-				} else {
-					result = 0;
-				}
-			} else if (op == '=') {
-				if (result == parseFactor()) {
-					result = 1;
-				} else {
-					result = 0;
+	public double run(File file, Charset charset, StatementListener listener) {
+		MappedFileReader reader = null;
+		try {
+			reader = new MappedFileReader(file, charset);
+			return run(reader, listener);
+		} catch (IOException e) {
+			System.err.println("Could not read file: " + file);
+			return 0;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					System.err.println("Could not close file: " + file);
 				}
 			}
 		}
-		return result;
 	}
 
-	private double parseFactor() {
-		// factor ::= number | (expression) | varName | true | false |
-		// functionCall
+	public double execute(Ast newAst) {
+		// runs a program which has been parsed before
+		return execute(newAst, newAst.root);
+	}
+
+	public double execute(Ast newAst, int node) {
+		// evaluates one statement or expression of a parsed program on a
+		// frame of the main program
 		double result = 0;
 
-		if (currentToken.kind == '(') {
-			// parse expression
-			// skip (
-			nextToken();
-
-			result = parseExpression();
-
-			// should be a )
-			repair(')');
-		} else if (currentWord().equals("true")) {
-			nextToken();
-			result = 1;
-		} else if (currentWord().equals("false")) {
-			nextToken();
-			result = 0;
-		} else if (Character.isLetter(currentToken.kind)) {
-			// function
-			FuncEntry funcEntry = functionTable.get(currentWord());
-
-			// variable
-			Double tableValue = symbolTable.get(currentWord());
-
-			if (funcEntry != null) {
-				result = parseFunctionCall(funcEntry);
-			} else if (tableValue == null) {
-				parserError("variable " + currentToken.text + " has no value",
-						text.indexOf(currentWord()));
-			} else {
-				result = tableValue;
-				nextToken();
+		ast = newAst;
+		frames = FrameStack.get();
+		frameBase = startFrames(ast.rootSlotCount);
+		prepareMode();
+
+		try {
+			result = evaluate(node);
+		} catch (BudgetExceededException e) {
+			if (e.getKind() != BudgetExceededException.Kind.STACK) {
+				throw e;
 			}
-		} else {
-			result = parseNumber();
+			System.err.println(e.getMessage());
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		} finally {
+			if (profiler != null) {
+				profiler.stop();
+			}
+			frames.pop(frameBase);
+			frames.limit = callerLimit;
 		}
 
 		return result;
 	}
 
-	private double parseFunctionCall(FuncEntry funcEntry) {
+	private double run(Lexer lexer, StatementListener listener) {
 		double result = 0;
 
-		// funcCall ::= name ( expression* )
-		nextToken();
-		skip('(');
+		ast = new Ast(lexer.getNames());
+		frames = FrameStack.get();
+		frameBase = startFrames(0);
+		prepareMode();
 
-		LinkedHashMap<String, Double> funcSymbolTable = new LinkedHashMap<String, Double>();
-//		funcSymbolTable.putAll(symbolTable);
+		try {
+			Parser parser = new Parser(lexer, ast);
 
-		int i = 0;
-		while (currentToken.kind != ')'
-				&& currentToken.kind != Character.MIN_VALUE) {
-			double actParamValue = parseExpression();
+			// every top level statement runs as soon as it is complete
+			double statementResult = 0;
+			while (!parser.atEnd()) {
+				int nodeMark = ast.size;
+				int constantMark = ast.constantCount;
+				int listMark = ast.listCount;
+				int functionCount = ast.functionCount;
 
-			String formParamName = funcEntry.formParams.get(i);
-			i++;
+				int statement = parser.parseStatement();
+				int statementPos = ast.pos[statement];
 
-			funcSymbolTable.put(formParamName, actParamValue);
-		}
+				// new variables of the statement get their slots
+				frames.grow(frameBase, ast.rootSlotCount);
 
-		skip(')');
+				statementResult = evaluate(statement);
 
-		// call function
-		int returnPos = readPos - 1;
+				// slots which the inliner added stay out of the way of
+				// later variables
+				parser.reserveSlots(ast.rootSlotCount);
 
-		jumpTo(funcEntry.funcStartPos);
+				if (listener != null) {
+					listener.statementExecuted(statementPos, statementResult);
+				}
 
-		skip('{');
-		LinkedHashMap<String, Double> oldSymbolTable = symbolTable;
-		symbolTable = funcSymbolTable;
-		result = parseStatList();
-		symbolTable = oldSymbolTable;
-		skip('}');
+				// the nodes of a finished statement are not needed anymore,
+				// unless they hold a function body
+				if (ast.functionCount == functionCount) {
+					ast.reset(nodeMark, constantMark, listMark);
+				}
+			}
+			result = statementResult;
+		} catch (BudgetExceededException e) {
+			if (e.getKind() != BudgetExceededException.Kind.STACK) {
+				throw e;
+			}
+			System.err.println(e.getMessage());
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+		} finally {
+			if (profiler != null) {
+				profiler.stop();
+			}
+			frames.pop(frameBase);
+			frames.limit = callerLimit;
+		}
 
-		jumpTo(returnPos);
 		return result;
 	}
 
-	private double parseNumber() {
-		double result = 0;
+	private int startFrames(int rootSlotCount) {
+		callerLimit = frames.limit;
+		frames.limit = (int) Math.min(callerLimit, frames.top
+				+ Math.max(stackBudget / 8, rootSlotCount));
+		return frames.push(rootSlotCount);
+	}
 
-		if (Character.isDigit(currentToken.kind)) {
+	private void prepareMode() {
+		memoCaches = new MemoCache[0];
+		inlinedFunctions = 0;
+		tieredCompiler = null;
+		currentFunction = -1;
+		if (budget != null) {
+			budget.start();
+		}
 
-			result = currentToken.value;
+		if (profiler != null) {
+			profiler.start(text);
+		} else if (mode == Mode.TIERED) {
+			tieredCompiler = new TieredCompiler(ast, callThreshold,
+					backEdgeThreshold, backgroundCompilation, tierListener,
+					budget);
+		} else if (mode == Mode.REGISTER_VM) {
+			registerCompiler = new RegisterCompiler(ast);
+			registerVm = new RegisterVm();
+		} else if (mode == Mode.CLOSURE) {
+			closureCompiler = new ClosureCompiler(ast, budget);
+		}
+	}
 
-			nextToken();
-		} else {
-			parserError("Number expected", readPos - 1);
+	private double evaluate(int statement) {
+		if (profiler == null
+				&& (mode == Mode.REGISTER_VM || mode == Mode.CLOSURE)) {
+			// calls of small functions are replaced by their bodies before
+			// the statement and the new functions are compiled
+			Inliner.inline(ast, inlineSize, inlinedFunctions, statement);
+			inlinedFunctions = ast.functionCount;
+			frames.grow(frameBase, ast.rootSlotCount);
 		}
+		if (memoCaches.length < ast.functionCount) {
+			addMemoCaches();
+		}
+
+		if (mode == Mode.TREE || mode == Mode.TIERED || profiler != null) {
+			return eval(statement);
+		} else if (mode == Mode.CLOSURE) {
+			return closureCompiler.compileStatement(statement, memoCaches)
+					.eval(frames, frameBase);
+		}
+
+		// compile the statement and the functions declared so far
+		int entry = registerCompiler.compileStatement(statement);
+		int frameSize = registerCompiler.rootFrameSize();
+		frames.grow(frameBase, frameSize);
+
+		double result = registerVm.run(registerCompiler.getCode(), entry,
+				frames, frameBase, memoCaches, budget);
+
+		// later variables may get the registers of the temporary values
+		Arrays.fill(frames.slots, frameBase + ast.rootSlotCount, frameBase
+				+ frameSize, 0);
+		registerCompiler.dropStatement();
+
 		return result;
 	}
 
-	private void repair(char c) {
-		if (currentToken.kind == c) {
-			nextToken();
-		} else {
-			text = text + c;
-			System.out.println(text + "\nMissing char " + c + " appended");
-			nextToken();
+	private void addMemoCaches() {
+		// functions declared since the last statement get their caches
+		boolean[] memoizable = Purity.memoizable(ast);
+		int first = memoCaches.length;
+
+		memoCaches = Arrays.copyOf(memoCaches, ast.functionCount);
+		for (int function = first; function < ast.functionCount; function++) {
+			if (memoization && memoizable[function]) {
+				memoCaches[function] = new MemoCache(
+						ast.functionParamCount[function], memoCapacity);
+			}
 		}
 	}
 
-	private void skip(char c) {
-		if (currentToken.kind == c) {
-			nextToken();
-		} else {
-			parserError(c + " is missing", readPos - 1);
-		}
-	}
-
-	private void parserError(String Error, int errorPos) {
-		StringBuffer blanks = new StringBuffer();
-		for (int i = 0; i < errorPos && i < text.length(); i++) {
-			blanks.append(' ');
-		}
-		throw new RuntimeException(Error + ": \n" + text + "\n"
-				+ blanks.toString() + "^");
-	}
-
-	private Token lookAheadToken = new Token();
-	private InstructionList il;
-	private String class_name;
-
-	private void nextToken() {
-		Token tmp = currentToken;
-		currentToken = lookAheadToken;
-		lookAheadToken = tmp;
-		lookAheadToken.text.setLength(0);
-
-		readPos = lookAheadPos;
-
-		int mantissaPos = 0;
-		double exponent = 0;
-		boolean expSign = true; // true means +, false -
-		char currentChar = nextChar();
-		lookAheadToken.kind = START;
-		while (true) {
-			switch (lookAheadToken.kind) {
-			case START:
-				if (Character.isWhitespace(currentChar)) {
-					// skip
-				} else if (Character.isDigit(currentChar)) {
-					lookAheadToken.kind = NUMBER;
-					lookAheadToken.value = currentChar - '0';
-				} else if ("()*/+-=&|><{}".indexOf(currentChar) >= 0) {
-					// Operator detected
-					lookAheadToken.kind = currentChar;
-					return; // <======================= RETURN
-				} else if (Character.isLetter(currentChar)) {
-					lookAheadToken.kind = 'v';
-				}
-				break;
+	private double eval(int node) {
+		double result = 0;
 
-			case 'v':
-				if (Character.isLetter(currentChar)
-						|| Character.isDigit(currentChar)) {
-					// go on
-				} else {
-					// varName has ended
-					if (currentChar != Character.MIN_VALUE) {
-						lookAheadPos--;
-					}
-					return;
-				}
-				break;
-			case NUMBER:
-				if (Character.isDigit(currentChar)) {
-					lookAheadToken.value = lookAheadToken.value * 10
-							+ currentChar - '0';
-				} else if (currentChar == DOT) {
-					lookAheadToken.kind = DOT;
-				} else if (currentChar == E || currentChar == E_S) {
-					lookAheadToken.kind = E;
-				} else {
-					// number has ended
-					if (currentChar != Character.MIN_VALUE) {
-						lookAheadPos--;
-					}
-					return; // <======================= RETURN
-				}
-				break;
-			case DOT:
-				if (Character.isDigit(currentChar)) {
-					lookAheadToken.kind = MANTISSA;
-					mantissaPos++;
-					lookAheadToken.value = lookAheadToken.value
-							+ ((currentChar - '0') / Math.pow(10, mantissaPos));
-				} else {
-					// number expected
-					parserError("Digit expected", lookAheadPos - 1);
-					return; // <======================= RETURN
-				}
-				break;
-			case MANTISSA:
-				if (Character.isDigit(currentChar)) {
-					mantissaPos++;
-					lookAheadToken.value = lookAheadToken.value
-							+ ((currentChar - '0') / Math.pow(10, mantissaPos));
-				} else if (currentChar == E || currentChar == E_S) {
-					lookAheadToken.kind = E;
-				} else {
-					// number has ended
-					if (currentChar != Character.MIN_VALUE
-							&& currentChar != ' ') {
-						lookAheadPos--;
-						// digit expected
-						parserError("Digit expected", lookAheadPos - 1);
-					}
-					return; // <======================= RETURN
-				}
+		if (profiler != null) {
+			profiler.node();
+		}
+
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+			result = ast.number(node);
+			break;
+		case Ast.VAR:
+			result = frames.slots[frameBase + ast.c[node]];
+			break;
+		case Ast.ASSIGN:
+			result = eval(ast.b[node]);
+			frames.slots[frameBase + ast.c[node]] = result;
+			break;
+		case Ast.ADD:
+			result = eval(ast.a[node]) + eval(ast.b[node]);
+			break;
+		case Ast.SUB:
+			result = eval(ast.a[node]) - eval(ast.b[node]);
+			break;
+		case Ast.MUL:
+			result = eval(ast.a[node]) * eval(ast.b[node]);
+			break;
+		case Ast.DIV:
+			result = eval(ast.a[node]) / eval(ast.b[node]);
+			break;
+		case Ast.LESS:
+			result = eval(ast.a[node]) < eval(ast.b[node]) ? 1 : 0;
+			break;
+		case Ast.GREATER:
+			result = eval(ast.a[node]) > eval(ast.b[node]) ? 1 : 0;
+			break;
+		case Ast.EQUAL:
+			result = eval(ast.a[node]) == eval(ast.b[node]) ? 1 : 0;
+			break;
+		case Ast.AND:
+			// the second operand is evaluated only if the first is true
+			result = eval(ast.a[node]) != 0 && eval(ast.b[node]) != 0 ? 1 : 0;
+			break;
+		case Ast.OR:
+			result = eval(ast.a[node]) != 0 || eval(ast.b[node]) != 0 ? 1 : 0;
+			break;
+		case Ast.IF:
+			// ifStat ::= if boolExpr {statlist} (else {statlist})?
+			if (eval(ast.a[node]) != 0) {
+				result = eval(ast.b[node]);
+			} else if (ast.c[node] >= 0) {
+				result = eval(ast.c[node]);
+			}
+			break;
+		case Ast.WHILE:
+			// whileStat ::= while boolExpr {statlist}
+			if (profiler != null) {
+				result = evalProfiledWhile(node);
 				break;
-			case E:
-				if (Character.isDigit(currentChar)) {
-					exponent = exponent * 10 + currentChar - '0';
-					lookAheadToken.kind = EXP;
-				} else if ("+-".indexOf(currentChar) >= 0) {
-					if (currentChar == '-') {
-						// change exponents sign
-						expSign = false;
-					}
-					lookAheadToken.kind = EXP;
-				} else {
-					lookAheadPos--;
-					// digit expected
-					parserError("Digit expected", lookAheadPos);
-					return; // <======================= RETURN
+			}
+			while (eval(ast.a[node]) != 0) {
+				result = eval(ast.b[node]);
+				if (budget != null) {
+					budget.tick();
 				}
-				break;
-			case EXP:
-				if (Character.isDigit(currentChar)) {
-					exponent = exponent * 10 + currentChar - '0';
-				} else {
-					// exponent has ended
-					if (currentChar != Character.MIN_VALUE
-							&& currentChar != ' ') {
-						lookAheadPos--;
-						// digit expected
-						parserError("Digit expected", lookAheadPos);
-					}
-					if (expSign) {
-						lookAheadToken.value = lookAheadToken.value
-								* Math.pow(10, exponent);
-					} else {
-						lookAheadToken.value = lookAheadToken.value
-								* Math.pow(10, -exponent);
-					}
-					return; // <======================= RETURN
+				if (tieredCompiler != null) {
+					tieredCompiler.backEdge(currentFunction, memoCaches);
 				}
-				break;
-			default:
-				break;
 			}
-			if (currentChar == Character.MIN_VALUE) {
-				lookAheadToken.kind = currentChar;
-				return; // <======================= RETURN
+			break;
+		case Ast.BLOCK:
+			for (int i = 0; i < ast.b[node]; i++) {
+				result = eval(ast.child(node, i));
 			}
-			if (!Character.isWhitespace(currentChar)) {
-				lookAheadToken.text.append(currentChar);
+			break;
+		case Ast.CALL:
+			result = evalFunctionCall(node);
+			break;
+		case Ast.TAIL_CALL: {
+			// the arguments replace the parameters of the current frame
+			int args = frames.push(ast.c[node]);
+			for (int i = 0; i < ast.c[node]; i++) {
+				double actParamValue = eval(ast.arg(node, i));
+				frames.slots[args + i] = actParamValue;
 			}
-			currentChar = nextChar();
+			frames.tailCall(frameBase, ast.c[node],
+					ast.functionSlotCount[ast.a[node]]);
+			break;
 		}
+		case Ast.FUNCTION:
+			// declared by the parser already
+			break;
+		default:
+			break;
+		}
+
+		return result;
 	}
 
-	public char nextChar() {
-		char currentChar;
-		if (lookAheadPos >= text.length()) {
-			currentChar = Character.MIN_VALUE;
-			lookAheadPos++;
+	private double evalProfiledWhile(int node) {
+		double result = 0;
+
+		profiler.enterLoop(ast.pos[node]);
+		while (eval(ast.a[node]) != 0) {
+			profiler.iteration();
+			result = eval(ast.b[node]);
+			if (budget != null) {
+				budget.tick();
+			}
+		}
+		profiler.exit();
+
+		return result;
+	}
+
+	private double evalFunctionCall(int node) {
+		double result = 0;
+		int function = ast.a[node];
+
+		// funcCall ::= name ( expression* )
+		MemoCache cache = memoCaches[function];
+		int frameSize = ast.functionSlotCount[function];
+		int base = frames.push(cache != null ? frameSize + ast.c[node]
+				: frameSize);
+
+		// the parameters are the first slots of the frame
+		for (int i = 0; i < ast.c[node]; i++) {
+			double actParamValue = eval(ast.arg(node, i));
+			frames.slots[base + i] = actParamValue;
+		}
+
+		if (cache != null) {
+			int entry = cache.find(frames.slots, base);
+			if (entry >= 0) {
+				frames.pop(base);
+				return cache.value(entry);
+			}
+			// the body may assign its parameters, the key is kept behind
+			// the frame
+			System.arraycopy(frames.slots, base, frames.slots, base
+					+ frameSize, ast.c[node]);
+		}
+
+		CompiledFunction compiled = tieredCompiler != null ? tieredCompiler
+				.compiled(function) : null;
+		if (compiled != null) {
+			// the compiled code checks the budget itself
+			result = compiled.call(frames.slots, base);
 		} else {
-			currentChar = text.charAt(lookAheadPos);
-			lookAheadPos++;
+			if (budget != null) {
+				budget.enter();
+			}
+			if (tieredCompiler != null) {
+				tieredCompiler.call(function, memoCaches);
+			}
+
+			if (profiler != null) {
+				profiler.enterFunction(ast.functionName(function),
+						ast.pos[ast.functionBody[function]]);
+			}
+
+			// call function
+			int callerBase = frameBase;
+			int callerFunction = currentFunction;
+			frameBase = base;
+			currentFunction = function;
+			do {
+				frames.tailCall = false;
+				result = eval(ast.functionBody[function]);
+
+				// a tail call is a pass through a loop
+				if (frames.tailCall && budget != null) {
+					budget.tick();
+				}
+				if (frames.tailCall && tieredCompiler != null) {
+					tieredCompiler.backEdge(function, memoCaches);
+				}
+			} while (frames.tailCall);
+			frameBase = callerBase;
+			currentFunction = callerFunction;
+
+			if (profiler != null) {
+				profiler.exit();
+			}
+			if (budget != null) {
+				budget.exit();
+			}
 		}
-		return currentChar;
+
+		if (cache != null) {
+			cache.put(frames.slots, base + frameSize, result);
+		}
+		frames.pop(base);
+
+		return result;
 	}
+
+	private FrameStack frames;
+	private int frameBase;
+
+	// the function whose body is evaluated, -1 for the top level
+	private int currentFunction;
+	private TieredCompiler tieredCompiler;
+
+	private RegisterCompiler registerCompiler;
+	private RegisterVm registerVm;
+	private ClosureCompiler closureCompiler;
 }
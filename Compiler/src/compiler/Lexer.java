@@ -0,0 +1,180 @@
+package compiler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+public class Lexer {
+	private static final String OPERATORS = "()*/+-=&|><{}";
+
+	// chars kept in memory while reading from a stream
+	public static final int WINDOW_SIZE = 8192;
+
+	private final String text;
+	private final Names names;
+	private final NumberScanner numberScanner = new NumberScanner();
+
+	// the window holds the chars from bufStart up to bufStart + limit
+	private char[] buf;
+	private int bufStart = 0;
+	private int limit;
+	private int readPos = 0;
+	private int tokenPos = 0;
+
+	// null for a text or when the stream has ended
+	private Reader reader;
+
+	public Lexer(String text, Names names) {
+		this.text = text;
+		this.buf = text.toCharArray();
+		this.limit = buf.length;
+		this.names = names;
+	}
+
+	public Lexer(Reader reader, Names names) {
+		this(reader, names, WINDOW_SIZE);
+	}
+
+	public Lexer(Reader reader, Names names, int windowSize) {
+		this.text = null;
+		this.buf = new char[windowSize];
+		this.limit = 0;
+		this.reader = reader;
+		this.names = names;
+	}
+
+	public Names getNames() {
+		return names;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public void next(Token token) {
+		// skip white space and chars which can not start a token
+		do {
+			while (readPos < limit && !startsToken(buf[readPos])) {
+				readPos++;
+			}
+			tokenPos = readPos;
+		} while (readPos == limit && fill());
+
+		token.value = 0;
+		token.id = -1;
+
+		if (readPos >= limit) {
+			token.kind = Token.END;
+		} else {
+			char currentChar = buf[readPos];
+
+			if (isDigit(currentChar)) {
+				token.kind = Token.NUMBER;
+				scanNumber(token);
+			} else if (isNameStart(currentChar)) {
+				token.kind = Token.NAME;
+				scanName(token);
+			} else {
+				// operator detected
+				token.kind = currentChar;
+				readPos++;
+			}
+		}
+
+		token.start = bufStart + tokenPos;
+		token.length = readPos - tokenPos;
+	}
+
+	private void scanName(Token token) {
+		// var ::= (_|l)(l|_|d)* _ = underscore; l = letter; d = digit
+		do {
+			readPos = tokenPos + 1;
+			while (readPos < limit
+					&& (isNameStart(buf[readPos]) || isDigit(buf[readPos]))) {
+				readPos++;
+			}
+			// the name may go on in the next part of the stream
+		} while (readPos == limit && fill());
+
+		token.id = names.intern(buf, tokenPos, readPos - tokenPos);
+	}
+
+	private void scanNumber(Token token) {
+		do {
+			readPos = numberScanner.scan(buf, tokenPos, limit);
+			// the number may go on in the next part of the stream
+		} while (readPos == limit && fill());
+
+		if (numberScanner.errorPos >= 0) {
+			// digit expected
+			error("Digit expected", bufStart + numberScanner.errorPos);
+		}
+
+		if ((numberScanner.fraction || numberScanner.exponentPart)
+				&& readPos < limit && isNameStart(buf[readPos])) {
+			// digit expected
+			error("Digit expected", bufStart + readPos);
+		}
+
+		token.value = numberScanner.value;
+	}
+
+	private boolean fill() {
+		if (reader == null) {
+			return false;
+		}
+
+		// drop everything in front of the current token
+		if (tokenPos > 0) {
+			System.arraycopy(buf, tokenPos, buf, 0, limit - tokenPos);
+			bufStart += tokenPos;
+			limit -= tokenPos;
+			readPos -= tokenPos;
+			tokenPos = 0;
+		}
+
+		if (limit == buf.length) {
+			// a single token is larger than the window
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+
+		try {
+			int count = reader.read(buf, limit, buf.length - limit);
+			if (count < 0) {
+				reader = null;
+				return false;
+			}
+			limit += count;
+			return true;
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read source: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	private static boolean startsToken(char c) {
+		return isDigit(c) || isNameStart(c) || OPERATORS.indexOf(c) >= 0;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isNameStart(char c) {
+		return c == '_' || Character.isLetter(c);
+	}
+
+	public void error(String Error, int errorPos) {
+		if (text == null) {
+			// a stream is not kept in memory
+			throw new RuntimeException(Error + " at position " + errorPos);
+		}
+
+		StringBuffer blanks = new StringBuffer();
+		for (int i = 0; i < errorPos && i < text.length(); i++) {
+			blanks.append(' ');
+		}
+		throw new RuntimeException(Error + ": \n" + text + "\n"
+				+ blanks.toString() + "^");
+	}
+}
@@ -0,0 +1,284 @@
+package compiler;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.bcel.generic.ATHROW;
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.DCONST;
+import org.apache.bcel.generic.DLOAD;
+import org.apache.bcel.generic.DSTORE;
+import org.apache.bcel.generic.DUP2;
+import org.apache.bcel.generic.GotoInstruction;
+import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.InstructionConstants;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.InstructionTargeter;
+import org.apache.bcel.generic.LDC2_W;
+import org.apache.bcel.generic.LocalVariableInstruction;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.POP2;
+import org.apache.bcel.generic.ReturnInstruction;
+import org.apache.bcel.generic.Select;
+import org.apache.bcel.generic.TargetLostException;
+import org.apache.bcel.generic.Type;
+
+public class LocalSlotAllocator {
+	// the double locals of a generated method which are not parameters,
+	// every one is a variable of the script or a temporary of the compiler
+	private final MethodGen method;
+	private final InstructionList il;
+
+	private InstructionHandle[] code;
+	private Map<InstructionHandle, Integer> position;
+	private int localCount;
+	private int base;
+
+	// the local read or written by an instruction, -1 for none
+	private int[] use;
+	private int[] def;
+	private BitSet[] liveIn;
+	private BitSet[] liveOut;
+
+	public LocalSlotAllocator(MethodGen method) {
+		this.method = method;
+		this.il = method.getInstructionList();
+	}
+
+	public static int optimize(MethodGen method) {
+		// call before setMaxLocals; returns the number of removed stores
+		return new LocalSlotAllocator(method).optimize();
+	}
+
+	public int optimize() {
+		findLocals();
+		if (localCount == 0) {
+			return 0;
+		}
+		analyze();
+
+		int removed = removeDeadStores();
+
+		// a local which is read before any store keeps its own slot, the
+		// generated code stores 0 first so this is not expected
+		if (liveIn[0].isEmpty()) {
+			shareSlots();
+		}
+		return removed;
+	}
+
+	private void findLocals() {
+		int paramSlots = method.isStatic() ? 0 : 1;
+		for (Type type : method.getArgumentTypes()) {
+			paramSlots += type.getSize();
+		}
+
+		// locals of other types and the parameters stay where they are
+		code = il.getInstructionHandles();
+		BitSet fixed = new BitSet();
+		fixed.set(0, paramSlots);
+		for (InstructionHandle handle : code) {
+			Instruction instruction = handle.getInstruction();
+			if (instruction instanceof LocalVariableInstruction
+					&& !isDoubleAccess(instruction)) {
+				int index = ((LocalVariableInstruction) instruction).getIndex();
+				fixed.set(index, index + ((LocalVariableInstruction) instruction)
+						.getType(method.getConstantPool()).getSize());
+			}
+		}
+		base = fixed.length();
+
+		int[] idOfIndex = new int[0];
+		use = new int[code.length];
+		def = new int[code.length];
+		Arrays.fill(use, -1);
+		Arrays.fill(def, -1);
+		position = new IdentityHashMap<InstructionHandle, Integer>();
+
+		for (int i = 0; i < code.length; i++) {
+			position.put(code[i], i);
+			Instruction instruction = code[i].getInstruction();
+			if (!isDoubleAccess(instruction)) {
+				continue;
+			}
+			int index = ((LocalVariableInstruction) instruction).getIndex();
+			if (index < paramSlots || fixed.get(index) || fixed.get(index + 1)) {
+				continue;
+			}
+			if (index >= idOfIndex.length) {
+				int length = Math.max(index + 1, idOfIndex.length * 2);
+				int old = idOfIndex.length;
+				idOfIndex = Arrays.copyOf(idOfIndex, length);
+				Arrays.fill(idOfIndex, old, length, -1);
+			}
+			if (idOfIndex[index] < 0) {
+				idOfIndex[index] = localCount++;
+			}
+			if (instruction instanceof DLOAD) {
+				use[i] = idOfIndex[index];
+			} else {
+				def[i] = idOfIndex[index];
+			}
+		}
+	}
+
+	private static boolean isDoubleAccess(Instruction instruction) {
+		return instruction instanceof DLOAD || instruction instanceof DSTORE;
+	}
+
+	private void analyze() {
+		// backwards to a fixed point: a local is live after an instruction
+		// if a path from there reads it before it is stored
+		int[][] successors = new int[code.length][];
+		liveIn = new BitSet[code.length];
+		liveOut = new BitSet[code.length];
+		for (int i = 0; i < code.length; i++) {
+			successors[i] = successors(i);
+			liveIn[i] = new BitSet();
+			liveOut[i] = new BitSet();
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = code.length - 1; i >= 0; i--) {
+				BitSet out = new BitSet();
+				for (int successor : successors[i]) {
+					out.or(liveIn[successor]);
+				}
+				BitSet in = (BitSet) out.clone();
+				if (def[i] >= 0) {
+					in.clear(def[i]);
+				}
+				if (use[i] >= 0) {
+					in.set(use[i]);
+				}
+				if (!in.equals(liveIn[i])) {
+					changed = true;
+				}
+				liveIn[i] = in;
+				liveOut[i] = out;
+			}
+		}
+	}
+
+	private int[] successors(int i) {
+		Instruction instruction = code[i].getInstruction();
+		if (instruction instanceof ReturnInstruction
+				|| instruction instanceof ATHROW) {
+			return new int[0];
+		}
+		if (instruction instanceof Select) {
+			Select select = (Select) instruction;
+			InstructionHandle[] targets = select.getTargets();
+			int[] result = new int[targets.length + 1];
+			for (int t = 0; t < targets.length; t++) {
+				result[t] = position.get(targets[t]);
+			}
+			result[targets.length] = position.get(select.getTarget());
+			return result;
+		}
+		if (instruction instanceof BranchInstruction) {
+			int target = position.get(((BranchInstruction) instruction)
+					.getTarget());
+			if (instruction instanceof GotoInstruction) {
+				return new int[] { target };
+			}
+			return new int[] { target, i + 1 };
+		}
+		return new int[] { i + 1 };
+	}
+
+	private int removeDeadStores() {
+		// a store whose value is never read becomes a pop, and the pop
+		// takes the instruction which pushed the value with it if it can
+		int removed = 0;
+		for (int i = 0; i < code.length; i++) {
+			if (def[i] >= 0 && !liveOut[i].get(def[i])) {
+				code[i].setInstruction(InstructionConstants.POP2);
+				def[i] = -1;
+				removed++;
+				removePush(code[i]);
+			}
+		}
+		return removed;
+	}
+
+	private void removePush(InstructionHandle pop) {
+		// the pop of a statement may meet the next push, so this repeats
+		while (pop.getInstruction() instanceof POP2 && !pop.hasTargeters()) {
+			InstructionHandle push = pop.getPrev();
+			if (push == null) {
+				return;
+			}
+			Instruction instruction = push.getInstruction();
+			if (!(instruction instanceof DUP2)
+					&& !(instruction instanceof DCONST)
+					&& !(instruction instanceof LDC2_W)
+					&& !(instruction instanceof DLOAD)) {
+				return;
+			}
+
+			// jumps to the push go behind the pop, the handles stay in
+			// code but are never visited again
+			InstructionHandle next = pop.getNext();
+			try {
+				il.delete(push, pop);
+			} catch (TargetLostException e) {
+				for (InstructionHandle target : e.getTargets()) {
+					for (InstructionTargeter targeter : target.getTargeters()) {
+						targeter.updateTarget(target, next);
+					}
+				}
+			}
+			int index = position.get(push);
+			use[index] = -1;
+			def[index] = -1;
+			pop = next;
+		}
+	}
+
+	private void shareSlots() {
+		// two locals interfere if one is stored while the other is live;
+		// the others share a slot, the first free one is taken
+		BitSet[] interference = new BitSet[localCount];
+		for (int local = 0; local < localCount; local++) {
+			interference[local] = new BitSet();
+		}
+		for (int i = 0; i < code.length; i++) {
+			if (def[i] < 0) {
+				continue;
+			}
+			BitSet live = liveOut[i];
+			for (int other = live.nextSetBit(0); other >= 0; other = live
+					.nextSetBit(other + 1)) {
+				if (other != def[i]) {
+					interference[def[i]].set(other);
+					interference[other].set(def[i]);
+				}
+			}
+		}
+
+		int[] slot = new int[localCount];
+		for (int local = 0; local < localCount; local++) {
+			BitSet taken = new BitSet();
+			for (int other = 0; other < local; other++) {
+				if (interference[local].get(other)) {
+					taken.set(slot[other]);
+				}
+			}
+			slot[local] = taken.nextClearBit(0);
+		}
+
+		for (int i = 0; i < code.length; i++) {
+			int local = use[i] >= 0 ? use[i] : def[i];
+			if (local >= 0) {
+				((LocalVariableInstruction) code[i].getInstruction())
+						.setIndex(base + slot[local] * 2);
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package compiler;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class LoopInvariantMotion {
+	private final Ast ast;
+	private final boolean[] pure;
+	private int hoisted;
+
+	// the frame of the function being rewritten, -1 for the top level
+	private int function;
+	private int slotCount;
+
+	// the loop being rewritten: its assigned slots and the hoisted values
+	private BitSet modified;
+	private boolean callsAllowed;
+	private boolean inBody;
+	private boolean bodyCalls;
+	private int[] preheader = new int[8];
+	private int preheaderCount;
+
+	public LoopInvariantMotion(Ast ast) {
+		this.ast = ast;
+		this.pure = Purity.pureFunctions(ast);
+	}
+
+	public static int hoist(Ast ast) {
+		// rewrites the tree in place, best after the ConstantFolder;
+		// returns the number of hoisted expressions
+		return new LoopInvariantMotion(ast).hoistProgram();
+	}
+
+	public int hoistProgram() {
+		for (function = 0; function < ast.functionCount; function++) {
+			slotCount = ast.functionSlotCount[function];
+			hoistLoops(ast.functionBody[function]);
+			ast.functionSlotCount[function] = slotCount;
+		}
+		if (ast.root >= 0) {
+			function = -1;
+			slotCount = ast.rootSlotCount;
+			hoistLoops(ast.root);
+			ast.rootSlotCount = slotCount;
+		}
+		return hoisted;
+	}
+
+	private void hoistLoops(int node) {
+		// inner loops first, their preheaders may move out of the outer
+		// loop as well
+		for (int i = 0; i < ast.childCount(node); i++) {
+			hoistLoops(ast.childAt(node, i));
+		}
+		if (ast.kind[node] == Ast.WHILE) {
+			hoistLoop(node);
+		}
+	}
+
+	private void hoistLoop(int loop) {
+		modified = new BitSet();
+		findAssignments(ast.a[loop]);
+		findAssignments(ast.b[loop]);
+		preheaderCount = 0;
+
+		// the condition runs whenever the loop is reached, so its calls can
+		// go first; a call of the body only runs if the condition holds,
+		// which is tested once more in front of the preheader, this needs
+		// a condition without calls
+		int condition = ast.a[loop];
+		callsAllowed = !hasCall(condition);
+		inBody = true;
+		bodyCalls = false;
+		hoist(ast.b[loop], true);
+		int guard = bodyCalls ? copy(condition) : -1;
+		callsAllowed = true;
+		inBody = false;
+		hoist(condition, true);
+
+		if (preheaderCount == 0) {
+			return;
+		}
+		hoisted += preheaderCount;
+
+		// loop becomes { preheader while ... }, or if condition { ... }
+		// with the value 0 of a loop which never runs
+		int movedLoop = ast.add(Ast.WHILE, ast.a[loop], ast.b[loop],
+				ast.c[loop], ast.pos[loop]);
+		add(movedLoop);
+		int first = ast.addList(preheader, 0, preheaderCount);
+		if (bodyCalls) {
+			int block = ast.add(Ast.BLOCK, first, preheaderCount, 0,
+					ast.pos[loop]);
+			set(loop, Ast.IF, guard, block, -1);
+		} else {
+			set(loop, Ast.BLOCK, first, preheaderCount, 0);
+		}
+	}
+
+	private void findAssignments(int node) {
+		// a callee has its own frame, only its arguments count
+		if (ast.kind[node] == Ast.ASSIGN) {
+			modified.set(ast.c[node]);
+		}
+		for (int i = 0; i < ast.childCount(node); i++) {
+			findAssignments(ast.childAt(node, i));
+		}
+	}
+
+	private void hoist(int node, boolean always) {
+		// always is false for parts which may be skipped on a pass: the
+		// branches of an if, the body of an inner loop and the right
+		// operand of & and |; arithmetic is hoisted from there, calls not
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+		case Ast.VAR:
+		case Ast.FUNCTION:
+			return;
+		case Ast.ASSIGN:
+			hoist(ast.b[node], always);
+			return;
+		case Ast.IF:
+			hoist(ast.a[node], always);
+			hoist(ast.b[node], false);
+			if (ast.c[node] >= 0) {
+				hoist(ast.c[node], false);
+			}
+			return;
+		case Ast.WHILE:
+			hoist(ast.a[node], always);
+			hoist(ast.b[node], false);
+			return;
+		case Ast.BLOCK:
+			for (int i = 0; i < ast.b[node]; i++) {
+				hoist(ast.child(node, i), always);
+			}
+			return;
+		default:
+			break;
+		}
+
+		if (isInvariant(node)) {
+			if (!hasCall(node)) {
+				moveToPreheader(node);
+				return;
+			}
+			if (always && callsAllowed && callsAlways(node)) {
+				bodyCalls |= inBody;
+				moveToPreheader(node);
+				return;
+			}
+		}
+
+		if (ast.kind[node] == Ast.CALL || ast.kind[node] == Ast.TAIL_CALL) {
+			for (int i = 0; i < ast.c[node]; i++) {
+				hoist(ast.arg(node, i), always);
+			}
+		} else {
+			boolean shortCircuit = ast.kind[node] == Ast.AND
+					|| ast.kind[node] == Ast.OR;
+			hoist(ast.a[node], always);
+			hoist(ast.b[node], always && !shortCircuit);
+		}
+	}
+
+	private boolean isInvariant(int node) {
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+			return true;
+		case Ast.VAR:
+			return !modified.get(ast.c[node]);
+		case Ast.CALL:
+			if (!pure[ast.a[node]]) {
+				return false;
+			}
+			for (int i = 0; i < ast.c[node]; i++) {
+				if (!isInvariant(ast.arg(node, i))) {
+					return false;
+				}
+			}
+			return true;
+		case Ast.ADD:
+		case Ast.SUB:
+		case Ast.MUL:
+		case Ast.DIV:
+		case Ast.LESS:
+		case Ast.GREATER:
+		case Ast.EQUAL:
+		case Ast.AND:
+		case Ast.OR:
+			return isInvariant(ast.a[node]) && isInvariant(ast.b[node]);
+		default:
+			// a tail call leaves the loop, statements have effects
+			return false;
+		}
+	}
+
+	private boolean hasCall(int node) {
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+		case Ast.VAR:
+			return false;
+		case Ast.ADD:
+		case Ast.SUB:
+		case Ast.MUL:
+		case Ast.DIV:
+		case Ast.LESS:
+		case Ast.GREATER:
+		case Ast.EQUAL:
+		case Ast.AND:
+		case Ast.OR:
+			return hasCall(ast.a[node]) || hasCall(ast.b[node]);
+		default:
+			// calls, and the block of an inlined call which may loop
+			return true;
+		}
+	}
+
+	private boolean callsAlways(int node) {
+		// a call in the right operand of & and | may be skipped
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+		case Ast.VAR:
+			return true;
+		case Ast.CALL:
+			for (int i = 0; i < ast.c[node]; i++) {
+				if (!callsAlways(ast.arg(node, i))) {
+					return false;
+				}
+			}
+			return true;
+		case Ast.AND:
+		case Ast.OR:
+			return callsAlways(ast.a[node]) && !hasCall(ast.b[node]);
+		default:
+			return callsAlways(ast.a[node]) && callsAlways(ast.b[node]);
+		}
+	}
+
+	private int copy(int node) {
+		// the condition without calls: operators, variables and numbers
+		if (ast.kind[node] == Ast.NUMBER || ast.kind[node] == Ast.VAR) {
+			return ast.add(ast.kind[node], ast.a[node], ast.b[node],
+					ast.c[node], ast.pos[node]);
+		}
+		return ast.add(ast.kind[node], copy(ast.a[node]), copy(ast.b[node]),
+				ast.c[node], ast.pos[node]);
+	}
+
+	private void moveToPreheader(int node) {
+		// the value goes to a new variable of the frame, the node reads it
+		int slot = slotCount++;
+		int name = ast.names.intern("$" + (function < 0 ? "main" : ast
+				.functionName(function)) + slot);
+		int value = ast.add(ast.kind[node], ast.a[node], ast.b[node],
+				ast.c[node], ast.pos[node]);
+		add(ast.add(Ast.ASSIGN, name, value, slot, ast.pos[node]));
+		set(node, Ast.VAR, name, 0, slot);
+	}
+
+	private void add(int statement) {
+		if (preheaderCount == preheader.length) {
+			preheader = Arrays.copyOf(preheader, preheaderCount * 2);
+		}
+		preheader[preheaderCount++] = statement;
+	}
+
+	private void set(int node, byte kind, int a, int b, int c) {
+		ast.kind[node] = kind;
+		ast.a[node] = a;
+		ast.b[node] = b;
+		ast.c[node] = c;
+	}
+}
@@ -0,0 +1,77 @@
+package compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+public class MappedFileReader extends Reader {
+	// bytes of the file which are mapped at the same time
+	public static final int MAPPING_SIZE = 1 << 20;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final CharsetDecoder decoder;
+	private final long fileSize;
+
+	private MappedByteBuffer mapping;
+
+	// file position of the first byte of the mapping
+	private long mappingStart = 0;
+	private boolean flushed = false;
+
+	public MappedFileReader(File source, Charset charset) throws IOException {
+		file = new RandomAccessFile(source, "r");
+		channel = file.getChannel();
+		decoder = charset.newDecoder();
+		fileSize = channel.size();
+		map(0);
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+		while (out.position() == off && !flushed) {
+			boolean lastMapping = mappingStart + mapping.limit() >= fileSize;
+			CoderResult result = decoder.decode(mapping, out, lastMapping);
+			if (result.isError()) {
+				result.throwException();
+			}
+
+			if (result.isUnderflow()) {
+				if (!lastMapping) {
+					// bytes of a split char stay at the start of the next mapping
+					map(mappingStart + mapping.position());
+				} else {
+					decoder.flush(out);
+					flushed = true;
+				}
+			}
+		}
+
+		int count = out.position() - off;
+		return count > 0 ? count : -1;
+	}
+
+	private void map(long start) throws IOException {
+		mappingStart = start;
+		long size = Math.min(MAPPING_SIZE, fileSize - start);
+		mapping = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mapping = null;
+		file.close();
+	}
+}
@@ -0,0 +1,220 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class MemoCache {
+	// results of one function, the arguments are kept as raw long bits
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final int arity;
+	private final int capacity;
+
+	private final long[] keys;
+	private final double[] values;
+
+	// buckets of the hash table and the entries chained behind them
+	private final int[] table;
+	private final int[] chain;
+
+	// least recently used order, from newest to oldest
+	private final int[] newer;
+	private final int[] older;
+	private int newest = -1;
+	private int oldest = -1;
+	private int size = 0;
+
+	private final long[] probe;
+
+	public long hits = 0;
+	public long misses = 0;
+
+	public MemoCache(int arity, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Memo capacity " + capacity
+					+ " is below 1");
+		}
+		this.arity = arity;
+		this.capacity = capacity;
+		keys = new long[capacity * arity];
+		values = new double[capacity];
+		table = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+		Arrays.fill(table, -1);
+		chain = new int[capacity];
+		newer = new int[capacity];
+		older = new int[capacity];
+		probe = new long[arity];
+	}
+
+	public int find(double[] args, int from) {
+		// returns the entry of the arguments, -1 if they are not cached
+		for (int i = 0; i < arity; i++) {
+			probe[i] = Double.doubleToLongBits(args[from + i]);
+		}
+		return findProbe();
+	}
+
+	public int find1(double a) {
+		probe[0] = Double.doubleToLongBits(a);
+		return findProbe();
+	}
+
+	public int find2(double a, double b) {
+		probe[0] = Double.doubleToLongBits(a);
+		probe[1] = Double.doubleToLongBits(b);
+		return findProbe();
+	}
+
+	public int find3(double a, double b, double c) {
+		probe[0] = Double.doubleToLongBits(a);
+		probe[1] = Double.doubleToLongBits(b);
+		probe[2] = Double.doubleToLongBits(c);
+		return findProbe();
+	}
+
+	public double value(int entry) {
+		return values[entry];
+	}
+
+	public void put(double[] args, int from, double value) {
+		for (int i = 0; i < arity; i++) {
+			probe[i] = Double.doubleToLongBits(args[from + i]);
+		}
+		putProbe(value);
+	}
+
+	public void put1(double a, double value) {
+		probe[0] = Double.doubleToLongBits(a);
+		putProbe(value);
+	}
+
+	public void put2(double a, double b, double value) {
+		probe[0] = Double.doubleToLongBits(a);
+		probe[1] = Double.doubleToLongBits(b);
+		putProbe(value);
+	}
+
+	public void put3(double a, double b, double c, double value) {
+		probe[0] = Double.doubleToLongBits(a);
+		probe[1] = Double.doubleToLongBits(b);
+		probe[2] = Double.doubleToLongBits(c);
+		putProbe(value);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public static long hits(MemoCache[] caches) {
+		long sum = 0;
+		for (MemoCache cache : caches) {
+			sum += cache != null ? cache.hits : 0;
+		}
+		return sum;
+	}
+
+	public static long misses(MemoCache[] caches) {
+		long sum = 0;
+		for (MemoCache cache : caches) {
+			sum += cache != null ? cache.misses : 0;
+		}
+		return sum;
+	}
+
+	private int findProbe() {
+		for (int entry = table[bucket(probe, 0)]; entry >= 0; entry = chain[entry]) {
+			if (matches(entry)) {
+				hits++;
+				unlink(entry);
+				linkNewest(entry);
+				return entry;
+			}
+		}
+		misses++;
+		return -1;
+	}
+
+	private void putProbe(double value) {
+		// a recursive call may have stored the same arguments meanwhile
+		for (int entry = table[bucket(probe, 0)]; entry >= 0; entry = chain[entry]) {
+			if (matches(entry)) {
+				values[entry] = value;
+				return;
+			}
+		}
+
+		int entry;
+		if (size < capacity) {
+			entry = size;
+			size++;
+		} else {
+			// evict the least recently used entry
+			entry = oldest;
+			unlink(entry);
+			removeFromBucket(entry);
+		}
+
+		System.arraycopy(probe, 0, keys, entry * arity, arity);
+		values[entry] = value;
+
+		int bucket = bucket(probe, 0);
+		chain[entry] = table[bucket];
+		table[bucket] = entry;
+		linkNewest(entry);
+	}
+
+	private boolean matches(int entry) {
+		int offset = entry * arity;
+		for (int i = 0; i < arity; i++) {
+			if (keys[offset + i] != probe[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int bucket(long[] key, int offset) {
+		long hash = 0;
+		for (int i = 0; i < arity; i++) {
+			hash = (hash + key[offset + i]) * 0x9E3779B97F4A7C15L;
+		}
+		return (int) (hash ^ (hash >>> 32)) & (table.length - 1);
+	}
+
+	private void removeFromBucket(int entry) {
+		int bucket = bucket(keys, entry * arity);
+		if (table[bucket] == entry) {
+			table[bucket] = chain[entry];
+			return;
+		}
+		int previous = table[bucket];
+		while (chain[previous] != entry) {
+			previous = chain[previous];
+		}
+		chain[previous] = chain[entry];
+	}
+
+	private void unlink(int entry) {
+		if (newer[entry] >= 0) {
+			older[newer[entry]] = older[entry];
+		} else {
+			newest = older[entry];
+		}
+		if (older[entry] >= 0) {
+			newer[older[entry]] = newer[entry];
+		} else {
+			oldest = newer[entry];
+		}
+	}
+
+	private void linkNewest(int entry) {
+		newer[entry] = -1;
+		older[entry] = newest;
+		if (newest >= 0) {
+			newer[newest] = entry;
+		}
+		newest = entry;
+		if (oldest < 0) {
+			oldest = entry;
+		}
+	}
+}
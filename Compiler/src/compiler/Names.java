@@ -0,0 +1,143 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class Names {
+	// keywords are interned first, so their ids are fixed
+	public static final int IF = 0;
+	public static final int ELSE = 1;
+	public static final int WHILE = 2;
+	public static final int FUNCTION = 3;
+	public static final int TRUE = 4;
+	public static final int FALSE = 5;
+
+	private static final String[] KEYWORDS = { "if", "else", "while",
+			"function", "true", "false" };
+
+	// all names are stored back to back in one char array
+	private char[] chars = new char[256];
+	private int charCount = 0;
+
+	private int[] offsets = new int[32];
+	private int[] lengths = new int[32];
+	private int[] hashes = new int[32];
+	private String[] strings = new String[32];
+	private int size = 0;
+
+	// open addressing hash table of ids, -1 marks a free entry
+	private int[] table = new int[64];
+
+	public Names() {
+		Arrays.fill(table, -1);
+		for (String keyword : KEYWORDS) {
+			intern(keyword);
+		}
+	}
+
+	public int intern(String name) {
+		return intern(name.toCharArray(), 0, name.length());
+	}
+
+	public int intern(char[] buf, int offset, int length) {
+		int hash = 0;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + buf[i];
+		}
+
+		int mask = table.length - 1;
+		int index = hash & mask;
+		while (table[index] >= 0) {
+			int id = table[index];
+			if (hashes[id] == hash && equals(id, buf, offset, length)) {
+				return id;
+			}
+			index = (index + 1) & mask;
+		}
+
+		return add(buf, offset, length, hash);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Names copy() {
+		// names of their own, e.g. for a compiler on another thread
+		Names copy = new Names();
+		copy.chars = Arrays.copyOf(chars, chars.length);
+		copy.charCount = charCount;
+		copy.offsets = Arrays.copyOf(offsets, offsets.length);
+		copy.lengths = Arrays.copyOf(lengths, lengths.length);
+		copy.hashes = Arrays.copyOf(hashes, hashes.length);
+		copy.strings = Arrays.copyOf(strings, strings.length);
+		copy.size = size;
+		copy.table = Arrays.copyOf(table, table.length);
+		return copy;
+	}
+
+	public String name(int id) {
+		// built once per name and cached afterwards
+		if (strings[id] == null) {
+			strings[id] = new String(chars, offsets[id], lengths[id]);
+		}
+		return strings[id];
+	}
+
+	private boolean equals(int id, char[] buf, int offset, int length) {
+		if (lengths[id] != length) {
+			return false;
+		}
+		int nameOffset = offsets[id];
+		for (int i = 0; i < length; i++) {
+			if (chars[nameOffset + i] != buf[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int add(char[] buf, int offset, int length, int hash) {
+		if (charCount + length > chars.length) {
+			chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount
+					+ length));
+		}
+		if (size == offsets.length) {
+			offsets = Arrays.copyOf(offsets, size * 2);
+			lengths = Arrays.copyOf(lengths, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+			strings = Arrays.copyOf(strings, size * 2);
+		}
+
+		System.arraycopy(buf, offset, chars, charCount, length);
+		int id = size;
+		offsets[id] = charCount;
+		lengths[id] = length;
+		hashes[id] = hash;
+		charCount += length;
+		size++;
+
+		if (size * 2 > table.length) {
+			rehash();
+		} else {
+			insert(id);
+		}
+		return id;
+	}
+
+	private void rehash() {
+		table = new int[table.length * 2];
+		Arrays.fill(table, -1);
+		for (int id = 0; id < size; id++) {
+			insert(id);
+		}
+	}
+
+	private void insert(int id) {
+		int mask = table.length - 1;
+		int index = hashes[id] & mask;
+		while (table[index] >= 0) {
+			index = (index + 1) & mask;
+		}
+		table[index] = id;
+	}
+}
@@ -0,0 +1,151 @@
+package compiler;
+
+public class NumberScanner {
+	private static final char E = 'E';
+	private static final char E_S = 'e';
+	private static final char DOT = '.';
+
+	// every power of ten up to 10^22 is exact as a double
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private static final long[] LONG_POWERS_OF_TEN = { 1L, 10L, 100L, 1000L,
+			10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L,
+			10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+			100000000000000L, 1000000000000000L, 10000000000000000L };
+
+	// largest significand which converts to a double without rounding
+	private static final long MAX_EXACT_SIGNIFICAND = 1L << 53;
+
+	// more digits do not fit into a long
+	private static final int MAX_SIGNIFICAND_DIGITS = 18;
+
+	// the exponent is clamped, anything beyond over- or underflows anyway
+	private static final int MAX_EXPONENT = 100000;
+
+	// results of the last scan
+	public double value;
+
+	// position of a missing digit, -1 if the literal is well formed
+	public int errorPos;
+
+	public boolean fraction;
+
+	public boolean exponentPart;
+
+	public int scan(char[] buf, int offset, int limit) {
+		int pos = offset;
+		long significand = 0;
+		int digits = 0;
+		int decimalExponent = 0;
+		boolean truncated = false;
+
+		value = 0;
+		errorPos = -1;
+		fraction = false;
+		exponentPart = false;
+
+		// number ::= digit+ (. digit+)? ((e|E) (+|-)? digit+)?
+		while (pos < limit && isDigit(buf[pos])) {
+			if (digits < MAX_SIGNIFICAND_DIGITS) {
+				significand = significand * 10 + buf[pos] - '0';
+				if (significand != 0) {
+					digits++;
+				}
+			} else {
+				// dropped integer digits still scale the value
+				decimalExponent++;
+				truncated |= buf[pos] != '0';
+			}
+			pos++;
+		}
+
+		if (pos < limit && buf[pos] == DOT) {
+			pos++;
+			if (pos >= limit || !isDigit(buf[pos])) {
+				errorPos = pos;
+				return pos;
+			}
+			while (pos < limit && isDigit(buf[pos])) {
+				if (digits < MAX_SIGNIFICAND_DIGITS) {
+					significand = significand * 10 + buf[pos] - '0';
+					if (significand != 0) {
+						digits++;
+					}
+					decimalExponent--;
+				} else {
+					truncated |= buf[pos] != '0';
+				}
+				pos++;
+			}
+			fraction = true;
+		}
+
+		if (pos < limit && (buf[pos] == E || buf[pos] == E_S)) {
+			pos++;
+			boolean expSign = true; // true means +, false -
+			if (pos < limit && (buf[pos] == '+' || buf[pos] == '-')) {
+				expSign = buf[pos] == '+';
+				pos++;
+			}
+			if (pos >= limit || !isDigit(buf[pos])) {
+				errorPos = pos;
+				return pos;
+			}
+
+			int exponent = 0;
+			while (pos < limit && isDigit(buf[pos])) {
+				if (exponent < MAX_EXPONENT) {
+					exponent = exponent * 10 + buf[pos] - '0';
+				}
+				pos++;
+			}
+			decimalExponent += expSign ? exponent : -exponent;
+			exponentPart = true;
+		}
+
+		if (significand == 0 && !truncated) {
+			value = 0;
+		} else if (!truncated) {
+			value = fastPath(significand, decimalExponent);
+			if (Double.isNaN(value)) {
+				value = Double.parseDouble(new String(buf, offset, pos
+						- offset));
+			}
+		} else {
+			// correctly rounded fallback for long or extreme literals
+			value = Double.parseDouble(new String(buf, offset, pos - offset));
+		}
+
+		return pos;
+	}
+
+	private static double fastPath(long significand, int decimalExponent) {
+		// both operands are exact, so one IEEE operation rounds correctly
+		if (significand > MAX_EXACT_SIGNIFICAND) {
+			return Double.NaN;
+		}
+		if (decimalExponent == 0) {
+			return significand;
+		}
+		if (decimalExponent < 0 && decimalExponent >= -22) {
+			return significand / POWERS_OF_TEN[-decimalExponent];
+		}
+		if (decimalExponent > 0 && decimalExponent <= 22) {
+			return significand * POWERS_OF_TEN[decimalExponent];
+		}
+		if (decimalExponent > 22 && decimalExponent <= 22 + 16) {
+			// move surplus zeros into the significand while it stays exact
+			long scale = LONG_POWERS_OF_TEN[decimalExponent - 22];
+			if (significand <= MAX_EXACT_SIGNIFICAND / scale) {
+				return (significand * scale) * POWERS_OF_TEN[22];
+			}
+		}
+		return Double.NaN;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+}
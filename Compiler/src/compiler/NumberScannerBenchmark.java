@@ -0,0 +1,152 @@
+package compiler;
+
+import java.util.Random;
+
+public class NumberScannerBenchmark {
+	private static final int LITERALS = 200000;
+	private static final int ROUNDS = 20;
+
+	private static final String[] KINDS = { "integers", "decimals",
+			"exponents", "long decimals", "large exponents" };
+
+	public static void main(String[] args) {
+		System.out.println("kind              scanner  state machine"
+				+ "  (ns/literal, literals not correctly rounded)");
+		double sink = 0;
+
+		for (int kind = 0; kind < KINDS.length; kind++) {
+			String[] literals = createLiterals(kind, LITERALS);
+
+			char[][] bufs = new char[literals.length][];
+			for (int i = 0; i < literals.length; i++) {
+				bufs[i] = literals[i].toCharArray();
+			}
+
+			NumberScanner scanner = new NumberScanner();
+
+			// warm up both variants before measuring
+			for (int round = 0; round < ROUNDS; round++) {
+				sink += runScanner(scanner, bufs) + runStateMachine(bufs);
+			}
+
+			long scannerTime = 0;
+			long stateMachineTime = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				sink += runScanner(scanner, bufs);
+				scannerTime += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				sink += runStateMachine(bufs);
+				stateMachineTime += System.nanoTime() - start;
+			}
+
+			// count literals which are not correctly rounded
+			int scannerErrors = 0;
+			int stateMachineErrors = 0;
+			for (int i = 0; i < bufs.length; i++) {
+				double expected = Double.parseDouble(literals[i]);
+				scanner.scan(bufs[i], 0, bufs[i].length);
+				if (scanner.value != expected) {
+					scannerErrors++;
+				}
+				if (stateMachine(bufs[i]) != expected) {
+					stateMachineErrors++;
+				}
+			}
+
+			long count = (long) LITERALS * ROUNDS;
+			System.out.println(String.format("%-16s %5.1f %6d %6.1f %6d",
+					KINDS[kind], (double) scannerTime / count, scannerErrors,
+					(double) stateMachineTime / count, stateMachineErrors));
+		}
+		System.out.println("(checksum " + sink + ")");
+	}
+
+	private static String[] createLiterals(int kind, int count) {
+		Random random = new Random(42);
+		String[] literals = new String[count];
+
+		for (int i = 0; i < count; i++) {
+			switch (kind) {
+			case 0:
+				literals[i] = Integer.toString(random.nextInt(100000));
+				break;
+			case 1:
+				literals[i] = random.nextInt(1000) + "."
+						+ random.nextInt(100000);
+				break;
+			case 2:
+				literals[i] = random.nextInt(100) + "." + random.nextInt(1000)
+						+ "e" + (random.nextBoolean() ? "+" : "-")
+						+ random.nextInt(20);
+				break;
+			case 3:
+				literals[i] = "0." + Math.abs(random.nextLong())
+						+ Math.abs(random.nextLong());
+				break;
+			default:
+				literals[i] = random.nextInt(10) + "E" + random.nextInt(300);
+				break;
+			}
+		}
+		return literals;
+	}
+
+	private static double runScanner(NumberScanner scanner, char[][] bufs) {
+		double sum = 0;
+		for (char[] buf : bufs) {
+			scanner.scan(buf, 0, buf.length);
+			sum += scanner.value;
+		}
+		return sum;
+	}
+
+	private static double runStateMachine(char[][] bufs) {
+		double sum = 0;
+		for (char[] buf : bufs) {
+			sum += stateMachine(buf);
+		}
+		return sum;
+	}
+
+	// the former NUMBER, DOT, MANTISSA and EXP states of nextToken()
+	private static double stateMachine(char[] buf) {
+		double value = 0;
+		int pos = 0;
+		while (pos < buf.length && Character.isDigit(buf[pos])) {
+			value = value * 10 + buf[pos] - '0';
+			pos++;
+		}
+
+		if (pos < buf.length && buf[pos] == '.') {
+			pos++;
+			int mantissaPos = 0;
+			while (pos < buf.length && Character.isDigit(buf[pos])) {
+				mantissaPos++;
+				value = value + ((buf[pos] - '0') / Math.pow(10, mantissaPos));
+				pos++;
+			}
+		}
+
+		if (pos < buf.length && (buf[pos] == 'e' || buf[pos] == 'E')) {
+			pos++;
+			boolean expSign = true;
+			if (pos < buf.length && (buf[pos] == '+' || buf[pos] == '-')) {
+				expSign = buf[pos] == '+';
+				pos++;
+			}
+			double exponent = 0;
+			while (pos < buf.length && Character.isDigit(buf[pos])) {
+				exponent = exponent * 10 + buf[pos] - '0';
+				pos++;
+			}
+			if (expSign) {
+				value = value * Math.pow(10, exponent);
+			} else {
+				value = value * Math.pow(10, -exponent);
+			}
+		}
+		return value;
+	}
+}
@@ -0,0 +1,469 @@
+package compiler;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class Parser {
+	private final Lexer lexer;
+	private final Names names;
+	private final Ast ast;
+	private final String text;
+
+	private Token currentToken = new Token();
+	private Token lookAheadToken = new Token();
+
+	// function index of every name id, -1 if the name is no function
+	private int[] functionOfName = new int[0];
+
+	// names which got a value in the current function or the main program
+	private BitSet assigned = new BitSet();
+
+	// frame slot of every name id in the current scope, -1 if it has none
+	private int[] slotOfName = new int[0];
+	private int slotCount = 0;
+	private int functionDepth = 0;
+
+	// children of the blocks and calls which are parsed right now
+	private int[] childStack = new int[64];
+	private int childCount = 0;
+
+	public Parser(Lexer lexer, Ast ast) {
+		this.lexer = lexer;
+		this.names = lexer.getNames();
+		this.ast = ast;
+		this.text = lexer.getText();
+
+		nextToken();
+		nextToken();
+	}
+
+	public static Ast parse(String text, String... inputs) {
+		// the inputs are the first variables of the main program
+		Names names = new Names();
+		Ast ast = new Ast(names);
+		Parser parser = new Parser(new Lexer(text, names), ast);
+		for (int i = 0; i < inputs.length; i++) {
+			if (parser.declareInput(inputs[i]) != i) {
+				throw new IllegalArgumentException("Duplicate input "
+						+ inputs[i]);
+			}
+		}
+		parser.parseProgram();
+		return ast;
+	}
+
+	public Ast getAst() {
+		return ast;
+	}
+
+	public int declareInput(String name) {
+		// a variable with a value from outside, before the first statement
+		int nameId = names.intern(name);
+		assigned.set(nameId);
+		return slot(nameId);
+	}
+
+	public void reserveSlots(int count) {
+		// slots of the main program below count are taken, e.g. by the
+		// variables of inlined functions, so new names come after them
+		slotCount = Math.max(slotCount, count);
+	}
+
+	public boolean atEnd() {
+		return currentToken.kind == Token.END;
+	}
+
+	public int parseProgram() {
+		// program ::= statList
+		int sourcePos = currentToken.start;
+		int first = childCount;
+
+		while (!atEnd()) {
+			pushChild(parseStatement());
+		}
+
+		ast.root = popBlock(first, sourcePos);
+		ast.rootSlotCount = slotCount;
+		return ast.root;
+	}
+
+	public int parseStatement() {
+		// statement ::= assignment | expression | ifStat | whileStat |
+		// funtionDecl
+		if (currentToken.kind == '}') {
+			parserError("end of text", currentToken.start);
+		}
+
+		int statement;
+		if (lookAheadToken.kind == '=') {
+			statement = parseAssignment();
+		} else if (currentToken.id == Names.IF) {
+			statement = parseIfStat();
+		} else if (currentToken.id == Names.WHILE) {
+			statement = parseWhileStat();
+		} else if (currentToken.id == Names.FUNCTION) {
+			statement = parseFunctionDecl();
+		} else {
+			statement = parseExpression();
+		}
+
+		if (functionDepth == 0) {
+			// the main program frame grows with every statement
+			ast.rootSlotCount = slotCount;
+		}
+		return statement;
+	}
+
+	private int parseBlock() {
+		// block ::= { statList }
+		int sourcePos = currentToken.start;
+		int first = childCount;
+
+		skip('{');
+		while (currentToken.kind != Token.END && currentToken.kind != '}') {
+			pushChild(parseStatement());
+		}
+		skip('}');
+
+		return popBlock(first, sourcePos);
+	}
+
+	private int parseFunctionDecl() {
+		int sourcePos = currentToken.start;
+
+		// functionDecl ::= function name (formParam*) {statList}
+		skipKeyword(Names.FUNCTION);
+
+		int nameId = currentToken.id;
+		skip(Token.NAME);
+
+		skip('(');
+
+		// the parameters are the first names of the new scope
+		BitSet parentAssigned = assigned;
+		int[] parentSlotOfName = slotOfName;
+		int parentSlotCount = slotCount;
+		assigned = new BitSet();
+		slotOfName = new int[0];
+		slotCount = 0;
+		functionDepth++;
+
+		int first = childCount;
+		while (currentToken.kind == Token.NAME) {
+			assigned.set(currentToken.id);
+			slot(currentToken.id);
+			pushChild(currentToken.id);
+			nextToken();
+		}
+
+		skip(')');
+
+		int params = ast.addList(childStack, first, childCount - first);
+		int function = ast.addFunction(nameId, params, childCount - first);
+		childCount = first;
+
+		// known before the body, so it may call itself
+		setFunction(nameId, function);
+
+		ast.functionBody[function] = parseBlock();
+		ast.functionSlotCount[function] = slotCount;
+		markTailCalls(function, ast.functionBody[function]);
+
+		assigned = parentAssigned;
+		slotOfName = parentSlotOfName;
+		slotCount = parentSlotCount;
+		functionDepth--;
+
+		return ast.add(Ast.FUNCTION, function, 0, 0, sourcePos);
+	}
+
+	private void markTailCalls(int function, int node) {
+		// a call of the function itself whose value is the result of the
+		// body can reuse the frame
+		switch (ast.kind[node]) {
+		case Ast.BLOCK:
+			if (ast.b[node] > 0) {
+				markTailCalls(function, ast.child(node, ast.b[node] - 1));
+			}
+			break;
+		case Ast.IF:
+			markTailCalls(function, ast.b[node]);
+			if (ast.c[node] >= 0) {
+				markTailCalls(function, ast.c[node]);
+			}
+			break;
+		case Ast.CALL:
+			if (ast.a[node] == function) {
+				ast.kind[node] = Ast.TAIL_CALL;
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private int parseWhileStat() {
+		int sourcePos = currentToken.start;
+
+		// whileStat ::= while boolExpr {statlist}
+		skipKeyword(Names.WHILE);
+
+		int condition = parseExpression();
+		int body = parseBlock();
+
+		return ast.add(Ast.WHILE, condition, body, 0, sourcePos);
+	}
+
+	private int parseIfStat() {
+		int sourcePos = currentToken.start;
+
+		// ifStat ::= if boolExpr {statlist} (else {statlist})?
+		skipKeyword(Names.IF);
+
+		int condition = parseExpression();
+		int thenBlock = parseBlock();
+		int elseBlock = -1;
+
+		if (currentToken.id == Names.ELSE) {
+			skipKeyword(Names.ELSE);
+			elseBlock = parseBlock();
+		}
+
+		return ast.add(Ast.IF, condition, thenBlock, elseBlock, sourcePos);
+	}
+
+	private int parseAssignment() {
+		int sourcePos = currentToken.start;
+
+		// assignment = varName = expression
+		int nameId = currentToken.id;
+
+		skip(Token.NAME);
+		skip('=');
+
+		int value = parseExpression();
+
+		assigned.set(nameId);
+
+		return ast.add(Ast.ASSIGN, nameId, value, slot(nameId), sourcePos);
+	}
+
+	private int parseExpression() {
+		// expression ::= term [+|-|&|| term]*
+		int result = parseTerm();
+
+		while ("+-&|".indexOf(currentToken.kind) >= 0) {
+			int sourcePos = currentToken.start;
+			char op = currentToken.kind;
+			nextToken();
+
+			int second = parseTerm();
+
+			byte kind;
+			if (op == '+') {
+				kind = Ast.ADD;
+			} else if (op == '-') {
+				kind = Ast.SUB;
+			} else if (op == '&') {
+				kind = Ast.AND;
+			} else {
+				kind = Ast.OR;
+			}
+			result = ast.add(kind, result, second, 0, sourcePos);
+		}
+		return result;
+	}
+
+	private int parseTerm() {
+		// term ::= factor [ * | / | < | > | = factor]*
+		int result = parseFactor();
+
+		while ("*/<>=".indexOf(currentToken.kind) >= 0) {
+			int sourcePos = currentToken.start;
+			char op = currentToken.kind;
+			nextToken();
+
+			int second = parseFactor();
+
+			byte kind;
+			if (op == '*') {
+				kind = Ast.MUL;
+			} else if (op == '/') {
+				kind = Ast.DIV;
+			} else if (op == '<') {
+				kind = Ast.LESS;
+			} else if (op == '>') {
+				kind = Ast.GREATER;
+			} else {
+				kind = Ast.EQUAL;
+			}
+			result = ast.add(kind, result, second, 0, sourcePos);
+		}
+		return result;
+	}
+
+	private int parseFactor() {
+		// factor ::= number | (expression) | varName | true | false |
+		// functionCall
+		int sourcePos = currentToken.start;
+		int result;
+
+		if (currentToken.kind == '(') {
+			// skip (
+			nextToken();
+
+			result = parseExpression();
+
+			// should be a )
+			repair(')');
+		} else if (currentToken.id == Names.TRUE) {
+			nextToken();
+			result = ast.addNumber(1, sourcePos);
+		} else if (currentToken.id == Names.FALSE) {
+			nextToken();
+			result = ast.addNumber(0, sourcePos);
+		} else if (currentToken.kind == Token.NAME) {
+			int function = getFunction(currentToken.id);
+
+			if (function >= 0) {
+				result = parseFunctionCall(function);
+			} else if (!assigned.get(currentToken.id)) {
+				parserError("variable " + names.name(currentToken.id)
+						+ " has no value", sourcePos);
+				result = -1;
+			} else {
+				result = ast.add(Ast.VAR, currentToken.id, 0,
+						slot(currentToken.id), sourcePos);
+				nextToken();
+			}
+		} else if (currentToken.kind == Token.NUMBER) {
+			result = ast.addNumber(currentToken.value, sourcePos);
+			nextToken();
+		} else {
+			parserError("Number expected", sourcePos);
+			result = -1;
+		}
+
+		return result;
+	}
+
+	private int parseFunctionCall(int function) {
+		int sourcePos = currentToken.start;
+
+		// funcCall ::= name ( expression* )
+		nextToken();
+		skip('(');
+
+		int first = childCount;
+		while (currentToken.kind != ')' && currentToken.kind != Token.END) {
+			pushChild(parseExpression());
+		}
+
+		skip(')');
+
+		int count = childCount - first;
+		if (count != ast.functionParamCount[function]) {
+			parserError(ast.functionName(function) + " expects "
+					+ ast.functionParamCount[function] + " parameters",
+					sourcePos);
+		}
+
+		int args = ast.addList(childStack, first, count);
+		childCount = first;
+
+		return ast.add(Ast.CALL, function, args, count, sourcePos);
+	}
+
+	private void pushChild(int node) {
+		if (childCount == childStack.length) {
+			childStack = Arrays.copyOf(childStack, childCount * 2);
+		}
+		childStack[childCount] = node;
+		childCount++;
+	}
+
+	private int popBlock(int first, int sourcePos) {
+		int count = childCount - first;
+		int children = ast.addList(childStack, first, count);
+		childCount = first;
+		return ast.add(Ast.BLOCK, children, count, 0, sourcePos);
+	}
+
+	private int slot(int nameId) {
+		// names get the next free slot of the frame when they are first seen
+		if (nameId >= slotOfName.length) {
+			int oldLength = slotOfName.length;
+			slotOfName = Arrays.copyOf(slotOfName,
+					Math.max(names.size(), oldLength * 2));
+			Arrays.fill(slotOfName, oldLength, slotOfName.length, -1);
+		}
+		if (slotOfName[nameId] < 0) {
+			slotOfName[nameId] = slotCount;
+			slotCount++;
+		}
+		return slotOfName[nameId];
+	}
+
+	private int getFunction(int nameId) {
+		return nameId < functionOfName.length ? functionOfName[nameId] : -1;
+	}
+
+	private void setFunction(int nameId, int function) {
+		if (nameId >= functionOfName.length) {
+			int oldLength = functionOfName.length;
+			functionOfName = Arrays.copyOf(functionOfName,
+					Math.max(names.size(), oldLength * 2));
+			Arrays.fill(functionOfName, oldLength, functionOfName.length, -1);
+		}
+		functionOfName[nameId] = function;
+	}
+
+	private void repair(char c) {
+		if (currentToken.kind == c) {
+			nextToken();
+		} else {
+			// the missing char is assumed in front of the current token
+			System.out.println((text != null ? text + "\n" : "")
+					+ "Missing char " + c + " inserted");
+		}
+	}
+
+	private void skipKeyword(int keywordId) {
+		if (currentToken.id == keywordId) {
+			nextToken();
+		} else {
+			parserError(names.name(keywordId) + " is missing",
+					currentToken.start);
+		}
+	}
+
+	private void skip(char c) {
+		if (currentToken.kind == c) {
+			nextToken();
+		} else {
+			parserError(c + " is missing", currentToken.start);
+		}
+	}
+
+	private void nextToken() {
+		Token tmp = currentToken;
+		currentToken = lookAheadToken;
+		lookAheadToken = tmp;
+
+		lexer.next(lookAheadToken);
+	}
+
+	private void parserError(String Error, int errorPos) {
+		if (text == null) {
+			// a stream is not kept in memory
+			throw new RuntimeException(Error + " at position " + errorPos);
+		}
+
+		StringBuffer blanks = new StringBuffer();
+		for (int i = 0; i < errorPos && i < text.length(); i++) {
+			blanks.append(' ');
+		}
+		throw new RuntimeException(Error + ": \n" + text + "\n"
+				+ blanks.toString() + "^");
+	}
+}
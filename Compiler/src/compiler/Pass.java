@@ -0,0 +1,9 @@
+package compiler;
+
+public interface Pass {
+	// a rewrite of the tree which a PassManager runs in its order
+	String name();
+
+	// returns the number of changes, 0 if the tree stayed the same
+	int run(Ast ast);
+}
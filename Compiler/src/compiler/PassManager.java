@@ -0,0 +1,100 @@
+package compiler;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PassManager {
+	private final List<Pass> passes = new ArrayList<Pass>();
+	private PrintStream dump;
+
+	public static PassManager optimizations(final int inlineSize) {
+		// the passes of the compiler and of Program, in their order
+		PassManager manager = new PassManager();
+		manager.add(new Pass() {
+			public String name() {
+				return "inline";
+			}
+
+			public int run(Ast ast) {
+				return Inliner.inline(ast, inlineSize);
+			}
+		});
+		manager.add(new Pass() {
+			public String name() {
+				return "fold";
+			}
+
+			public int run(Ast ast) {
+				return ConstantFolder.fold(ast);
+			}
+		});
+		manager.add(new Pass() {
+			public String name() {
+				return "simplify";
+			}
+
+			public int run(Ast ast) {
+				return ControlFlowSimplifier.simplify(ast);
+			}
+		});
+		manager.add(new Pass() {
+			public String name() {
+				return "induction";
+			}
+
+			public int run(Ast ast) {
+				return InductionVariables.reduce(ast);
+			}
+		});
+		manager.add(new Pass() {
+			public String name() {
+				return "hoist";
+			}
+
+			public int run(Ast ast) {
+				return LoopInvariantMotion.hoist(ast);
+			}
+		});
+		manager.add(new Pass() {
+			public String name() {
+				return "numbering";
+			}
+
+			public int run(Ast ast) {
+				return ValueNumbering.eliminate(ast);
+			}
+		});
+		return manager;
+	}
+
+	public PassManager add(Pass pass) {
+		passes.add(pass);
+		return this;
+	}
+
+	public void setDump(PrintStream out) {
+		// the SSA form of the program is printed before and after every
+		// pass, null prints nothing
+		dump = out;
+	}
+
+	public int run(Ast ast) {
+		// returns the number of changes of all passes
+		int changes = 0;
+		for (Pass pass : passes) {
+			if (dump != null) {
+				dump.println("; before " + pass.name());
+				dump.print(Ssa.dump(ast));
+			}
+			int count = pass.run(ast);
+			changes += count;
+			if (dump != null) {
+				dump.println("; after " + pass.name() + ", " + count
+						+ " changes");
+				dump.print(Ssa.dump(ast));
+			}
+		}
+		return changes;
+	}
+}
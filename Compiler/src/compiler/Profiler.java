@@ -0,0 +1,230 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Profiler {
+	// a function or a while loop of the script, found by its source position
+	public static class Region {
+		public final String name;
+		public final int pos;
+		public final String label;
+
+		// calls of a function or runs of a loop, and passes through a loop
+		public long count;
+		public long iterations;
+
+		// a recursive call is part of the time of the outermost one only
+		public long inclusiveNanos;
+		public long exclusiveNanos;
+		public long inclusiveNodes;
+		public long exclusiveNodes;
+
+		private int active;
+
+		Region(String name, int pos, String label) {
+			this.name = name;
+			this.pos = pos;
+			this.label = label;
+		}
+	}
+
+	// one node per call path, the stacks of the collapsed format
+	private static class StackNode {
+		final Region region;
+		final StackNode parent;
+		final Map<Region, StackNode> children = new HashMap<Region, StackNode>();
+		long exclusiveNanos;
+
+		StackNode(Region region, StackNode parent) {
+			this.region = region;
+			this.parent = parent;
+		}
+
+		StackNode child(Region child) {
+			StackNode node = children.get(child);
+			if (node == null) {
+				node = new StackNode(child, this);
+				children.put(child, node);
+			}
+			return node;
+		}
+	}
+
+	private final Map<Integer, Region> regions = new HashMap<Integer, Region>();
+	private final Region main = new Region("main", -1, "main");
+	private final StackNode root = new StackNode(main, null);
+	private String text;
+
+	// nodes evaluated since the profiler was created
+	private long nodes;
+
+	// the open regions, time and nodes of their callees are kept apart
+	private StackNode[] stack = new StackNode[64];
+	private long[] startNanos = new long[64];
+	private long[] startNodes = new long[64];
+	private long[] childNanos = new long[64];
+	private long[] childNodes = new long[64];
+	private int depth = -1;
+
+	public void start(String source) {
+		// the source gives line and column of the regions, it may be null
+		text = source;
+		depth = -1;
+		push(root);
+	}
+
+	public void stop() {
+		// closes the regions left open by an error, too
+		while (depth >= 0) {
+			exit();
+		}
+	}
+
+	public void node() {
+		nodes++;
+	}
+
+	public void enterFunction(String name, int pos) {
+		push(stack[depth].child(region(name, pos)));
+	}
+
+	public void enterLoop(int pos) {
+		push(stack[depth].child(region("while", pos)));
+	}
+
+	public void iteration() {
+		stack[depth].region.iterations++;
+	}
+
+	public void exit() {
+		StackNode node = stack[depth];
+		Region region = node.region;
+		long nanos = System.nanoTime() - startNanos[depth];
+		long nodeCount = nodes - startNodes[depth];
+		long selfNanos = nanos - childNanos[depth];
+		long selfNodes = nodeCount - childNodes[depth];
+
+		node.exclusiveNanos += selfNanos;
+		region.exclusiveNanos += selfNanos;
+		region.exclusiveNodes += selfNodes;
+		if (--region.active == 0) {
+			region.inclusiveNanos += nanos;
+			region.inclusiveNodes += nodeCount;
+		}
+
+		depth--;
+		if (depth >= 0) {
+			childNanos[depth] += nanos;
+			childNodes[depth] += nodeCount;
+		}
+	}
+
+	public Region getMain() {
+		return main;
+	}
+
+	public List<Region> getRegions() {
+		// the most expensive region first, by its own time
+		List<Region> result = new ArrayList<Region>(regions.values());
+		result.add(main);
+		Collections.sort(result, new Comparator<Region>() {
+			public int compare(Region r1, Region r2) {
+				return r1.exclusiveNanos < r2.exclusiveNanos ? 1
+						: r1.exclusiveNanos > r2.exclusiveNanos ? -1 : 0;
+			}
+		});
+		return result;
+	}
+
+	public String flatReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%10s %10s %10s %12s %12s %12s  %s%n",
+				"self ms", "total ms", "count", "iterations", "self nodes",
+				"nodes", "region"));
+		for (Region region : getRegions()) {
+			sb.append(String.format("%10.3f %10.3f %10d %12d %12d %12d  %s%n",
+					region.exclusiveNanos / 1e6, region.inclusiveNanos / 1e6,
+					region.count, region.iterations, region.exclusiveNodes,
+					region.inclusiveNodes, region.label));
+		}
+		return sb.toString();
+	}
+
+	public String collapsedStacks() {
+		// one line per call path: the frames separated by ';', a space and
+		// the own time of the path in microseconds
+		StringBuilder sb = new StringBuilder();
+		appendStacks(sb, root);
+		return sb.toString();
+	}
+
+	private void appendStacks(StringBuilder sb, StackNode node) {
+		long micros = node.exclusiveNanos / 1000;
+		if (micros > 0) {
+			appendPath(sb, node);
+			sb.append(' ').append(micros).append('\n');
+		}
+		for (StackNode child : node.children.values()) {
+			appendStacks(sb, child);
+		}
+	}
+
+	private void appendPath(StringBuilder sb, StackNode node) {
+		if (node.parent != null) {
+			appendPath(sb, node.parent);
+			sb.append(';');
+		}
+		sb.append(node.region.label);
+	}
+
+	private Region region(String name, int pos) {
+		Region region = regions.get(pos);
+		if (region == null) {
+			region = new Region(name, pos, name + "@" + position(pos));
+			regions.put(pos, region);
+		}
+		return region;
+	}
+
+	private String position(int pos) {
+		if (text == null) {
+			return Integer.toString(pos);
+		}
+		int line = 1;
+		int column = 1;
+		for (int i = 0; i < pos && i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				line++;
+				column = 1;
+			} else {
+				column++;
+			}
+		}
+		return line + ":" + column;
+	}
+
+	private void push(StackNode node) {
+		depth++;
+		if (depth == stack.length) {
+			int length = depth * 2;
+			stack = Arrays.copyOf(stack, length);
+			startNanos = Arrays.copyOf(startNanos, length);
+			startNodes = Arrays.copyOf(startNodes, length);
+			childNanos = Arrays.copyOf(childNanos, length);
+			childNodes = Arrays.copyOf(childNodes, length);
+		}
+		stack[depth] = node;
+		node.region.count++;
+		node.region.active++;
+		startNanos[depth] = System.nanoTime();
+		startNodes[depth] = nodes;
+		childNanos[depth] = 0;
+		childNodes[depth] = 0;
+	}
+}
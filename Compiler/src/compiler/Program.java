@@ -0,0 +1,167 @@
+package compiler;
+
+import java.util.Arrays;
+import java.util.Map;
+
+public final class Program {
+	// a script which is parsed and compiled once, then run by any number of
+	// threads at the same time; nothing is changed after the constructor
+	private final Ast ast;
+	private final String[] inputs;
+	private final RegisterCode code;
+	private final int entry;
+	private final int frameSize;
+	private final boolean[] memoized;
+	private final boolean columnar;
+
+	// the caches are not shared, every thread fills its own
+	private final ThreadLocal<MemoCache[]> memoCaches = new ThreadLocal<MemoCache[]>() {
+		@Override
+		protected MemoCache[] initialValue() {
+			MemoCache[] caches = new MemoCache[ast.functionCount];
+			for (int function = 0; function < caches.length; function++) {
+				if (memoized[function]) {
+					caches[function] = new MemoCache(
+							ast.functionParamCount[function],
+							MemoCache.DEFAULT_CAPACITY);
+				}
+			}
+			return caches;
+		}
+	};
+
+	private Program(Ast ast, String[] inputs, boolean memoization) {
+		this.ast = ast;
+		this.inputs = inputs;
+
+		RegisterCompiler compiler = new RegisterCompiler(ast);
+		entry = compiler.compileStatement(ast.root);
+		code = compiler.getCode();
+		frameSize = compiler.rootFrameSize();
+
+		memoized = memoization ? Purity.memoizable(ast)
+				: new boolean[ast.functionCount];
+		columnar = ColumnEvaluator.supports(ast);
+	}
+
+	public static Program compile(String text, String... inputs) {
+		return compile(text, true, inputs);
+	}
+
+	public static Program compile(String text, boolean memoization,
+			String... inputs) {
+		return compile(text, memoization, Inliner.DEFAULT_MAX_SIZE, inputs);
+	}
+
+	public static Program compile(String text, boolean memoization,
+			int inlineSize, String... inputs) {
+		// a parse error is thrown; calls of functions with at most
+		// inlineSize nodes are replaced by the body
+		Ast ast = Parser.parse(text, inputs);
+		PassManager.optimizations(inlineSize).run(ast);
+		ast.trim();
+
+		return new Program(ast, inputs.clone(), memoization);
+	}
+
+	public String[] getInputs() {
+		return inputs.clone();
+	}
+
+	public int indexOf(String input) {
+		for (int i = 0; i < inputs.length; i++) {
+			if (inputs[i].equals(input)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public double run(double... values) {
+		// the values are bound to the inputs by position, missing ones are 0
+		if (values.length > inputs.length) {
+			throw new IllegalArgumentException("Program expects "
+					+ inputs.length + " inputs");
+		}
+
+		FrameStack frames = FrameStack.get();
+		int base = frames.push(frameSize);
+		try {
+			System.arraycopy(values, 0, frames.slots, base, values.length);
+			return new RegisterVm().run(code, entry, frames, base,
+					memoCaches.get());
+		} finally {
+			frames.pop(base);
+		}
+	}
+
+	public double run(Map<String, Double> bindings) {
+		double[] values = new double[inputs.length];
+		for (Map.Entry<String, Double> binding : bindings.entrySet()) {
+			int index = indexOf(binding.getKey());
+			if (index < 0) {
+				throw new IllegalArgumentException("Unknown input "
+						+ binding.getKey());
+			}
+			values[index] = binding.getValue();
+		}
+		return run(values);
+	}
+
+	public void runBatch(double[][] columns, double[] out) {
+		// one column per input, row i of every column gives out[i]
+		BatchRunner.run(new BatchRunner.Kernel() {
+			public void run(double[][] columns, double[] out, int from, int to) {
+				if (columnar) {
+					new ColumnEvaluator(ast, inputs.length).run(columns, out,
+							from, to);
+				} else {
+					runRows(columns, out, from, to);
+				}
+			}
+		}, columns, out, inputs.length);
+	}
+
+	public void runBatch(Map<String, double[]> columns, double[] out) {
+		double[][] ordered = new double[inputs.length][];
+		for (Map.Entry<String, double[]> column : columns.entrySet()) {
+			int index = indexOf(column.getKey());
+			if (index < 0) {
+				throw new IllegalArgumentException("Unknown input "
+						+ column.getKey());
+			}
+			ordered[index] = column.getValue();
+		}
+		for (int i = 0; i < ordered.length; i++) {
+			if (ordered[i] == null) {
+				throw new IllegalArgumentException("No column for input "
+						+ inputs[i]);
+			}
+		}
+		runBatch(ordered, out);
+	}
+
+	private void runRows(double[][] columns, double[] out, int from, int to) {
+		// scripts with loops, calls or statements in branches run row by
+		// row on one frame
+		FrameStack frames = FrameStack.get();
+		MemoCache[] caches = memoCaches.get();
+		RegisterVm vm = new RegisterVm();
+		int base = frames.push(frameSize);
+		try {
+			for (int row = from; row < to; row++) {
+				Arrays.fill(frames.slots, base, base + frameSize, 0);
+				for (int i = 0; i < columns.length; i++) {
+					frames.slots[base + i] = columns[i][row];
+				}
+				out[row] = vm.run(code, entry, frames, base, caches);
+			}
+		} finally {
+			frames.pop(base);
+		}
+	}
+
+	public String toString() {
+		return "inputs " + Arrays.toString(inputs) + "\n" + ast;
+	}
+}
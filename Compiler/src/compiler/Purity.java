@@ -0,0 +1,39 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class Purity {
+	// functions whose calls may be answered from a MemoCache
+	public static boolean[] memoizable(Ast ast) {
+		boolean[] result = new boolean[ast.functionCount];
+
+		for (int function = 0; function < ast.functionCount; function++) {
+			// a body without calls and loops is cheaper than the cache
+			result[function] = containsCallOrLoop(ast,
+					ast.functionBody[function]);
+		}
+		return result;
+	}
+
+	public static boolean[] pureFunctions(Ast ast) {
+		// every function is pure: variables and assignments only reach the
+		// frame of the call and there are no globals, so a call depends on
+		// its arguments alone
+		boolean[] pure = new boolean[ast.functionCount];
+		Arrays.fill(pure, true);
+		return pure;
+	}
+
+	private static boolean containsCallOrLoop(Ast ast, int node) {
+		byte kind = ast.kind[node];
+		if (kind == Ast.CALL || kind == Ast.TAIL_CALL || kind == Ast.WHILE) {
+			return true;
+		}
+		for (int i = 0; i < ast.childCount(node); i++) {
+			if (containsCallOrLoop(ast, ast.childAt(node, i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,109 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class RegisterCode {
+	// opcodes, the operands follow in the code array; d, a and b are
+	// registers of the current frame, k is a constant index
+	public static final int CONST = 0; // d k
+	public static final int MOVE = 1; // d a
+	public static final int ADD = 2; // d a b
+	public static final int SUB = 3;
+	public static final int MUL = 4;
+	public static final int DIV = 5;
+	public static final int LESS = 6;
+	public static final int GREATER = 7;
+	public static final int EQUAL = 8;
+	public static final int ADD_CONST = 9; // d a k, also x = x - k
+	public static final int JUMP = 10; // target
+	public static final int JUMP_FALSE = 11; // a target
+	public static final int JUMP_NOT_LESS = 12; // a b target
+	public static final int JUMP_NOT_GREATER = 13;
+	public static final int JUMP_NOT_EQUAL = 14;
+	public static final int JUMP_NOT_LESS_CONST = 15; // a k target
+	public static final int JUMP_NOT_GREATER_CONST = 16;
+	public static final int JUMP_NOT_EQUAL_CONST = 17;
+	public static final int CALL = 18; // d function firstArg
+	public static final int RETURN = 19; // a
+	public static final int TAIL_CALL = 20; // function firstArg
+
+	private static final String[] NAMES = { "const", "move", "add", "sub",
+			"mul", "div", "less", "greater", "equal", "add_const", "jump",
+			"jump_false", "jump_not_less", "jump_not_greater",
+			"jump_not_equal", "jump_not_less_const", "jump_not_greater_const",
+			"jump_not_equal_const", "call", "return", "tail_call" };
+
+	private static final int[] LENGTHS = { 3, 3, 4, 4, 4, 4, 4, 4, 4, 4, 2,
+			3, 4, 4, 4, 4, 4, 4, 4, 2, 3 };
+
+	public int[] code = new int[256];
+	public int codeLength = 0;
+
+	public double[] constants = new double[32];
+	public int constantCount = 0;
+
+	// entry point and register count of every function, -1 if not compiled
+	public int[] functionEntry = new int[8];
+	public int[] frameSize = new int[8];
+	public int[] paramCount = new int[8];
+	public int functionCount = 0;
+
+	public void emit(int op, int x, int y, int z) {
+		if (codeLength + 4 > code.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+		}
+		code[codeLength] = op;
+		code[codeLength + 1] = x;
+		code[codeLength + 2] = y;
+		code[codeLength + 3] = z;
+		codeLength += LENGTHS[op];
+	}
+
+	public int addConstant(double value) {
+		if (constantCount == constants.length) {
+			constants = Arrays.copyOf(constants, constantCount * 2);
+		}
+		constants[constantCount] = value;
+		constantCount++;
+		return constantCount - 1;
+	}
+
+	public void addFunctions(int count) {
+		if (count > functionEntry.length) {
+			int oldLength = functionEntry.length;
+			functionEntry = Arrays.copyOf(functionEntry,
+					Math.max(count, oldLength * 2));
+			frameSize = Arrays.copyOf(frameSize, functionEntry.length);
+			paramCount = Arrays.copyOf(paramCount, functionEntry.length);
+		}
+		Arrays.fill(functionEntry, functionCount, count, -1);
+		functionCount = count;
+	}
+
+	public void reset(int codeMark, int constantMark) {
+		// drop the code of a statement which already ran
+		codeLength = codeMark;
+		constantCount = constantMark;
+	}
+
+	public static int length(int op) {
+		return LENGTHS[op];
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int pc = 0; pc < codeLength; pc += LENGTHS[code[pc]]) {
+			for (int f = 0; f < functionCount; f++) {
+				if (functionEntry[f] == pc) {
+					sb.append("function ").append(f).append(":\n");
+				}
+			}
+			sb.append(pc).append('\t').append(NAMES[code[pc]]);
+			for (int i = 1; i < LENGTHS[code[pc]]; i++) {
+				sb.append(' ').append(code[pc + i]);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,355 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class RegisterCompiler {
+	private final Ast ast;
+	private final RegisterCode code = new RegisterCode();
+
+	// the registers above the variable slots hold temporary values
+	private int nextRegister;
+	private int maxRegister;
+
+	// jumps of conditions whose target is not known yet
+	private int[] jumps = new int[16];
+	private int jumpCount;
+
+	private int statementConstantMark;
+	private int statementCodeMark;
+
+	public RegisterCompiler(Ast ast) {
+		this.ast = ast;
+	}
+
+	public RegisterCode getCode() {
+		return code;
+	}
+
+	public int compileStatement(int node) {
+		// functions come first, so the code of the statement can be dropped
+		// after it ran
+		compileFunctions();
+
+		statementCodeMark = code.codeLength;
+		statementConstantMark = code.constantCount;
+		int entry = code.codeLength;
+		nextRegister = ast.rootSlotCount;
+		maxRegister = nextRegister;
+
+		int result = nextRegister++;
+		compileInto(node, result);
+		code.emit(RegisterCode.RETURN, result, 0, 0);
+
+		return entry;
+	}
+
+	public void dropStatement() {
+		// the code of a statement which already ran is not needed anymore
+		code.reset(statementCodeMark, statementConstantMark);
+	}
+
+	public int rootFrameSize() {
+		// registers of the main program for the last compiled statement
+		return maxRegister + 1;
+	}
+
+	private void compileFunctions() {
+		int first = code.functionCount;
+		code.addFunctions(ast.functionCount);
+
+		for (int function = first; function < ast.functionCount; function++) {
+			code.functionEntry[function] = code.codeLength;
+			code.paramCount[function] = ast.functionParamCount[function];
+
+			nextRegister = ast.functionSlotCount[function];
+			maxRegister = nextRegister;
+
+			int result = nextRegister++;
+			compileInto(ast.functionBody[function], result);
+			code.emit(RegisterCode.RETURN, result, 0, 0);
+
+			code.frameSize[function] = maxRegister + 1;
+		}
+	}
+
+	private int newRegister() {
+		int register = nextRegister++;
+		if (register > maxRegister) {
+			maxRegister = register;
+		}
+		return register;
+	}
+
+	private int operand(int node) {
+		// a variable is read in place, everything else in a new register
+		if (ast.kind[node] == Ast.VAR) {
+			return ast.c[node];
+		}
+		int register = newRegister();
+		compileInto(node, register);
+		return register;
+	}
+
+	private void compileInto(int node, int d) {
+		// the value of the node ends up in register d, d is written by the
+		// last instruction only
+		int mark = nextRegister;
+
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+			code.emit(RegisterCode.CONST, d, constant(ast.number(node)), 0);
+			break;
+		case Ast.VAR:
+			if (ast.c[node] != d) {
+				code.emit(RegisterCode.MOVE, d, ast.c[node], 0);
+			}
+			break;
+		case Ast.ASSIGN: {
+			int slot = ast.c[node];
+			int value = ast.b[node];
+			if (ast.kind[value] == Ast.IF || ast.kind[value] == Ast.WHILE
+					|| ast.kind[value] == Ast.BLOCK) {
+				// these write their register before they are done and may
+				// still read the variable, e.g. an inlined body which uses
+				// it as a parameter
+				int temp = newRegister();
+				compileInto(value, temp);
+				code.emit(RegisterCode.MOVE, slot, temp, 0);
+			} else {
+				compileInto(value, slot);
+			}
+			if (slot != d) {
+				code.emit(RegisterCode.MOVE, d, slot, 0);
+			}
+			break;
+		}
+		case Ast.ADD:
+		case Ast.SUB:
+			if (ast.kind[ast.b[node]] == Ast.NUMBER) {
+				// x + k and x - k, a - b is the same as a + -b
+				double k = ast.number(ast.b[node]);
+				int a = operand(ast.a[node]);
+				code.emit(RegisterCode.ADD_CONST, d, a,
+						constant(ast.kind[node] == Ast.ADD ? k : -k));
+			} else if (ast.kind[node] == Ast.ADD
+					&& ast.kind[ast.a[node]] == Ast.NUMBER) {
+				// k + x
+				int b = operand(ast.b[node]);
+				code.emit(RegisterCode.ADD_CONST, d, b,
+						constant(ast.number(ast.a[node])));
+			} else {
+				compileBinary(node, d);
+			}
+			break;
+		case Ast.MUL:
+		case Ast.DIV:
+		case Ast.LESS:
+		case Ast.GREATER:
+		case Ast.EQUAL:
+			compileBinary(node, d);
+			break;
+		case Ast.AND:
+		case Ast.OR: {
+			// the second operand runs only if the first does not decide
+			int jumps = compileJumpsIfFalse(node);
+			code.emit(RegisterCode.CONST, d, constant(1), 0);
+			int endJump = code.codeLength;
+			code.emit(RegisterCode.JUMP, -1, 0, 0);
+			setTargets(jumps, code.codeLength);
+			code.emit(RegisterCode.CONST, d, constant(0), 0);
+			setTarget(endJump, code.codeLength);
+			break;
+		}
+		case Ast.IF: {
+			// ifStat ::= if boolExpr {statlist} (else {statlist})?
+			int elseJumps = compileJumpsIfFalse(ast.a[node]);
+			compileInto(ast.b[node], d);
+			int endJump = code.codeLength;
+			code.emit(RegisterCode.JUMP, -1, 0, 0);
+
+			setTargets(elseJumps, code.codeLength);
+			if (ast.c[node] >= 0) {
+				compileInto(ast.c[node], d);
+			} else {
+				code.emit(RegisterCode.CONST, d, constant(0), 0);
+			}
+			setTarget(endJump, code.codeLength);
+			break;
+		}
+		case Ast.WHILE: {
+			// whileStat ::= while boolExpr {statlist}
+			code.emit(RegisterCode.CONST, d, constant(0), 0);
+			int start = code.codeLength;
+			int endJumps = compileJumpsIfFalse(ast.a[node]);
+			compileInto(ast.b[node], d);
+			code.emit(RegisterCode.JUMP, start, 0, 0);
+			setTargets(endJumps, code.codeLength);
+			break;
+		}
+		case Ast.BLOCK:
+			if (ast.b[node] == 0) {
+				code.emit(RegisterCode.CONST, d, constant(0), 0);
+			}
+			if (ast.b[node] > 1) {
+				// d may be a variable which the block reads, the values
+				// of the other statements are not kept
+				int scratch = newRegister();
+				for (int i = 0; i < ast.b[node] - 1; i++) {
+					compileInto(ast.child(node, i), scratch);
+				}
+			}
+			if (ast.b[node] > 0) {
+				compileInto(ast.child(node, ast.b[node] - 1), d);
+			}
+			break;
+		case Ast.CALL: {
+			// funcCall ::= name ( expression* ), the arguments are in
+			// consecutive registers
+			int first = nextRegister;
+			for (int i = 0; i < ast.c[node]; i++) {
+				newRegister();
+			}
+			for (int i = 0; i < ast.c[node]; i++) {
+				compileInto(ast.arg(node, i), first + i);
+			}
+			code.emit(RegisterCode.CALL, d, ast.a[node], first);
+			break;
+		}
+		case Ast.TAIL_CALL: {
+			// new arguments for the parameters, then back to the entry
+			int first = nextRegister;
+			for (int i = 0; i < ast.c[node]; i++) {
+				newRegister();
+			}
+			for (int i = 0; i < ast.c[node]; i++) {
+				compileInto(ast.arg(node, i), first + i);
+			}
+			code.emit(RegisterCode.TAIL_CALL, ast.a[node], first, 0);
+			break;
+		}
+		case Ast.FUNCTION:
+			code.emit(RegisterCode.CONST, d, constant(0), 0);
+			break;
+		default:
+			break;
+		}
+
+		nextRegister = mark;
+	}
+
+	private void compileBinary(int node, int d) {
+		int op;
+		switch (ast.kind[node]) {
+		case Ast.ADD:
+			op = RegisterCode.ADD;
+			break;
+		case Ast.SUB:
+			op = RegisterCode.SUB;
+			break;
+		case Ast.MUL:
+			op = RegisterCode.MUL;
+			break;
+		case Ast.DIV:
+			op = RegisterCode.DIV;
+			break;
+		case Ast.LESS:
+			op = RegisterCode.LESS;
+			break;
+		case Ast.GREATER:
+			op = RegisterCode.GREATER;
+			break;
+		default:
+			op = RegisterCode.EQUAL;
+			break;
+		}
+
+		int a = operand(ast.a[node]);
+		int b = operand(ast.b[node]);
+		code.emit(op, d, a, b);
+	}
+
+	private int compileJumpsIfFalse(int condition) {
+		// the jumps taken when the condition is 0 are kept from the returned
+		// mark on, their target is set with setTargets
+		int mark = jumpCount;
+		int kind = ast.kind[condition];
+
+		if (kind == Ast.AND) {
+			compileJumpsIfFalse(ast.a[condition]);
+			compileJumpsIfFalse(ast.b[condition]);
+			return mark;
+		}
+		if (kind == Ast.OR) {
+			// a true first operand jumps over the test of the second
+			int secondJumps = compileJumpsIfFalse(ast.a[condition]);
+			int trueJump = code.codeLength;
+			code.emit(RegisterCode.JUMP, -1, 0, 0);
+			setTargets(secondJumps, code.codeLength);
+			compileJumpsIfFalse(ast.b[condition]);
+			setTarget(trueJump, code.codeLength);
+			return mark;
+		}
+
+		addJump(compileJumpIfFalse(condition));
+		return mark;
+	}
+
+	private int compileJumpIfFalse(int condition) {
+		// returns the position of the jump, its target is set later
+		int mark = nextRegister;
+		int kind = ast.kind[condition];
+		int jump;
+
+		if (kind == Ast.LESS || kind == Ast.GREATER || kind == Ast.EQUAL) {
+			int a = operand(ast.a[condition]);
+			int right = ast.b[condition];
+
+			jump = code.codeLength;
+			if (ast.kind[right] == Ast.NUMBER) {
+				// compare with a constant and branch in one instruction
+				int op = kind == Ast.LESS ? RegisterCode.JUMP_NOT_LESS_CONST
+						: kind == Ast.GREATER ? RegisterCode.JUMP_NOT_GREATER_CONST
+								: RegisterCode.JUMP_NOT_EQUAL_CONST;
+				code.emit(op, a, constant(ast.number(right)), -1);
+			} else {
+				int b = operand(right);
+				jump = code.codeLength;
+				int op = kind == Ast.LESS ? RegisterCode.JUMP_NOT_LESS
+						: kind == Ast.GREATER ? RegisterCode.JUMP_NOT_GREATER
+								: RegisterCode.JUMP_NOT_EQUAL;
+				code.emit(op, a, b, -1);
+			}
+		} else {
+			int a = operand(condition);
+			jump = code.codeLength;
+			code.emit(RegisterCode.JUMP_FALSE, a, -1, 0);
+		}
+
+		nextRegister = mark;
+		return jump;
+	}
+
+	private void addJump(int jump) {
+		if (jumpCount == jumps.length) {
+			jumps = Arrays.copyOf(jumps, jumpCount * 2);
+		}
+		jumps[jumpCount] = jump;
+		jumpCount++;
+	}
+
+	private void setTargets(int mark, int target) {
+		for (int i = mark; i < jumpCount; i++) {
+			setTarget(jumps[i], target);
+		}
+		jumpCount = mark;
+	}
+
+	private void setTarget(int jump, int target) {
+		// the target is the last operand of every jump
+		code.code[jump + RegisterCode.length(code.code[jump]) - 1] = target;
+	}
+
+	private int constant(double value) {
+		return code.addConstant(value);
+	}
+}
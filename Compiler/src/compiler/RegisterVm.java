@@ -0,0 +1,185 @@
+package compiler;
+
+import java.util.Arrays;
+
+public class RegisterVm {
+	// every call keeps return address, frame and result register of the
+	// caller, the memoized function or -1 and the first argument register
+	// in front of its frame
+	private static final int CALL_RECORD = 5;
+
+	public double run(RegisterCode program, int entry, FrameStack frames,
+			int frameBase, MemoCache[] memoCaches) {
+		return run(program, entry, frames, frameBase, memoCaches, null);
+	}
+
+	public double run(RegisterCode program, int entry, FrameStack frames,
+			int frameBase, MemoCache[] memoCaches, ExecutionBudget budget) {
+		// with a budget, backward jumps, calls and tail calls are counted
+		int[] code = program.code;
+		double[] constants = program.constants;
+		double[] r = frames.slots;
+		int base = frameBase;
+		int pc = entry;
+
+		while (true) {
+			switch (code[pc]) {
+			case RegisterCode.CONST:
+				r[base + code[pc + 1]] = constants[code[pc + 2]];
+				pc += 3;
+				break;
+			case RegisterCode.MOVE:
+				r[base + code[pc + 1]] = r[base + code[pc + 2]];
+				pc += 3;
+				break;
+			case RegisterCode.ADD:
+				r[base + code[pc + 1]] = r[base + code[pc + 2]]
+						+ r[base + code[pc + 3]];
+				pc += 4;
+				break;
+			case RegisterCode.SUB:
+				r[base + code[pc + 1]] = r[base + code[pc + 2]]
+						- r[base + code[pc + 3]];
+				pc += 4;
+				break;
+			case RegisterCode.MUL:
+				r[base + code[pc + 1]] = r[base + code[pc + 2]]
+						* r[base + code[pc + 3]];
+				pc += 4;
+				break;
+			case RegisterCode.DIV:
+				r[base + code[pc + 1]] = r[base + code[pc + 2]]
+						/ r[base + code[pc + 3]];
+				pc += 4;
+				break;
+			case RegisterCode.LESS:
+				r[base + code[pc + 1]] = r[base + code[pc + 2]] < r[base
+						+ code[pc + 3]] ? 1 : 0;
+				pc += 4;
+				break;
+			case RegisterCode.GREATER:
+				r[base + code[pc + 1]] = r[base + code[pc + 2]] > r[base
+						+ code[pc + 3]] ? 1 : 0;
+				pc += 4;
+				break;
+			case RegisterCode.EQUAL:
+				r[base + code[pc + 1]] = r[base + code[pc + 2]] == r[base
+						+ code[pc + 3]] ? 1 : 0;
+				pc += 4;
+				break;
+			case RegisterCode.ADD_CONST:
+				r[base + code[pc + 1]] = r[base + code[pc + 2]]
+						+ constants[code[pc + 3]];
+				pc += 4;
+				break;
+			case RegisterCode.JUMP:
+				if (budget != null && code[pc + 1] < pc) {
+					budget.tick();
+				}
+				pc = code[pc + 1];
+				break;
+			case RegisterCode.JUMP_FALSE:
+				pc = r[base + code[pc + 1]] == 0 ? code[pc + 2] : pc + 3;
+				break;
+			case RegisterCode.JUMP_NOT_LESS:
+				pc = r[base + code[pc + 1]] < r[base + code[pc + 2]] ? pc + 4
+						: code[pc + 3];
+				break;
+			case RegisterCode.JUMP_NOT_GREATER:
+				pc = r[base + code[pc + 1]] > r[base + code[pc + 2]] ? pc + 4
+						: code[pc + 3];
+				break;
+			case RegisterCode.JUMP_NOT_EQUAL:
+				pc = r[base + code[pc + 1]] == r[base + code[pc + 2]] ? pc + 4
+						: code[pc + 3];
+				break;
+			case RegisterCode.JUMP_NOT_LESS_CONST:
+				pc = r[base + code[pc + 1]] < constants[code[pc + 2]] ? pc + 4
+						: code[pc + 3];
+				break;
+			case RegisterCode.JUMP_NOT_GREATER_CONST:
+				pc = r[base + code[pc + 1]] > constants[code[pc + 2]] ? pc + 4
+						: code[pc + 3];
+				break;
+			case RegisterCode.JUMP_NOT_EQUAL_CONST:
+				pc = r[base + code[pc + 1]] == constants[code[pc + 2]] ? pc + 4
+						: code[pc + 3];
+				break;
+			case RegisterCode.CALL: {
+				int function = code[pc + 2];
+				int first = base + code[pc + 3];
+
+				if (budget != null) {
+					budget.enter();
+				}
+
+				MemoCache cache = memoCaches[function];
+				if (cache != null) {
+					int cached = cache.find(r, first);
+					if (cached >= 0) {
+						if (budget != null) {
+							budget.exit();
+						}
+						r[base + code[pc + 1]] = cache.value(cached);
+						pc += 4;
+						break;
+					}
+				}
+
+				int record = frames.push(CALL_RECORD
+						+ program.frameSize[function]);
+				r = frames.slots;
+				r[record] = pc + 4;
+				r[record + 1] = base;
+				r[record + 2] = code[pc + 1];
+				// the argument registers of the caller stay untouched
+				r[record + 3] = cache != null ? function : -1;
+				r[record + 4] = first;
+
+				// the arguments are the first registers of the new frame
+				base = record + CALL_RECORD;
+				System.arraycopy(r, first, r, base,
+						program.paramCount[function]);
+				pc = program.functionEntry[function];
+				break;
+			}
+			case RegisterCode.TAIL_CALL: {
+				// reuse the frame, the variables start with 0 again
+				if (budget != null) {
+					budget.tick();
+				}
+				int function = code[pc + 1];
+				int paramCount = program.paramCount[function];
+				System.arraycopy(r, base + code[pc + 2], r, base, paramCount);
+				Arrays.fill(r, base + paramCount, base
+						+ program.frameSize[function], 0);
+				pc = program.functionEntry[function];
+				break;
+			}
+			case RegisterCode.RETURN: {
+				double result = r[base + code[pc + 1]];
+				if (base == frameBase) {
+					return result;
+				}
+
+				if (budget != null) {
+					budget.exit();
+				}
+				int record = base - CALL_RECORD;
+				pc = (int) r[record];
+				base = (int) r[record + 1];
+				r[base + (int) r[record + 2]] = result;
+				if (r[record + 3] >= 0) {
+					memoCaches[(int) r[record + 3]].put(r,
+							(int) r[record + 4], result);
+				}
+				frames.pop(record);
+				break;
+			}
+			default:
+				throw new IllegalStateException("Unknown opcode " + code[pc]
+						+ " at " + pc);
+			}
+		}
+	}
+}
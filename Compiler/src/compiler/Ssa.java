@@ -0,0 +1,584 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Ssa {
+	// the SSA form of a tree with blocks, phis and the control flow graph;
+	// passes such as ValueNumbering analyse it and rewrite the tree through
+	// the node of every instruction, the PassManager dumps it
+	// instructions, each one defines the value with its own number
+	public static final byte CONST = 0; // number
+	public static final byte PARAM = 1; // a = index
+	public static final byte PHI = 2; // operands, one per predecessor
+	public static final byte ADD = 3; // a = left, b = right
+	public static final byte SUB = 4;
+	public static final byte MUL = 5;
+	public static final byte DIV = 6;
+	public static final byte LESS = 7;
+	public static final byte GREATER = 8;
+	public static final byte EQUAL = 9;
+	public static final byte CALL = 10; // a = function, operands = args
+
+	// the last instruction of every block, they define no value
+	public static final byte JUMP = 11; // a = block
+	public static final byte BRANCH = 12; // a = condition, b = block if not 0, c = block if 0
+	public static final byte RETURN = 13; // a = value
+
+	// the types of values, a boolean is a double which is 0 or 1
+	public static final byte DOUBLE = 0;
+	public static final byte BOOLEAN = 1;
+	public static final byte NONE = 2;
+
+	private static final String[] OP_NAMES = { "const", "param", "phi",
+			"add", "sub", "mul", "div", "less", "greater", "equal", "call",
+			"jump", "branch", "return" };
+	private static final String[] TYPE_NAMES = { "double", "boolean", "" };
+
+	public static class Block {
+		public final int id;
+		public final List<Integer> instructions = new ArrayList<Integer>();
+		public final List<Block> predecessors = new ArrayList<Block>();
+		public final List<Block> successors = new ArrayList<Block>();
+
+		// the immediate dominator, null for the entry block, and the blocks
+		// this one is the immediate dominator of
+		public Block dominator;
+		public final List<Block> dominated = new ArrayList<Block>();
+
+		// the value of every variable at the end of the block while the
+		// form is built; a block is sealed once all its predecessors are
+		// known
+		private final Map<Integer, Integer> definitions = new HashMap<Integer, Integer>();
+		private final Map<Integer, Integer> incompletePhis = new HashMap<Integer, Integer>();
+		private boolean sealed;
+
+		Block(int id) {
+			this.id = id;
+		}
+	}
+
+	// one entry per instruction, stored in parallel arrays
+	public byte[] op = new byte[64];
+	public byte[] type = new byte[64];
+	public int[] a = new int[64];
+	public int[] b = new int[64];
+	public int[] c = new int[64];
+	public double[] number = new double[64];
+	public int[][] operands = new int[64][];
+	// the tree node of an operator or call, -1 for the other instructions
+	public int[] node = new int[64];
+	public int size = 0;
+
+	// the entry block comes first
+	public final List<Block> blocks = new ArrayList<Block>();
+
+	private final Ast ast;
+	private final int function;
+	private final int paramCount;
+	private Block current;
+	private int prologue;
+
+	// a phi which turned out to be another value
+	private int[] forward = new int[64];
+
+	private Ssa(Ast ast, int function) {
+		this.ast = ast;
+		this.function = function;
+		// the top level reads its variables from outside until it assigns
+		// them, e.g. the inputs of a Program
+		this.paramCount = function < 0 ? ast.rootSlotCount
+				: ast.functionParamCount[function];
+	}
+
+	public static Ssa build(Ast ast, int function) {
+		// the form of a function body, of the top level for -1; variables
+		// which are not assigned yet are the parameters or 0, the top level
+		// has no 0
+		Ssa ssa = new Ssa(ast, function);
+		Block entry = ssa.newBlock();
+		entry.sealed = true;
+		ssa.current = entry;
+		int body = function < 0 ? ast.root : ast.functionBody[function];
+		int value = ssa.value(body);
+		ssa.terminate(RETURN, value, 0, 0);
+		ssa.removeTrivialPhis();
+		ssa.findDominators();
+		return ssa;
+	}
+
+	public static String dump(Ast ast) {
+		// every function and the top level
+		StringBuilder sb = new StringBuilder();
+		for (int function = 0; function < ast.functionCount; function++) {
+			if (ast.functionBody[function] >= 0) {
+				sb.append(build(ast, function));
+			}
+		}
+		if (ast.root >= 0) {
+			sb.append(build(ast, -1));
+		}
+		return sb.toString();
+	}
+
+	private int value(int node) {
+		switch (ast.kind[node]) {
+		case Ast.NUMBER:
+			return constant(ast.number(node));
+		case Ast.VAR:
+			return read(ast.c[node], current);
+		case Ast.ASSIGN: {
+			int value = value(ast.b[node]);
+			write(ast.c[node], current, value);
+			return value;
+		}
+		case Ast.IF: {
+			// the value is the one of the branch which ran, 0 without else
+			Block then = newBlock();
+			Block otherwise = newBlock();
+			Block join = newBlock();
+			branch(ast.a[node], then, otherwise);
+			seal(then);
+			seal(otherwise);
+			current = then;
+			int thenValue = value(ast.b[node]);
+			terminate(JUMP, join.id, 0, 0);
+			current = otherwise;
+			int elseValue = ast.c[node] >= 0 ? value(ast.c[node])
+					: constant(0);
+			terminate(JUMP, join.id, 0, 0);
+			seal(join);
+			current = join;
+			return phi(join, DOUBLE, thenValue, elseValue);
+		}
+		case Ast.WHILE: {
+			// the value is the one of the last pass, 0 if the body never
+			// runs
+			Block header = newBlock();
+			Block body = newBlock();
+			Block exit = newBlock();
+			int zero = constant(0);
+			terminate(JUMP, header.id, 0, 0);
+			current = header;
+			branch(ast.a[node], body, exit);
+			seal(body);
+			current = body;
+			int bodyValue = value(ast.b[node]);
+			terminate(JUMP, header.id, 0, 0);
+			seal(header);
+			int value = phi(header, DOUBLE, zero, bodyValue);
+			seal(exit);
+			current = exit;
+			return value;
+		}
+		case Ast.BLOCK: {
+			int value = -1;
+			for (int i = 0; i < ast.b[node]; i++) {
+				value = value(ast.child(node, i));
+			}
+			return value >= 0 ? value : constant(0);
+		}
+		case Ast.CALL:
+		case Ast.TAIL_CALL: {
+			int[] args = new int[ast.c[node]];
+			for (int i = 0; i < args.length; i++) {
+				args[i] = value(ast.arg(node, i));
+			}
+			int call = emit(CALL, DOUBLE, ast.a[node], 0, 0);
+			operands[call] = args;
+			this.node[call] = node;
+			return call;
+		}
+		case Ast.FUNCTION:
+			return constant(0);
+		case Ast.AND:
+		case Ast.OR: {
+			Block yes = newBlock();
+			Block no = newBlock();
+			Block join = newBlock();
+			branch(node, yes, no);
+			seal(yes);
+			seal(no);
+			current = yes;
+			int one = constant(1);
+			terminate(JUMP, join.id, 0, 0);
+			current = no;
+			int zero = constant(0);
+			terminate(JUMP, join.id, 0, 0);
+			seal(join);
+			current = join;
+			return phi(join, BOOLEAN, one, zero);
+		}
+		default: {
+			// the operators have the same order as in the tree
+			int left = value(ast.a[node]);
+			int right = value(ast.b[node]);
+			byte kind = ast.kind[node];
+			int value = emit((byte) (kind - Ast.ADD + ADD),
+					kind >= Ast.LESS ? BOOLEAN : DOUBLE, left, right, 0);
+			this.node[value] = node;
+			return value;
+		}
+		}
+	}
+
+	private void branch(int condition, Block yes, Block no) {
+		// the second operand of & and | gets a block of its own, it runs
+		// only if the first does not decide
+		int kind = ast.kind[condition];
+		if (kind == Ast.AND || kind == Ast.OR) {
+			Block second = newBlock();
+			if (kind == Ast.AND) {
+				branch(ast.a[condition], second, no);
+			} else {
+				branch(ast.a[condition], yes, second);
+			}
+			seal(second);
+			current = second;
+			branch(ast.b[condition], yes, no);
+			return;
+		}
+		terminate(BRANCH, value(condition), yes.id, no.id);
+	}
+
+	private int read(int slot, Block block) {
+		Integer defined = block.definitions.get(slot);
+		if (defined != null) {
+			return resolve(defined);
+		}
+		int value;
+		if (!block.sealed) {
+			// the operands follow when the block is sealed
+			value = phi(block, DOUBLE);
+			block.incompletePhis.put(slot, value);
+		} else if (block.predecessors.isEmpty()) {
+			// the parameters and 0 for the other variables, in front of
+			// the entry block
+			value = add(slot < paramCount ? PARAM : CONST, DOUBLE, slot, 0, 0);
+			block.instructions.add(prologue++, value);
+		} else if (block.predecessors.size() == 1) {
+			value = read(slot, block.predecessors.get(0));
+		} else {
+			// the phi is defined first, a loop reads it back
+			value = phi(block, DOUBLE);
+			write(slot, block, value);
+			addPhiOperands(slot, value, block);
+		}
+		write(slot, block, value);
+		return value;
+	}
+
+	private void write(int slot, Block block, int value) {
+		block.definitions.put(slot, value);
+	}
+
+	private void seal(Block block) {
+		for (Map.Entry<Integer, Integer> phi : block.incompletePhis.entrySet()) {
+			addPhiOperands(phi.getKey(), phi.getValue(), block);
+		}
+		block.incompletePhis.clear();
+		block.sealed = true;
+	}
+
+	private void addPhiOperands(int slot, int phi, Block block) {
+		int[] values = new int[block.predecessors.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = read(slot, block.predecessors.get(i));
+		}
+		operands[phi] = values;
+	}
+
+	private void removeTrivialPhis() {
+		// a phi whose operands are itself or one other value is that value;
+		// repeated until no phi changes, then all operands are replaced
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int value = 0; value < size; value++) {
+				if (op[value] != PHI || forward[value] >= 0) {
+					continue;
+				}
+				int same = -1;
+				boolean trivial = true;
+				for (int operand : operands[value]) {
+					int resolved = resolve(operand);
+					if (resolved == value || resolved == same) {
+						continue;
+					}
+					if (same >= 0) {
+						trivial = false;
+						break;
+					}
+					same = resolved;
+				}
+				if (trivial && same >= 0) {
+					forward[value] = same;
+					changed = true;
+				}
+			}
+		}
+
+		for (Block block : blocks) {
+			for (int i = block.instructions.size() - 1; i >= 0; i--) {
+				if (forward[block.instructions.get(i)] >= 0) {
+					block.instructions.remove(i);
+				}
+			}
+		}
+		for (int value = 0; value < size; value++) {
+			switch (op[value]) {
+			case PHI:
+			case CALL:
+				for (int i = 0; i < operands[value].length; i++) {
+					operands[value][i] = resolve(operands[value][i]);
+				}
+				break;
+			case BRANCH:
+			case RETURN:
+				a[value] = resolve(a[value]);
+				break;
+			case CONST:
+			case PARAM:
+			case JUMP:
+				break;
+			default:
+				a[value] = resolve(a[value]);
+				b[value] = resolve(b[value]);
+				break;
+			}
+		}
+	}
+
+	private void findDominators() {
+		// iterated over the blocks in reverse postorder until nothing
+		// changes, see Cooper, Harvey and Kennedy, "A Simple, Fast
+		// Dominance Algorithm"
+		List<Block> order = new ArrayList<Block>();
+		postorder(blocks.get(0), new boolean[blocks.size()], order);
+		Collections.reverse(order);
+		int[] index = new int[blocks.size()];
+		for (int i = 0; i < order.size(); i++) {
+			index[order.get(i).id] = i;
+		}
+
+		Block entry = order.get(0);
+		entry.dominator = entry;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 1; i < order.size(); i++) {
+				Block block = order.get(i);
+				Block dominator = null;
+				for (Block predecessor : block.predecessors) {
+					if (predecessor.dominator == null) {
+						continue;
+					}
+					dominator = dominator == null ? predecessor : intersect(
+							predecessor, dominator, index);
+				}
+				if (block.dominator != dominator) {
+					block.dominator = dominator;
+					changed = true;
+				}
+			}
+		}
+
+		entry.dominator = null;
+		for (int i = 1; i < order.size(); i++) {
+			Block block = order.get(i);
+			block.dominator.dominated.add(block);
+		}
+	}
+
+	private static Block intersect(Block b1, Block b2, int[] index) {
+		while (b1 != b2) {
+			while (index[b1.id] > index[b2.id]) {
+				b1 = b1.dominator;
+			}
+			while (index[b2.id] > index[b1.id]) {
+				b2 = b2.dominator;
+			}
+		}
+		return b1;
+	}
+
+	private static void postorder(Block entry, boolean[] visited,
+			List<Block> order) {
+		// with a stack of its own, a long script has many blocks in a row
+		List<Block> stack = new ArrayList<Block>();
+		List<Integer> next = new ArrayList<Integer>();
+		stack.add(entry);
+		next.add(0);
+		visited[entry.id] = true;
+		while (!stack.isEmpty()) {
+			int top = stack.size() - 1;
+			Block block = stack.get(top);
+			int i = next.get(top);
+			if (i == block.successors.size()) {
+				order.add(block);
+				stack.remove(top);
+				next.remove(top);
+				continue;
+			}
+			next.set(top, i + 1);
+			Block successor = block.successors.get(i);
+			if (!visited[successor.id]) {
+				visited[successor.id] = true;
+				stack.add(successor);
+				next.add(0);
+			}
+		}
+	}
+
+	private int resolve(int value) {
+		while (forward[value] >= 0) {
+			value = forward[value];
+		}
+		return value;
+	}
+
+	private Block newBlock() {
+		Block block = new Block(blocks.size());
+		blocks.add(block);
+		return block;
+	}
+
+	private int constant(double value) {
+		int constant = emit(CONST, DOUBLE, 0, 0, 0);
+		number[constant] = value;
+		return constant;
+	}
+
+	private int phi(Block block, byte phiType, int... values) {
+		// phis come first in their block
+		int phi = add(PHI, phiType, 0, 0, 0);
+		block.instructions.add(0, phi);
+		operands[phi] = values;
+		return phi;
+	}
+
+	private void terminate(byte terminator, int x, int y, int z) {
+		emit(terminator, NONE, x, y, z);
+		if (terminator == JUMP || terminator == BRANCH) {
+			link(current, blocks.get(terminator == JUMP ? x : y));
+		}
+		if (terminator == BRANCH) {
+			link(current, blocks.get(z));
+		}
+	}
+
+	private void link(Block from, Block to) {
+		from.successors.add(to);
+		to.predecessors.add(from);
+	}
+
+	private int emit(byte instruction, byte valueType, int x, int y, int z) {
+		// appended to the current block
+		int value = add(instruction, valueType, x, y, z);
+		current.instructions.add(value);
+		return value;
+	}
+
+	private int add(byte instruction, byte valueType, int x, int y, int z) {
+		if (size == op.length) {
+			int newLength = size * 2;
+			op = Arrays.copyOf(op, newLength);
+			type = Arrays.copyOf(type, newLength);
+			a = Arrays.copyOf(a, newLength);
+			b = Arrays.copyOf(b, newLength);
+			c = Arrays.copyOf(c, newLength);
+			number = Arrays.copyOf(number, newLength);
+			operands = Arrays.copyOf(operands, newLength);
+			node = Arrays.copyOf(node, newLength);
+			forward = Arrays.copyOf(forward, newLength);
+		}
+		op[size] = instruction;
+		type[size] = valueType;
+		a[size] = x;
+		b[size] = y;
+		c[size] = z;
+		forward[size] = -1;
+		node[size] = -1;
+		number[size] = 0;
+		size++;
+		return size - 1;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		if (function < 0) {
+			sb.append("main\n");
+		} else {
+			sb.append("function ").append(ast.functionName(function))
+					.append(" (");
+			for (int i = 0; i < paramCount; i++) {
+				sb.append(i > 0 ? " " : "").append(
+						ast.names.name(ast.param(function, i)));
+			}
+			sb.append(")\n");
+		}
+		for (Block block : blocks) {
+			sb.append('b').append(block.id).append(':');
+			if (!block.predecessors.isEmpty()) {
+				sb.append(" <-");
+				for (Block predecessor : block.predecessors) {
+					sb.append(" b").append(predecessor.id);
+				}
+			}
+			sb.append('\n');
+			for (int instruction : block.instructions) {
+				sb.append("  ");
+				append(sb, instruction, block);
+				sb.append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	private void append(StringBuilder sb, int instruction, Block block) {
+		if (type[instruction] != NONE) {
+			sb.append('v').append(instruction).append(':')
+					.append(TYPE_NAMES[type[instruction]]).append(" = ");
+		}
+		sb.append(OP_NAMES[op[instruction]]);
+		switch (op[instruction]) {
+		case CONST:
+			sb.append(' ').append(number[instruction]);
+			break;
+		case PARAM:
+			sb.append(' ').append(a[instruction]);
+			break;
+		case PHI:
+			for (int i = 0; i < operands[instruction].length; i++) {
+				sb.append(i > 0 ? "," : "").append(" v")
+						.append(operands[instruction][i]).append(" b")
+						.append(block.predecessors.get(i).id);
+			}
+			break;
+		case CALL:
+			sb.append(' ').append(ast.functionName(a[instruction]));
+			for (int operand : operands[instruction]) {
+				sb.append(" v").append(operand);
+			}
+			break;
+		case JUMP:
+			sb.append(" b").append(a[instruction]);
+			break;
+		case BRANCH:
+			sb.append(" v").append(a[instruction]).append(" b")
+					.append(b[instruction]).append(" b").append(c[instruction]);
+			break;
+		case RETURN:
+			sb.append(" v").append(a[instruction]);
+			break;
+		default:
+			sb.append(" v").append(a[instruction]).append(" v")
+					.append(b[instruction]);
+			break;
+		}
+	}
+}
@@ -0,0 +1,6 @@
+package compiler;
+
+public interface StatementListener {
+	// called after every top level statement of a streamed script
+	void statementExecuted(int sourcePos, double result);
+}
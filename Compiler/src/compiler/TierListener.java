@@ -0,0 +1,10 @@
+package compiler;
+
+public interface TierListener {
+	// called by the interpreting thread when a function crosses a
+	// threshold of the TieredCompiler
+	void functionHot(String function, int calls, int backEdges);
+
+	// called by the compiler thread once later calls run the compiled code
+	void functionCompiled(String function, long compileNanos);
+}
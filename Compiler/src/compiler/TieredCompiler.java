@@ -0,0 +1,160 @@
+package compiler;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TieredCompiler {
+	// a function is compiled after this many calls or loop passes
+	public static final int DEFAULT_CALL_THRESHOLD = 1000;
+	public static final int DEFAULT_BACK_EDGE_THRESHOLD = 10000;
+
+	// one compiler thread for all interpreters, it does not keep the JVM
+	// alive
+	private static final ExecutorService COMPILER_THREAD = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "TieredCompiler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	// runs a compilation on the interpreting thread
+	private static final Executor SAME_THREAD = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static final AtomicInteger runningNumber = new AtomicInteger();
+
+	private final Ast ast;
+	private final int callThreshold;
+	private final int backEdgeThreshold;
+	private final Executor executor;
+	private final TierListener listener;
+	private final ExecutionBudget budget;
+
+	// counted by the interpreting thread only
+	private int[] calls = new int[0];
+	private int[] backEdges = new int[0];
+	private boolean[] queued = new boolean[0];
+
+	// replaced as a whole when a function is compiled, so a call sees the
+	// interpreted or the compiled function, never a half built table
+	private volatile CompiledFunction[] compiled = new CompiledFunction[0];
+
+	public TieredCompiler(Ast ast, int callThreshold, int backEdgeThreshold,
+			boolean background, TierListener listener, ExecutionBudget budget) {
+		this.ast = ast;
+		this.callThreshold = callThreshold;
+		this.backEdgeThreshold = backEdgeThreshold;
+		this.executor = background ? COMPILER_THREAD : SAME_THREAD;
+		this.listener = listener;
+		this.budget = budget;
+	}
+
+	public CompiledFunction compiled(int function) {
+		CompiledFunction[] table = compiled;
+		return function < table.length ? table[function] : null;
+	}
+
+	public void call(int function, MemoCache[] memoCaches) {
+		ensureCounters(function);
+		if (++calls[function] == callThreshold) {
+			hot(function, memoCaches);
+		}
+	}
+
+	public void backEdge(int function, MemoCache[] memoCaches) {
+		// loops of the top level run once, they are not compiled
+		if (function < 0) {
+			return;
+		}
+		ensureCounters(function);
+		if (++backEdges[function] == backEdgeThreshold) {
+			hot(function, memoCaches);
+		}
+	}
+
+	private void ensureCounters(int function) {
+		if (function >= calls.length) {
+			int length = Math.max(function + 1, calls.length * 2);
+			calls = Arrays.copyOf(calls, length);
+			backEdges = Arrays.copyOf(backEdges, length);
+			queued = Arrays.copyOf(queued, length);
+		}
+	}
+
+	private void hot(final int function, final MemoCache[] memoCaches) {
+		if (queued[function]) {
+			return;
+		}
+		queued[function] = true;
+
+		final String name = ast.functionName(function);
+		if (listener != null) {
+			listener.functionHot(name, calls[function], backEdges[function]);
+		}
+
+		// the parser goes on with the tree while the compiler runs
+		final Ast snapshot = ast.copy();
+		executor.execute(new Runnable() {
+			public void run() {
+				compile(snapshot, function, name, memoCaches);
+			}
+		});
+	}
+
+	private void compile(Ast snapshot, int function, String name,
+			MemoCache[] memoCaches) {
+		long start = System.nanoTime();
+		String className = "Tier" + runningNumber.incrementAndGet();
+
+		CompiledFunction code;
+		try {
+			Compiler compiler = new Compiler();
+			compiler.setBudgetChecks(budget != null);
+			byte[] bytes = compiler.compileFunction(snapshot, function,
+					memoCaches, className);
+			Class<?> clazz = new ByteClassLoader().define(className, bytes);
+			clazz.getField("memo").set(null, memoCaches);
+			if (budget != null) {
+				clazz.getField("budget").set(null, budget);
+			}
+			code = (CompiledFunction) clazz.getDeclaredConstructor()
+					.newInstance();
+		} catch (Exception e) {
+			// the function stays interpreted
+			System.err.println("Could not compile function " + name + ": "
+					+ e);
+			return;
+		}
+
+		synchronized (this) {
+			CompiledFunction[] table = Arrays.copyOf(compiled,
+					Math.max(compiled.length, function + 1));
+			table[function] = code;
+			compiled = table;
+		}
+
+		if (listener != null) {
+			listener.functionCompiled(name, System.nanoTime() - start);
+		}
+	}
+
+	private static class ByteClassLoader extends ClassLoader {
+		// generated classes are loaded from memory, nothing goes to bin/
+		ByteClassLoader() {
+			super(TieredCompiler.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -2,13 +2,25 @@ package compiler;
 
 public class Token {
 
+	// kinds which are not an operator char
+	public static final char END = Character.MIN_VALUE;
+	public static final char NUMBER = '9';
+	public static final char NAME = 'v';
+
 	public char kind;
-	
-	public StringBuilder text = new StringBuilder();
-	
+
+	// text span in the source, no String is built per token
+	public int start;
+
+	public int length;
+
 	public double value;
-	
+
+	// interned id of a name or keyword, -1 for all other kinds
+	public int id = -1;
+
 	public String toString(){
-		return "text: " + text.toString() + " kind: " + kind + " value: " + value;
+		return "start: " + start + " length: " + length + " kind: " + kind
+				+ " value: " + value + " id: " + id;
 	}
 }
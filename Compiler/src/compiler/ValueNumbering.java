@@ -0,0 +1,203 @@
+package compiler;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ValueNumbering {
+	// equal values are found on the SSA form: an operator or a pure call
+	// whose block is dominated by an equal one reads a new variable, which
+	// the first one assigns where it is computed
+
+	private final Ast ast;
+	private final boolean[] pure;
+	private int replaced;
+
+	// the frame of the function being rewritten, -1 for the top level
+	private int function;
+	private int slotCount;
+
+	private Ssa ssa;
+	// the first of the equal instructions, for every instruction
+	private int[] number;
+	private final Map<String, Integer> available = new HashMap<String, Integer>();
+	private final List<Integer> redundant = new ArrayList<Integer>();
+
+	public ValueNumbering(Ast ast) {
+		this.ast = ast;
+		this.pure = Purity.pureFunctions(ast);
+	}
+
+	public static int eliminate(Ast ast) {
+		// rewrites the tree in place, best after the ConstantFolder;
+		// returns the number of expressions which read a variable instead
+		return new ValueNumbering(ast).eliminateProgram();
+	}
+
+	public int eliminateProgram() {
+		for (function = 0; function < ast.functionCount; function++) {
+			if (ast.functionBody[function] >= 0) {
+				slotCount = ast.functionSlotCount[function];
+				eliminateFunction();
+				ast.functionSlotCount[function] = slotCount;
+			}
+		}
+		if (ast.root >= 0) {
+			function = -1;
+			slotCount = ast.rootSlotCount;
+			eliminateFunction();
+			ast.rootSlotCount = slotCount;
+		}
+		return replaced;
+	}
+
+	private void eliminateFunction() {
+		ssa = Ssa.build(ast, function);
+		number = new int[ssa.size];
+		available.clear();
+		redundant.clear();
+		numberBlocks();
+		rewrite();
+	}
+
+	private void numberBlocks() {
+		// the dominator tree is walked depth first; the values of a block
+		// are known in the blocks it dominates and forgotten after them
+		List<Ssa.Block> stack = new ArrayList<Ssa.Block>();
+		List<List<String>> added = new ArrayList<List<String>>();
+		stack.add(ssa.blocks.get(0));
+		while (!stack.isEmpty()) {
+			Ssa.Block block = stack.remove(stack.size() - 1);
+			if (block == null) {
+				for (String key : added.remove(added.size() - 1)) {
+					available.remove(key);
+				}
+				continue;
+			}
+			added.add(numberBlock(block));
+			stack.add(null);
+			for (int i = block.dominated.size() - 1; i >= 0; i--) {
+				stack.add(block.dominated.get(i));
+			}
+		}
+	}
+
+	private List<String> numberBlock(Ssa.Block block) {
+		List<String> added = new ArrayList<String>();
+		for (int value : block.instructions) {
+			number[value] = value;
+			String key = key(value);
+			if (key == null) {
+				continue;
+			}
+			Integer first = available.get(key);
+			if (first == null) {
+				available.put(key, value);
+				added.add(key);
+			} else {
+				number[value] = first;
+				if (ssa.node[value] >= 0) {
+					redundant.add(value);
+				}
+			}
+		}
+		return added;
+	}
+
+	private String key(int value) {
+		// equal keys give equal values; + * and = do not depend on the
+		// order of their operands
+		switch (ssa.op[value]) {
+		case Ssa.CONST:
+			return "#"
+					+ Long.toHexString(Double
+							.doubleToRawLongBits(ssa.number[value]));
+		case Ssa.ADD:
+		case Ssa.SUB:
+		case Ssa.MUL:
+		case Ssa.DIV:
+		case Ssa.LESS:
+		case Ssa.GREATER:
+		case Ssa.EQUAL: {
+			int left = number[ssa.a[value]];
+			int right = number[ssa.b[value]];
+			boolean commutative = ssa.op[value] == Ssa.ADD
+					|| ssa.op[value] == Ssa.MUL || ssa.op[value] == Ssa.EQUAL;
+			if (commutative && left > right) {
+				int swap = left;
+				left = right;
+				right = swap;
+			}
+			return "(" + ssa.op[value] + " " + left + " " + right + ")";
+		}
+		case Ssa.CALL: {
+			// a tail call is the last thing its function does
+			int node = ssa.node[value];
+			if (!pure[ssa.a[value]] || ast.kind[node] == Ast.TAIL_CALL) {
+				return null;
+			}
+			StringBuilder sb = new StringBuilder();
+			sb.append('f').append(ssa.a[value]).append('(');
+			for (int operand : ssa.operands[value]) {
+				sb.append(number[operand]).append(' ');
+			}
+			return sb.append(')').toString();
+		}
+		default:
+			// parameters and phis are values of their own
+			return null;
+		}
+	}
+
+	private void rewrite() {
+		// outer expressions come after their operands, so they are
+		// replaced first and the operands go with them
+		Collections.sort(redundant, Collections.reverseOrder());
+		BitSet removed = new BitSet();
+		Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+		for (int value : redundant) {
+			int node = ssa.node[value];
+			if (removed.get(node)) {
+				continue;
+			}
+			int first = number[value];
+			Integer slot = slots.get(first);
+			if (slot == null) {
+				slot = slotCount++;
+				slots.put(first, slot);
+				assign(ssa.node[first], slot);
+			}
+			remove(node, removed);
+			ast.kind[node] = Ast.VAR;
+			ast.a[node] = name(slot);
+			ast.b[node] = 0;
+			ast.c[node] = slot;
+			replaced++;
+		}
+	}
+
+	private void assign(int node, int slot) {
+		// the first node assigns the new variable and keeps its value
+		int value = ast.add(ast.kind[node], ast.a[node], ast.b[node],
+				ast.c[node], ast.pos[node]);
+		ast.kind[node] = Ast.ASSIGN;
+		ast.a[node] = name(slot);
+		ast.b[node] = value;
+		ast.c[node] = slot;
+	}
+
+	private int name(int slot) {
+		return ast.names.intern("$"
+				+ (function < 0 ? "main" : ast.functionName(function)) + slot);
+	}
+
+	private void remove(int node, BitSet removed) {
+		removed.set(node);
+		for (int i = 0; i < ast.childCount(node); i++) {
+			remove(ast.childAt(node, i), removed);
+		}
+	}
+}